@@ -1,5 +1,6 @@
 package dgm;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import dgm.degraphmalizr.degraphmalize.DegraphmalizeRequestScope;
 import dgm.degraphmalizr.degraphmalize.DegraphmalizeRequestType;
 import dgm.degraphmalizr.degraphmalize.DegraphmalizeCallback;
@@ -11,4 +12,10 @@ import java.util.concurrent.Future;
 public interface Degraphmalizr
 {
     Future<DegraphmalizeResult> degraphmalize(DegraphmalizeRequestType requestType, DegraphmalizeRequestScope requestScope, ID id, DegraphmalizeCallback callback) throws DegraphmalizerException;
+
+    /**
+     * Degraphmalize with the source document of the version in the ID, instead of fetching it from Elasticsearch.
+     * The source is only used for updates of a single document, and may be {@code null}.
+     */
+    Future<DegraphmalizeResult> degraphmalize(DegraphmalizeRequestType requestType, DegraphmalizeRequestScope requestScope, ID id, JsonNode source, DegraphmalizeCallback callback) throws DegraphmalizerException;
 }
\ No newline at end of file
@@ -4,6 +4,8 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
 import com.tinkerpop.blueprints.*;
 import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
 import com.tinkerpop.blueprints.impls.neo4j.Neo4jVertexIterable;
@@ -88,7 +90,7 @@ public final class GraphUtilities
     }
 
 
-    public static Iterable<Vertex> findVerticesInIndex(Graph graph, String index, String type)
+    public static Iterable<Vertex> findVerticesInIndex(Graph graph, String index, final String type)
     {
         if (graph instanceof MetaGraph && graph instanceof Neo4jGraph)
         {
@@ -98,7 +100,16 @@ public final class GraphUtilities
             // TODO check for transaction, this is done in Neo4jgraph normally but we can't access that method.
             return new Neo4jVertexIterable(itty, (Neo4jGraph) graph, false);
         }
-        return null;
+
+        // other graphs have no combined query, so filter the vertices of the index on their type
+        return Iterables.filter(findVerticesInIndex(graph, index), new Predicate<Vertex>()
+        {
+            @Override
+            public boolean apply(Vertex vertex)
+            {
+                return type.equals(vertex.getProperty(KEY_TYPE));
+            }
+        });
     }
 
     /**
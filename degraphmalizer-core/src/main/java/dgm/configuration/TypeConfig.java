@@ -58,4 +58,10 @@ public interface TypeConfig
 	 * Walks performed for this type
 	 */
 	Map<String, WalkConfig> walks();
+
+    /**
+     * Hash of the definition of this type. It changes whenever the configuration (or anything it depends on, such as
+     * libraries) changes, so target documents computed with an older configuration can be recognized.
+     */
+    String configurationHash();
 }
@@ -0,0 +1,334 @@
+package dgm.configuration.declarative;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tinkerpop.blueprints.Direction;
+import dgm.ID;
+import dgm.Subgraph;
+import dgm.configuration.IndexConfig;
+import dgm.configuration.PropertyConfig;
+import dgm.configuration.TypeConfig;
+import dgm.configuration.WalkConfig;
+import dgm.configuration.reducers.NativeReducers;
+import dgm.exceptions.ConfigurationException;
+import dgm.graphs.MutableSubgraph;
+import dgm.graphs.Subgraphs;
+
+import java.util.*;
+
+/**
+ * Type configuration from a JSON definition ({@code [target type].conf.json}), for types that don't need any
+ * javascript. Extraction and filtering read the Jackson tree directly:
+ *
+ * <pre>
+ * {
+ *   "sourceIndex": "alice",
+ *   "sourceType": "author",
+ *   "filter": [ {"field": "published", "equals": true}, {"field": "books", "exists": true} ],
+ *   "extract": [ {"field": "books", "label": "wrote_book", "index": "bob", "type": "books", "direction": "OUTWARDS"} ],
+ *   "walks": { "bookwalk": { "direction": "OUT", "properties": { "books": {"collect": ["title", "_id"]} } } }
+ * }
+ * </pre>
+ *
+ * Every value at the field of an extract rule (or every element, if it is a list) is the ID of the other end of an
+ * edge. All filter conditions must hold. Walk properties use the {@link NativeReducers}. The document is not
+ * transformed.
+ */
+public class DeclarativeTypeConfig implements TypeConfig
+{
+    final IndexConfig indexConfig;
+    final String type;
+    final String sourceIndex;
+    final String sourceType;
+    final String configurationHash;
+
+    final List<Condition> filter = new ArrayList<Condition>();
+    final List<EdgeRule> extract = new ArrayList<EdgeRule>();
+    final Map<String, WalkConfig> walks = new HashMap<String, WalkConfig>();
+
+    public DeclarativeTypeConfig(ObjectMapper om, String type, JsonNode definition, IndexConfig indexConfig, String configurationHash)
+    {
+        this.type = type;
+        this.indexConfig = indexConfig;
+        this.configurationHash = configurationHash;
+
+        if (!definition.isObject())
+            throw new ConfigurationException("Configuration of type " + type + " is not a JSON object");
+
+        sourceIndex = text(definition, "sourceIndex");
+        sourceType = text(definition, "sourceType");
+
+        for (JsonNode condition : list(definition.get("filter")))
+            filter.add(new Condition(condition));
+
+        for (JsonNode rule : list(definition.get("extract")))
+            extract.add(new EdgeRule(rule));
+
+        final JsonNode walksNode = definition.get("walks");
+        if (walksNode != null)
+        {
+            final Iterator<Map.Entry<String, JsonNode>> it = walksNode.fields();
+            while (it.hasNext())
+            {
+                final Map.Entry<String, JsonNode> walk = it.next();
+                walks.put(walk.getKey(), new DeclarativeWalkConfig(om, walk.getKey(), walk.getValue(), this));
+            }
+        }
+    }
+
+    static String text(JsonNode node, String field)
+    {
+        final JsonNode value = node.get(field);
+        if (value == null || !value.isTextual())
+            throw new ConfigurationException("Missing or invalid '" + field + "' in " + node);
+
+        return value.asText();
+    }
+
+    private static Iterable<JsonNode> list(JsonNode node)
+    {
+        if (node == null)
+            return Collections.emptyList();
+
+        if (node.isArray())
+            return node;
+
+        return Collections.singletonList(node);
+    }
+
+    @Override
+    public String name()
+    {
+        return type;
+    }
+
+    @Override
+    public Subgraph extract(JsonNode document)
+    {
+        if (document == null)
+            throw new NullPointerException("Must pass in non-null value to extract(..)");
+
+        if (extract.isEmpty())
+            return Subgraphs.EMPTY_SUBGRAPH;
+
+        final MutableSubgraph subgraph = new MutableSubgraph();
+        for (EdgeRule rule : extract)
+            rule.addEdges(document, subgraph);
+
+        return subgraph;
+    }
+
+    @Override
+    public JsonNode transform(JsonNode document)
+    {
+        return document;
+    }
+
+    @Override
+    public boolean filter(JsonNode document)
+    {
+        for (Condition condition : filter)
+            if (!condition.holds(document))
+                return false;
+
+        return true;
+    }
+
+    @Override
+    public IndexConfig index()
+    {
+        return indexConfig;
+    }
+
+    @Override
+    public String targetIndex()
+    {
+        return index().name();
+    }
+
+    @Override
+    public String targetType()
+    {
+        return name();
+    }
+
+    @Override
+    public String sourceIndex()
+    {
+        return sourceIndex;
+    }
+
+    @Override
+    public String sourceType()
+    {
+        return sourceType;
+    }
+
+    @Override
+    public Map<String, WalkConfig> walks()
+    {
+        return walks;
+    }
+
+    @Override
+    public String configurationHash()
+    {
+        return configurationHash;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DeclarativeTypeConfig(" + indexConfig.name() + "/" + type + ")";
+    }
+
+    /**
+     * {@code {"field": path, "equals": value}} or {@code {"field": path, "exists": true|false}}
+     */
+    static final class Condition
+    {
+        final FieldPath field;
+        final JsonNode equals;
+        final boolean exists;
+
+        Condition(JsonNode definition)
+        {
+            field = new FieldPath(text(definition, "field"));
+            equals = definition.get("equals");
+
+            final JsonNode existsNode = definition.get("exists");
+            exists = existsNode == null || existsNode.asBoolean();
+
+            if (equals == null && existsNode == null)
+                throw new ConfigurationException("Filter on " + field + " needs 'equals' or 'exists'");
+        }
+
+        boolean holds(JsonNode document)
+        {
+            final JsonNode value = field.resolve(document);
+
+            if (equals != null)
+                return equals.equals(value);
+
+            final boolean present = value != null && !value.isNull();
+            return present == exists;
+        }
+    }
+
+    /**
+     * {@code {"field": path, "label": label, "index": index, "type": type, "direction": "INWARDS"|"OUTWARDS"}}, with
+     * optional constant edge {@code "properties"}.
+     */
+    static final class EdgeRule
+    {
+        final FieldPath field;
+        final String label;
+        final String index;
+        final String type;
+        final Subgraph.Direction direction;
+        final JsonNode properties;
+
+        EdgeRule(JsonNode definition)
+        {
+            field = new FieldPath(text(definition, "field"));
+            label = text(definition, "label");
+            index = text(definition, "index");
+            type = text(definition, "type");
+
+            try
+            {
+                direction = Subgraph.Direction.valueOf(text(definition, "direction").toUpperCase());
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new ConfigurationException("Direction of edge " + label + " must be INWARDS or OUTWARDS");
+            }
+
+            properties = definition.get("properties");
+        }
+
+        void addEdges(JsonNode document, MutableSubgraph subgraph)
+        {
+            final JsonNode value = field.resolve(document);
+            if (value == null)
+                return;
+
+            for (JsonNode id : list(value))
+            {
+                if (!id.isValueNode() || id.isNull())
+                    continue;
+
+                final MutableSubgraph.Edge edge = subgraph.beginEdge(label, new ID(index, type, id.asText(), 0), direction);
+
+                if (properties != null)
+                {
+                    final Iterator<Map.Entry<String, JsonNode>> it = properties.fields();
+                    while (it.hasNext())
+                    {
+                        final Map.Entry<String, JsonNode> p = it.next();
+                        edge.property(p.getKey(), p.getValue());
+                    }
+                }
+            }
+        }
+    }
+}
+
+class DeclarativeWalkConfig implements WalkConfig
+{
+    final String walkName;
+    final Direction direction;
+    final TypeConfig typeCfg;
+
+    final Map<String, PropertyConfig> properties = new HashMap<String, PropertyConfig>();
+
+    DeclarativeWalkConfig(ObjectMapper om, String walkName, JsonNode definition, TypeConfig typeCfg)
+    {
+        this.walkName = walkName;
+        this.typeCfg = typeCfg;
+
+        try
+        {
+            direction = Direction.valueOf(DeclarativeTypeConfig.text(definition, "direction"));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new ConfigurationException("Direction of walk " + walkName + " must be IN or OUT");
+        }
+
+        final JsonNode propertiesNode = definition.get("properties");
+        if (propertiesNode == null)
+            return;
+
+        final Iterator<Map.Entry<String, JsonNode>> it = propertiesNode.fields();
+        while (it.hasNext())
+        {
+            final Map.Entry<String, JsonNode> property = it.next();
+            properties.put(property.getKey(), NativeReducers.fromJson(om, property.getKey(), this, property.getValue()));
+        }
+    }
+
+    @Override
+    public Direction direction()
+    {
+        return direction;
+    }
+
+    @Override
+    public TypeConfig type()
+    {
+        return typeCfg;
+    }
+
+    @Override
+    public Map<String, ? extends PropertyConfig> properties()
+    {
+        return properties;
+    }
+
+    @Override
+    public String name()
+    {
+        return walkName;
+    }
+}
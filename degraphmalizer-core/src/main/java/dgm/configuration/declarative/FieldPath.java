@@ -0,0 +1,40 @@
+package dgm.configuration.declarative;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A dotted path into a JSON document, like {@code "author.name"}.
+ */
+final class FieldPath
+{
+    final String path;
+    final String[] elements;
+
+    FieldPath(String path)
+    {
+        this.path = path;
+        this.elements = path.split("\\.");
+    }
+
+    /**
+     * @return the value at this path, or {@code null} if the document doesn't have it
+     */
+    JsonNode resolve(JsonNode document)
+    {
+        JsonNode node = document;
+        for (String element : elements)
+        {
+            if (node == null || !node.isObject())
+                return null;
+
+            node = node.get(element);
+        }
+        return node;
+    }
+
+    @Override
+    public String toString()
+    {
+        return path;
+    }
+}
@@ -3,10 +3,16 @@ package dgm.configuration.javascript;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 import com.tinkerpop.blueprints.Direction;
 import dgm.JSONUtilities;
 import dgm.Subgraph;
 import dgm.configuration.*;
+import dgm.configuration.declarative.DeclarativeTypeConfig;
+import dgm.configuration.reducers.NativeReducers;
 import dgm.exceptions.ConfigurationException;
 import dgm.graphs.Subgraphs;
 import dgm.modules.elasticsearch.ResolvedPathElement;
@@ -97,7 +103,7 @@ class JavascriptIndexConfig implements IndexConfig
 
     final String index;
     final Scriptable scope;
-    final Map<String, JavascriptTypeConfig> types = new HashMap<String, JavascriptTypeConfig>();
+    final Map<String, TypeConfig> types = new HashMap<String, TypeConfig>();
 
 
     /**
@@ -119,9 +125,14 @@ class JavascriptIndexConfig implements IndexConfig
             // create standard ECMA scope
             buildScope = cx.initStandardObjects(null, true);
 
-            // load libraries
+            // load libraries, every type configuration depends on their contents
+            final Hasher libraryHasher = Hashing.md5().newHasher();
             for (File lib : libraries)
+            {
                 loadLib(cx, buildScope, lib);
+                libraryHasher.putString(Files.toString(lib, Charsets.UTF_8));
+            }
+            final String libraryHash = libraryHasher.hash().toString();
 
             final Object jsLogger = Context.javaToJS(new JSLogger(), buildScope);
             ScriptableObject.putProperty(buildScope, "log", jsLogger);
@@ -134,9 +145,9 @@ class JavascriptIndexConfig implements IndexConfig
                 @Override
                 public boolean accept(File dir, String name)
                 {
-                    if (name.endsWith(".conf.js"))
+                    if (name.endsWith(".conf.js") || name.endsWith(".conf.json"))
                         return true;
-                    log.warn("File [{}] in config dir [{}] has wrong name format and is ignored. Proper format: [target type].conf.js", name, dir.getAbsolutePath());
+                    log.warn("File [{}] in config dir [{}] has wrong name format and is ignored. Proper format: [target type].conf.js or [target type].conf.json", name, dir.getAbsolutePath());
                     return false;
                 }
             };
@@ -147,13 +158,30 @@ class JavascriptIndexConfig implements IndexConfig
             for (File file : configFiles)
             {
                 log.debug("Found config file [{}] for index [{}]", file.getCanonicalFile(), index);
-                final Reader reader = new FileReader(file);
+                final String source = Files.toString(file, Charsets.UTF_8);
                 final String fn = file.getCanonicalPath();
+
+                // declarative configurations don't use javascript, so they don't depend on the libraries
+                if (file.getName().endsWith(".conf.json"))
+                {
+                    final String type = file.getName().substring(0, file.getName().length() - ".conf.json".length());
+                    checkNewType(type, directory);
+                    final String hash = Hashing.md5().hashString(source).toString();
+                    types.put(type, new DeclarativeTypeConfig(om, type, om.readTree(source), this, hash));
+                    continue;
+                }
+
                 final String type = file.getName().replaceFirst(".conf.js", "");
+                checkNewType(type, directory);
 
-                final Scriptable typeConfig = (Scriptable) compile(cx, buildScope, reader, fn);
+                final Scriptable typeConfig = (Scriptable) compile(cx, buildScope, new StringReader(source), fn);
 
-                types.put(type, new JavascriptTypeConfig(om, type, buildScope, typeConfig, this));
+                final String hash = Hashing.md5().newHasher()
+                        .putString(libraryHash)
+                        .putString(source)
+                        .hash().toString();
+
+                types.put(type, new JavascriptTypeConfig(om, type, buildScope, typeConfig, this, hash));
             }
 
             // Seal the configuration.
@@ -179,6 +207,13 @@ class JavascriptIndexConfig implements IndexConfig
         return types;
     }
 
+    // a type is configured by either a javascript or a declarative file, which of them is read first is unspecified
+    private void checkNewType(String type, File directory) throws IOException
+    {
+        if (types.containsKey(type))
+            throw new ConfigurationException("Type " + type + " is configured twice in " + directory.getCanonicalPath() + ", by " + type + ".conf.js and " + type + ".conf.json");
+    }
+
     private Object compile(Context cx, Scriptable scope, Reader reader, String fn) throws IOException
     {
         // compile and execute into the scope
@@ -222,17 +257,20 @@ class JavascriptTypeConfig implements TypeConfig
     final String sourceIndex;
     final String sourceType;
 
+    final String configurationHash;
+
     final ObjectMapper objectMapper;
 
     final Map<String, WalkConfig> walks = new HashMap<String, WalkConfig>();
 
-    public JavascriptTypeConfig(ObjectMapper objectMapper, String type, Scriptable scope, Scriptable script, IndexConfig indexConfig) throws IOException
+    public JavascriptTypeConfig(ObjectMapper objectMapper, String type, Scriptable scope, Scriptable script, IndexConfig indexConfig, String configurationHash) throws IOException
     {
         this.objectMapper = objectMapper;
         this.type = type;
         this.scope = scope;
         this.script = script;
         this.indexConfig = indexConfig;
+        this.configurationHash = configurationHash;
 
         log.debug("Creating config for type [{}] in index [{}]", type, indexConfig.name());
 
@@ -423,6 +461,12 @@ class JavascriptTypeConfig implements TypeConfig
     {
         return walks;
     }
+
+    @Override
+    public String configurationHash()
+    {
+        return configurationHash;
+    }
 }
 
 class JavascriptWalkConfig implements WalkConfig
@@ -432,7 +476,7 @@ class JavascriptWalkConfig implements WalkConfig
     final TypeConfig typeCfg;
 
     // TODO use guava immutables
-    final Map<String, JavascriptPropertyConfig> properties = new HashMap<String, JavascriptPropertyConfig>();
+    final Map<String, PropertyConfig> properties = new HashMap<String, PropertyConfig>();
 
 
     public JavascriptWalkConfig(ObjectMapper om, String walkName, Direction direction, TypeConfig typeCfg, Scriptable scope, Scriptable propertyScriptable)
@@ -451,10 +495,16 @@ class JavascriptWalkConfig implements WalkConfig
                 final String propertyName = id.toString();
                 final Scriptable property = (Scriptable) ScriptableObject.getProperty(propertyScriptable, propertyName);
 
-                final Function reduce = (Function) ScriptableObject.getProperty(property, "reduce");
+                final Object reduce = ScriptableObject.getProperty(property, "reduce");
+                if (!(reduce instanceof Function))
+                {
+                    this.properties.put(propertyName, nativeProperty(om, propertyName, scope, property));
+                    continue;
+                }
+
                 final boolean nested = ScriptableObject.getProperty(property, "nested").toString().equals("true");
 
-                this.properties.put(propertyName, new JavascriptPropertyConfig(om, propertyName, nested, reduce, scope, this));
+                this.properties.put(propertyName, new JavascriptPropertyConfig(om, propertyName, nested, (Function) reduce, scope, this));
             }
         } finally
         {
@@ -462,6 +512,26 @@ class JavascriptWalkConfig implements WalkConfig
         }
     }
 
+    /**
+     * A property using one of the {@link NativeReducers}, defined as {@code {reduce: "count"}} or as
+     * {@code {collect: ["title","_id"]}}. The definition is read as JSON, like the properties of a declarative
+     * configuration.
+     */
+    private PropertyConfig nativeProperty(ObjectMapper om, String propertyName, Scriptable scope, Scriptable property)
+    {
+        final JsonNode definition;
+        try
+        {
+            definition = JSONUtilities.fromJSONObject(om, Context.getCurrentContext(), scope, property);
+        }
+        catch (IOException e)
+        {
+            throw new ConfigurationException("Property " + propertyName + " of walk " + walkName + " is not valid JSON: " + e.getMessage());
+        }
+
+        return NativeReducers.fromJson(om, propertyName, this, definition);
+    }
+
     @Override
     public Direction direction()
     {
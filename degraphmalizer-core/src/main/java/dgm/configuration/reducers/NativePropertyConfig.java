@@ -0,0 +1,110 @@
+package dgm.configuration.reducers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Optional;
+import com.google.common.collect.Iterables;
+import dgm.configuration.PropertyConfig;
+import dgm.configuration.WalkConfig;
+import dgm.modules.elasticsearch.ResolvedPathElement;
+import dgm.trees.Tree;
+import dgm.trees.Trees;
+import org.elasticsearch.action.get.GetResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link PropertyConfig} with a reduction implemented in Java, so it doesn't need to enter javascript.
+ * <p/>
+ * The reduction is over all documents found by the walk, in breadth first order, excluding the root of the tree (which
+ * is the raw document itself) and documents that don't exist in ES.
+ */
+public abstract class NativePropertyConfig implements PropertyConfig
+{
+    protected final ObjectMapper om;
+    protected final String name;
+    protected final WalkConfig walkConfig;
+
+    protected NativePropertyConfig(ObjectMapper om, String name, WalkConfig walkConfig)
+    {
+        this.om = om;
+        this.name = name;
+        this.walkConfig = walkConfig;
+    }
+
+    @Override
+    public final String name()
+    {
+        return name;
+    }
+
+    @Override
+    public final WalkConfig walk()
+    {
+        return walkConfig;
+    }
+
+    @Override
+    public final JsonNode reduce(Tree<ResolvedPathElement> tree)
+    {
+        final List<GetResponse> documents = new ArrayList<GetResponse>();
+        for (ResolvedPathElement element : Iterables.skip(Trees.bfsWalk(tree), 1))
+        {
+            final Optional<GetResponse> response = element.getResponse();
+            if (response.isPresent() && response.get().exists())
+                documents.add(response.get());
+        }
+
+        return reduce(documents);
+    }
+
+    protected abstract JsonNode reduce(List<GetResponse> documents);
+
+    /**
+     * Value of a field of a document. Besides the fields in the source, the meta fields {@code _index}, {@code _type},
+     * {@code _id} and {@code _version} can be used.
+     *
+     * @return the value, or {@code null} if the document doesn't have the field
+     */
+    protected final JsonNode field(GetResponse document, String field)
+    {
+        if ("_index".equals(field))
+            return JsonNodeFactory.instance.textNode(document.index());
+        if ("_type".equals(field))
+            return JsonNodeFactory.instance.textNode(document.type());
+        if ("_id".equals(field))
+            return JsonNodeFactory.instance.textNode(document.id());
+        if ("_version".equals(field))
+            return JsonNodeFactory.instance.numberNode(document.version());
+
+        // the parsed source is cached in the response, so it is shared by all properties using the same documents
+        final Map<String, Object> source = document.sourceAsMap();
+        if (source == null || !source.containsKey(field))
+            return null;
+
+        final Object value = source.get(field);
+        if (value == null)
+            return JsonNodeFactory.instance.nullNode();
+
+        return om.valueToTree(value);
+    }
+
+    /**
+     * Object with the given fields of the document, fields the document doesn't have are left out.
+     */
+    protected final ObjectNode fields(GetResponse document, List<String> fields)
+    {
+        final ObjectNode node = om.createObjectNode();
+        for (String field : fields)
+        {
+            final JsonNode value = field(document, field);
+            if (value != null)
+                node.put(field, value);
+        }
+        return node;
+    }
+}
@@ -0,0 +1,157 @@
+package dgm.configuration.reducers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import dgm.configuration.WalkConfig;
+import dgm.exceptions.ConfigurationException;
+import org.elasticsearch.action.get.GetResponse;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * The built-in reducers, which can be used in a property definition instead of a javascript {@code reduce} function:
+ * <ul>
+ * <li>{@code {reduce: "count"}} the number of documents in the walk</li>
+ * <li>{@code {collect: ["title","_id"]}} a list with an object with the given fields for each document</li>
+ * <li>{@code {pluck: "title"}} a list with the value of the field for each document that has it</li>
+ * <li>{@code {distinct: "genre"}} like {@code pluck}, but each value only once</li>
+ * </ul>
+ */
+public final class NativeReducers
+{
+    public static final String COUNT = "count";
+    public static final String COLLECT = "collect";
+    public static final String PLUCK = "pluck";
+    public static final String DISTINCT = "distinct";
+
+    private NativeReducers()
+    {
+    }
+
+    /**
+     * @param reducer one of {@link #COUNT}, {@link #COLLECT}, {@link #PLUCK} or {@link #DISTINCT}
+     * @param fields the fields the reducer uses, {@link #PLUCK} and {@link #DISTINCT} take exactly one
+     */
+    public static NativePropertyConfig create(ObjectMapper om, String name, WalkConfig walkConfig, String reducer, List<String> fields)
+    {
+        if (COUNT.equals(reducer))
+            return new Count(om, name, walkConfig);
+
+        if (COLLECT.equals(reducer))
+        {
+            if (fields.isEmpty())
+                throw new ConfigurationException("Property " + name + ": collect needs at least one field");
+            return new Collect(om, name, walkConfig, fields);
+        }
+
+        if (PLUCK.equals(reducer) || DISTINCT.equals(reducer))
+        {
+            if (fields.size() != 1)
+                throw new ConfigurationException("Property " + name + ": " + reducer + " needs exactly one field");
+            return new Pluck(om, name, walkConfig, fields.get(0), DISTINCT.equals(reducer));
+        }
+
+        throw new ConfigurationException("Property " + name + ": unknown reducer '" + reducer + "'");
+    }
+
+    /**
+     * Create a reducer from a JSON definition, such as {@code {"reduce": "count"}} or {@code {"pluck": "title"}}.
+     */
+    public static NativePropertyConfig fromJson(ObjectMapper om, String name, WalkConfig walkConfig, JsonNode definition)
+    {
+        final JsonNode reduce = definition.get("reduce");
+        if (reduce != null && reduce.isTextual())
+            return create(om, name, walkConfig, reduce.asText(), fieldList(definition.get("fields")));
+
+        for (String reducer : new String[]{COLLECT, PLUCK, DISTINCT})
+            if (definition.has(reducer))
+                return create(om, name, walkConfig, reducer, fieldList(definition.get(reducer)));
+
+        throw new ConfigurationException("Property " + name + " of walk " + walkConfig.name() + " has no reducer");
+    }
+
+    private static List<String> fieldList(JsonNode fields)
+    {
+        final List<String> result = new ArrayList<String>();
+        if (fields == null || fields.isNull())
+            return result;
+
+        if (fields.isArray())
+            for (JsonNode field : fields)
+                result.add(field.asText());
+        else
+            result.add(fields.asText());
+
+        return result;
+    }
+
+    static final class Count extends NativePropertyConfig
+    {
+        Count(ObjectMapper om, String name, WalkConfig walkConfig)
+        {
+            super(om, name, walkConfig);
+        }
+
+        @Override
+        protected JsonNode reduce(List<GetResponse> documents)
+        {
+            return JsonNodeFactory.instance.numberNode(documents.size());
+        }
+    }
+
+    static final class Collect extends NativePropertyConfig
+    {
+        final List<String> fields;
+
+        Collect(ObjectMapper om, String name, WalkConfig walkConfig, List<String> fields)
+        {
+            super(om, name, walkConfig);
+            this.fields = fields;
+        }
+
+        @Override
+        protected JsonNode reduce(List<GetResponse> documents)
+        {
+            final ArrayNode result = om.createArrayNode();
+            for (GetResponse document : documents)
+                result.add(fields(document, fields));
+            return result;
+        }
+    }
+
+    static final class Pluck extends NativePropertyConfig
+    {
+        final String field;
+        final boolean distinct;
+
+        Pluck(ObjectMapper om, String name, WalkConfig walkConfig, String field, boolean distinct)
+        {
+            super(om, name, walkConfig);
+            this.field = field;
+            this.distinct = distinct;
+        }
+
+        @Override
+        protected JsonNode reduce(List<GetResponse> documents)
+        {
+            // JsonNodes have value equality, so a set removes duplicate values (keeping the order of the walk)
+            final LinkedHashSet<JsonNode> distinctValues = new LinkedHashSet<JsonNode>();
+            final ArrayNode result = om.createArrayNode();
+
+            for (GetResponse document : documents)
+            {
+                final JsonNode value = field(document, field);
+                if (value == null)
+                    continue;
+
+                if (!distinct || distinctValues.add(value))
+                    result.add(value);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package dgm.degraphmalizr;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dgm.ID;
+import dgm.exceptions.Overloaded;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for degraphmalize requests.
+ * <p/>
+ * The degraphmalizer works on one request at a time, so when requests arrive faster than they are done they pile up
+ * in its queue. Instead of letting latency and memory grow without bound, a request is refused with {@link Overloaded}
+ * when {@code maxQueued} requests are waiting, or when {@code maxInFlight} recomputes are in progress. The client is
+ * told when to come back from the rate at which the queue drains.
+ * <p/>
+ * A recompute counts from the moment it is queued until it is done, those of requests for single documents as well as
+ * those of the workers of {@link ScopedRuns}, see {@link Recomputes}.
+ */
+public class Admission
+{
+    public static final int DEFAULT_MAX_QUEUED = 1000;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 10000;
+
+    // above this fraction of the limits the degraphmalizer reports it is busy
+    static final double BUSY = 0.75;
+
+    static final int MAX_RETRY_AFTER_IN_SECONDS = 60;
+
+    // weight of the last second in the drain rate
+    private static final double ALPHA = 0.3;
+
+    private final int maxQueued;
+    private final int maxInFlight;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    // requests completed per second, sampled at most once a second
+    private double rate = 0;
+    private long sampledAt = System.currentTimeMillis();
+    private long sampledCompleted = 0;
+
+    public Admission(int maxQueued, int maxInFlight)
+    {
+        this.maxQueued = maxQueued;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Admit a request to the queue, or refuse it.
+     *
+     * @throws Overloaded when the degraphmalizer is at one of its limits
+     */
+    public void admit(ID id)
+    {
+        while (true)
+        {
+            final int waiting = queued.get();
+            if (waiting >= maxQueued || inFlight.get() >= maxInFlight)
+            {
+                rejected.incrementAndGet();
+                throw new Overloaded(id, retryAfterInSeconds());
+            }
+
+            if (queued.compareAndSet(waiting, waiting + 1))
+                return;
+        }
+    }
+
+    /**
+     * An admitted request didn't make it into the queue after all.
+     */
+    public void withdrawn()
+    {
+        queued.decrementAndGet();
+    }
+
+    /**
+     * An admitted request was taken from the queue.
+     */
+    public void started()
+    {
+        queued.decrementAndGet();
+    }
+
+    /**
+     * A request that was started is done, successful or not.
+     */
+    public void finished()
+    {
+        completed.incrementAndGet();
+    }
+
+    /**
+     * Recomputes are queued, they count until they are done.
+     */
+    public Recomputes recomputing(int recomputes)
+    {
+        inFlight.addAndGet(recomputes);
+        return new Recomputes(recomputes);
+    }
+
+    /**
+     * Recomputes that were queued together. Each is released once: when it is {@link #done()}, or when the ones left
+     * are {@link #abandon()}ed.
+     */
+    public final class Recomputes
+    {
+        private final AtomicInteger left;
+
+        Recomputes(int recomputes)
+        {
+            left = new AtomicInteger(recomputes);
+        }
+
+        /**
+         * One of the recomputes is done, successful or not.
+         */
+        public void done()
+        {
+            while (true)
+            {
+                final int n = left.get();
+                if (n <= 0)
+                    return;
+
+                if (left.compareAndSet(n, n - 1))
+                {
+                    inFlight.decrementAndGet();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * The recomputes that are not done won't be.
+         */
+        public void abandon()
+        {
+            inFlight.addAndGet(-left.getAndSet(0));
+        }
+    }
+
+    public boolean overloaded()
+    {
+        return load() >= 1;
+    }
+
+    /**
+     * Fraction of the tightest limit in use, {@code 1} or more means requests are refused.
+     */
+    public double load()
+    {
+        return Math.max((double) queued.get() / Math.max(1, maxQueued), (double) inFlight.get() / Math.max(1, maxInFlight));
+    }
+
+    /**
+     * Requests completed per second, averaged over the last seconds.
+     */
+    public synchronized double drainRate()
+    {
+        final long now = System.currentTimeMillis();
+        final long elapsed = now - sampledAt;
+        if (elapsed >= 1000)
+        {
+            final long done = completed.get();
+            final double current = (done - sampledCompleted) * 1000.0 / elapsed;
+            rate = ALPHA * current + (1 - ALPHA) * rate;
+            sampledAt = now;
+            sampledCompleted = done;
+        }
+        return rate;
+    }
+
+    /**
+     * Seconds until the requests that are waiting now have drained, between {@code 1} and
+     * {@link #MAX_RETRY_AFTER_IN_SECONDS}.
+     */
+    public int retryAfterInSeconds()
+    {
+        final double rate = drainRate();
+        if (rate <= 0)
+            return MAX_RETRY_AFTER_IN_SECONDS;
+
+        final double seconds = Math.ceil(queued.get() / rate);
+        return (int) Math.max(1, Math.min(MAX_RETRY_AFTER_IN_SECONDS, seconds));
+    }
+
+    /**
+     * The load, as JSON. The status is {@code ok}, {@code busy} or {@code overloaded}.
+     */
+    public ObjectNode render(ObjectMapper om)
+    {
+        final double load = load();
+
+        final ObjectNode node = om.createObjectNode();
+        node.put("status", load >= 1 ? "overloaded" : load >= BUSY ? "busy" : "ok");
+        node.put("load", load);
+        node.put("queued", queued.get());
+        node.put("maxQueued", maxQueued);
+        node.put("inFlight", inFlight.get());
+        node.put("maxInFlight", maxInFlight);
+        node.put("drainRate", drainRate());
+        node.put("retryAfter", retryAfterInSeconds());
+        node.put("completed", completed.get());
+        node.put("rejected", rejected.get());
+        return node;
+    }
+}
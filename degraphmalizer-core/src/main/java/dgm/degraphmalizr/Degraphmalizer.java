@@ -7,6 +7,7 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
 import com.google.inject.Provider;
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Edge;
@@ -20,6 +21,7 @@ import dgm.degraphmalizr.degraphmalize.*;
 import dgm.degraphmalizr.recompute.RecomputeCallback;
 import dgm.degraphmalizr.recompute.RecomputeRequest;
 import dgm.degraphmalizr.recompute.RecomputeResult;
+import dgm.degraphmalizr.recompute.RecomputeSession;
 import dgm.degraphmalizr.recompute.Recomputer;
 import dgm.exceptions.*;
 import dgm.graphs.BlueprintsSubgraphManager;
@@ -66,8 +68,35 @@ public class Degraphmalizer implements Degraphmalizr
 
     protected final Provider<Configuration> cfgProvider;
 
+    protected final Admission admission;
+    protected final ScopedRuns scopedRuns;
+    protected final FairScheduler scheduler;
+    protected final InFlight inFlight;
+
     final ObjectMapper objectMapper;
 
+    // the slices of requests for a whole index or type
+    private final ScopedRuns.SliceFactory scopedSlices = new ScopedRuns.SliceFactory()
+    {
+        @Override
+        public Runnable sliceOf(ScopedRuns.Run run)
+        {
+            return scopedSlice(run);
+        }
+    };
+
+    // the vertices in the index or type of a request, in the order of the graph
+    private final ScopedRuns.VertexFinder scopedVertices = new ScopedRuns.VertexFinder()
+    {
+        @Override
+        public Iterable<Vertex> find(DegraphmalizeRequest action)
+        {
+            if (action.scope() == DegraphmalizeRequestScope.INDEX)
+                return GraphUtilities.findVerticesInIndex(graph, action.id().index());
+            return GraphUtilities.findVerticesInIndex(graph, action.id().index(), action.id().type());
+        }
+    };
+
     @Inject
     public Degraphmalizer(Client client, SubgraphManager subgraphmanager, Graph graph,
                           @Degraphmalizes ExecutorService degraphmalizeQueue,
@@ -76,7 +105,11 @@ public class Degraphmalizer implements Degraphmalizr
                           QueryFunction queryFunction,
                           ObjectMapper objectMapper,
                           Recomputer recomputer,
-                          Provider<Configuration> configProvider)
+                          Provider<Configuration> configProvider,
+                          Admission admission,
+                          ScopedRuns scopedRuns,
+                          FairScheduler scheduler,
+                          InFlight inFlight)
 	{
         this.fetchQueue = fetchQueue;
         this.recomputeQueue = recomputeQueue;
@@ -88,10 +121,20 @@ public class Degraphmalizer implements Degraphmalizr
         this.cfgProvider = configProvider;
         this.queryFn = queryFunction;
         this.objectMapper = objectMapper;
+        this.admission = admission;
+        this.scopedRuns = scopedRuns;
+        this.scheduler = scheduler;
+        this.inFlight = inFlight;
 	}
 
     @Override
     public final Future<DegraphmalizeResult> degraphmalize(DegraphmalizeRequestType requestType, DegraphmalizeRequestScope requestScope, ID id, DegraphmalizeCallback callback)
+    {
+        return degraphmalize(requestType, requestScope, id, null, callback);
+    }
+
+    @Override
+    public final Future<DegraphmalizeResult> degraphmalize(DegraphmalizeRequestType requestType, DegraphmalizeRequestScope requestScope, ID id, JsonNode source, DegraphmalizeCallback callback)
     {
         // find all matching configurations
         final Iterable<TypeConfig> configs = Configurations.configsFor(cfgProvider.get(), id.index(), id.type());
@@ -101,10 +144,44 @@ public class Degraphmalizer implements Degraphmalizr
             throw new NoConfiguration(id);
 
         // construct the action object
-        final DegraphmalizeRequest action = new DegraphmalizeRequest(requestType, requestScope, id, configs);
+        final DegraphmalizeRequest action = new DegraphmalizeRequest(requestType, requestScope, id, configs, source);
+
+        // drop a request for an older version than one that arrived already, before doing anything for it
+        inFlight.intake(id);
+
+        // refuse the request if there is too much work already
+        admission.admit(id);
+
+        // convert object into task and queue it for its index, a whole index or type is done a slice at a time
+        try
+        {
+            if (isScoped(requestScope))
+                return scopedRuns.start(action, callback, scopedSlices).future;
 
-        // convert object into task and queue
-        return degraphmalizeQueue.submit(degraphmalizeJob(action, callback));
+            // from now on older versions of the document in progress are stopped
+            inFlight.started(id);
+            final Future<DegraphmalizeResult> result;
+            try
+            {
+                result = scheduler.submit(id.index(), degraphmalizeJob(action, callback));
+            }
+            catch (RuntimeException e)
+            {
+                inFlight.finished(id);
+                throw e;
+            }
+
+            // a deleted document can be created again, starting at version 1
+            if (requestType == DegraphmalizeRequestType.DELETE)
+                inFlight.forget(id);
+
+            return result;
+        }
+        catch (RuntimeException e)
+        {
+            admission.withdrawn();
+            throw e;
+        }
     }
 
     private Callable<DegraphmalizeResult> degraphmalizeJob(final DegraphmalizeRequest action, final DegraphmalizeCallback callback)
@@ -114,10 +191,15 @@ public class Degraphmalizer implements Degraphmalizr
             @Override
             public DegraphmalizeResult call() throws Exception
             {
+                admission.started();
                 try
                 {
                     final DegraphmalizeRequestType requestType = action.type();
                     callback.started(action);
+
+                    // a newer version arrived while this one waited
+                    inFlight.check(action.id(), InFlight.Stage.QUEUED);
+
                     DegraphmalizeResult result;
                     switch (requestType)
                     {
@@ -130,22 +212,7 @@ public class Degraphmalizer implements Degraphmalizr
                         default:
                             throw new UnreachableCodeReachedException();
                     }
-                    // collect all recompute states.
-                    for (Future<RecomputeResult> recomputeResultFuture : result.results())
-                    {
-                        try {
-                            recomputeResultFuture.get();
-                        } catch (ExecutionException e) {
-                            if (e.getCause() instanceof DegraphmalizerException) {
-                                DegraphmalizerException de = (DegraphmalizerException)(e.getCause());
-                                if (de.severity()== DegraphmalizerException.Severity.ERROR) {
-                                    throw(de);
-                                }
-                            } else {
-                                throw e;
-                            }
-                        }
-                    }
+                    checkRecomputes(result);
                     callback.complete(result);
                     return result;
                 } catch (final DegraphmalizerException e)
@@ -158,10 +225,185 @@ public class Degraphmalizer implements Degraphmalizr
                     callback.failed(we);
                     throw we;
                 }
+                finally
+                {
+                    inFlight.finished(action.id());
+                    admission.finished();
+                }
+            }
+        };
+    }
+
+    // collect all recompute states, errors fail the request
+    private void checkRecomputes(DegraphmalizeResult result) throws Exception
+    {
+        for (Future<RecomputeResult> recomputeResultFuture : result.results())
+        {
+            try {
+                recomputeResultFuture.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof DegraphmalizerException) {
+                    DegraphmalizerException de = (DegraphmalizerException)(e.getCause());
+                    if (de.severity()== DegraphmalizerException.Severity.ERROR) {
+                        throw(de);
+                    }
+                } else {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static boolean isScoped(DegraphmalizeRequestScope scope)
+    {
+        return scope == DegraphmalizeRequestScope.INDEX || scope == DegraphmalizeRequestScope.TYPE_IN_INDEX;
+    }
+
+    /**
+     * One slice of a request for an index or type: the next {@code sliceSize} documents, each done like a request
+     * for that document. The graph is changed here, the recomputes are done by the workers of the scoped runs.
+     */
+    private Runnable scopedSlice(final ScopedRuns.Run run)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final long start = System.currentTimeMillis();
+                int documents = 0;
+                try
+                {
+                    scopedRuns.running(run);
+                    if (run.vertices == null)
+                        log.info("Processing {} request for {} scope {}", new Object[]{run.action.type(), run.action.id(), run.action.scope()});
+
+                    if (run.page.isEmpty())
+                        scopedRuns.readPage(run, scopedVertices, objectMapper);
+
+                    if (run.page.isEmpty())
+                        run.exhausted = true;
+
+                    while (documents < scopedRuns.sliceSize() && !run.page.isEmpty() && !run.stopped() && scopedRuns.acquire(run))
+                    {
+                        final ID id = run.page.removeFirst();
+                        documents++;
+                        run.position++;
+                        scopedDocument(run, id);
+                    }
+                }
+                catch (Exception e)
+                {
+                    log.warn("Run for " + run.action.id() + " failed", e);
+                    run.fail(e);
+                }
+                scopedRuns.sliceDone(run, documents, start);
             }
         };
     }
 
+    // change the graph for one document of a run, and hand its recomputes to a worker
+    private void scopedDocument(ScopedRuns.Run run, ID id)
+    {
+        final List<RecomputeRequest> requests;
+        try
+        {
+            // the version may have changed since the page was read, or the document is gone
+            final Vertex vertex = GraphUtilities.resolveVertex(objectMapper, graph, id);
+            if (vertex == null)
+            {
+                run.skipped.incrementAndGet();
+                scopedRuns.release(run);
+                return;
+            }
+
+            final DegraphmalizeRequest request = createDocumentRequestForVertex(run.action.type(), vertex);
+            switch (run.action.type())
+            {
+                case UPDATE:
+                    requests = affectedByUpdate(request);
+                    break;
+                case DELETE:
+                    requests = affectedByDelete(request);
+                    break;
+                default:
+                    throw new UnreachableCodeReachedException();
+            }
+        }
+        catch (Exception e)
+        {
+            // one document doesn't stop the run
+            count(run, e);
+            scopedRuns.release(run);
+            return;
+        }
+
+        // the recomputes count from now on, while they wait for a worker as well
+        final List<RecomputeSession> sessions = RecomputeSession.sessionsFor(requests);
+        final Admission.Recomputes counted = admission.recomputing(sessions.size());
+        scopedRuns.recompute(run, counted, scopedRecompute(run, sessions, counted));
+    }
+
+    private Runnable scopedRecompute(final ScopedRuns.Run run, final List<RecomputeSession> sessions, final Admission.Recomputes counted)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (RecomputeSession session : sessions)
+                {
+                    try
+                    {
+                        for (Future<RecomputeResult> result : recomputer.recompute(session, new RecomputeCallback() {}))
+                            count(run, result);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // the whole session failed, so every request in it failed
+                        log.warn("Recompute of " + session.root().id() + " failed", e);
+                        run.failed.addAndGet(session.requests().size());
+                    }
+                    finally
+                    {
+                        counted.done();
+                    }
+                }
+            }
+        };
+    }
+
+    // count a recompute of a run, like checkRecomputes would judge it
+    private void count(ScopedRuns.Run run, Future<RecomputeResult> result)
+    {
+        try
+        {
+            result.get();
+            run.recomputed.incrementAndGet();
+        }
+        catch (ExecutionException e)
+        {
+            count(run, e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            run.failed.incrementAndGet();
+        }
+    }
+
+    private void count(ScopedRuns.Run run, Throwable t)
+    {
+        if (t instanceof DegraphmalizerException && ((DegraphmalizerException) t).severity() != DegraphmalizerException.Severity.ERROR)
+        {
+            log.debug("Skipped a document of run for {}: {}", run.action.id(), t.getMessage());
+            run.skipped.incrementAndGet();
+            return;
+        }
+        log.warn("Failed a document of run for " + run.action.id(), t);
+        run.failed.incrementAndGet();
+    }
+
     private boolean inList(RecomputeRequest r, List<RecomputeRequest> rs)
     {
         for(RecomputeRequest q : rs)
@@ -192,17 +434,10 @@ public class Degraphmalizer implements Degraphmalizr
     {
         log.info("Processing update request for id {} scope {} ", action.id(), action.scope());
 
+        // a whole index or type is done by the scoped runs
         List<Future<RecomputeResult>> results;
         switch (action.scope())
         {
-            case INDEX:
-                Iterable<Vertex> vertexIterator = GraphUtilities.findVerticesInIndex(graph, action.id().index());
-                results = updateDocuments(vertexIterator, action);
-                break;
-            case TYPE_IN_INDEX:
-                Iterable<Vertex> vertexIterator2 = GraphUtilities.findVerticesInIndex(graph, action.id().index(), action.id().type());
-                results = updateDocuments(vertexIterator2, action);
-                break;
             case DOCUMENT_ANY_VERSION:
                 Vertex vertex = GraphUtilities.resolveVertex(objectMapper, graph, action.id());
                 results = updateDocument(createDocumentRequestForVertex(action.type(), vertex));
@@ -216,25 +451,34 @@ public class Degraphmalizer implements Degraphmalizr
         return new DegraphmalizeResult(action.id(), results);
     }
 
-    private List<Future<RecomputeResult>> updateDocuments(Iterable<Vertex> iterator, DegraphmalizeRequest action) throws ExecutionException, InterruptedException, IOException
+    private List<Future<RecomputeResult>> updateDocument(DegraphmalizeRequest action) throws IOException, ExecutionException, InterruptedException
     {
-        final List<Future<RecomputeResult>> results = new ArrayList<Future<RecomputeResult>>();
-        for (Vertex vertex : iterator)
-        {
-            results.addAll(updateDocument(createDocumentRequestForVertex(action.type(), vertex)));
-        }
-        return results;
+        return recomputeAffectedDocuments(affectedByUpdate(action));
     }
 
-    private List<Future<RecomputeResult>> updateDocument(DegraphmalizeRequest action) throws IOException, ExecutionException, InterruptedException
+    /**
+     * Update the graph for a document.
+     *
+     * @return the documents to recompute, connected to the document before or after the update
+     */
+    private List<RecomputeRequest> affectedByUpdate(DegraphmalizeRequest action) throws IOException, ExecutionException, InterruptedException
     {
         if (!action.scope().equals(DOCUMENT))
         {
             throw new InvalidRequest("Action : " + action.type() + " is not valid for a scope of " + action.scope());
         }
 
-        // Get document from elasticsearch
-        final JsonNode jsonNode = getDocument(action.id());
+        // use the document sent with the request, or get it from elasticsearch
+        final JsonNode jsonNode;
+        if (action.source() != null)
+        {
+            log.debug("Using the source sent with the request for {}", action.id());
+            jsonNode = action.source();
+        }
+        else
+            jsonNode = getDocument(action.id());
+
+        inFlight.check(action.id(), InFlight.Stage.FETCHED);
 
         // couldn't find source document, so we are done
         if (jsonNode == null)
@@ -256,7 +500,7 @@ public class Degraphmalizer implements Degraphmalizr
                     post.add(r);
 
             logRecomputes(action.id(), post);
-            return recomputeAffectedDocuments(post);
+            return post;
         }
     }
 
@@ -294,17 +538,10 @@ public class Degraphmalizer implements Degraphmalizr
     {
         log.info("Processing delete request for id {} scope {} ", action.id(), action.scope());
 
+        // a whole index or type is done by the scoped runs
         List<Future<RecomputeResult>> results;
         switch (action.scope())
         {
-            case INDEX:
-                Iterable<Vertex> vertexIterator = GraphUtilities.findVerticesInIndex(graph, action.id().index());
-                results = deleteDocuments(vertexIterator, action);
-                break;
-            case TYPE_IN_INDEX:
-                Iterable<Vertex> vertexIterator2 = GraphUtilities.findVerticesInIndex(graph, action.id().index(), action.id().type());
-                results = deleteDocuments(vertexIterator2, action);
-                break;
             case DOCUMENT_ANY_VERSION:
                 Vertex vertex = GraphUtilities.resolveVertex(objectMapper, graph, action.id());
                 results = deleteDocument(createDocumentRequestForVertex(action.type(), vertex));
@@ -318,17 +555,17 @@ public class Degraphmalizer implements Degraphmalizr
         return new DegraphmalizeResult(action.id(), results);
     }
 
-    private List<Future<RecomputeResult>> deleteDocuments(Iterable<Vertex> iterator, DegraphmalizeRequest action) throws ExecutionException, InterruptedException
+    private List<Future<RecomputeResult>> deleteDocument(DegraphmalizeRequest action) throws ExecutionException, InterruptedException
     {
-        final List<Future<RecomputeResult>> results = new ArrayList<Future<RecomputeResult>>();
-        for (Vertex vertex : iterator)
-        {
-            results.addAll(deleteDocument(createDocumentRequestForVertex(action.type(), vertex)));
-        }
-        return results;
+        return recomputeAffectedDocuments(affectedByDelete(action));
     }
 
-    private List<Future<RecomputeResult>> deleteDocument(DegraphmalizeRequest action) throws ExecutionException, InterruptedException
+    /**
+     * Remove a document from the graph.
+     *
+     * @return the documents to recompute, that were connected to the document
+     */
+    private List<RecomputeRequest> affectedByDelete(DegraphmalizeRequest action)
     {
         if (!action.scope().equals(DOCUMENT))
         {
@@ -345,7 +582,7 @@ public class Degraphmalizer implements Degraphmalizr
 
         logRecomputes(action.id(), recomputeRequests);
 
-        return recomputeAffectedDocuments(recomputeRequests);
+        return recomputeRequests;
     }
 
     private List<RecomputeRequest> removeDeletedVerticesFromRequest(final List<ID> deleted, List<RecomputeRequest> requests)
@@ -410,15 +647,68 @@ public class Degraphmalizer implements Degraphmalizr
 
     private List<Future<RecomputeResult>> recomputeAffectedDocuments(List<RecomputeRequest> recomputeRequests) throws InterruptedException
     {
-        // create Callable from the actions
+        // requests for the same root share their walks, so recompute them together
+        final List<RecomputeSession> sessions = RecomputeSession.sessionsFor(recomputeRequests);
+
+        // create Callable from the sessions
         // TODO call 'recompute started' for each action to update the status
-        final ArrayList<Callable<RecomputeResult>> jobs = new ArrayList<Callable<RecomputeResult>>();
-        for (RecomputeRequest r : recomputeRequests)
-            jobs.add(recomputeDocument(r));
+        final ArrayList<Callable<List<Future<RecomputeResult>>>> jobs = new ArrayList<Callable<List<Future<RecomputeResult>>>>();
+        for (RecomputeSession s : sessions)
+            jobs.add(recomputeDocuments(s));
 
         // recompute all affected documents and wait for results
         // TODO call 'recompute finished' for each action
-        return recomputeQueue.invokeAll(jobs);
+        final List<Future<List<Future<RecomputeResult>>>> sessionResults;
+        final Admission.Recomputes counted = admission.recomputing(jobs.size());
+        try
+        {
+            sessionResults = recomputeQueue.invokeAll(counted(jobs, counted));
+        }
+        finally
+        {
+            // the jobs that didn't run when invokeAll was interrupted
+            counted.abandon();
+        }
+
+        final List<Future<RecomputeResult>> results = new ArrayList<Future<RecomputeResult>>();
+        for (int i = 0; i < sessions.size(); i++)
+        {
+            try
+            {
+                results.addAll(sessionResults.get(i).get());
+            }
+            catch (ExecutionException e)
+            {
+                // the whole session failed, so every request in it failed
+                for (RecomputeRequest ignored : sessions.get(i).requests())
+                    results.add(Futures.<RecomputeResult>immediateFailedFuture(e.getCause()));
+            }
+        }
+
+        return results;
+    }
+
+    // every job is counted as recomputing until it is done
+    private static List<Callable<List<Future<RecomputeResult>>>> counted(List<Callable<List<Future<RecomputeResult>>>> jobs, final Admission.Recomputes counted)
+    {
+        final List<Callable<List<Future<RecomputeResult>>>> wrapped = new ArrayList<Callable<List<Future<RecomputeResult>>>>(jobs.size());
+        for (final Callable<List<Future<RecomputeResult>>> job : jobs)
+            wrapped.add(new Callable<List<Future<RecomputeResult>>>()
+            {
+                @Override
+                public List<Future<RecomputeResult>> call() throws Exception
+                {
+                    try
+                    {
+                        return job.call();
+                    }
+                    finally
+                    {
+                        counted.done();
+                    }
+                }
+            });
+        return wrapped;
     }
 
     private ArrayList<RecomputeRequest> determineRecomputeActions(DegraphmalizeRequest action)
@@ -477,23 +767,23 @@ public class Degraphmalizer implements Degraphmalizr
 
     /**
      * This procuedure actually performes the recompute of individual documents. It performs transformation, applies walks
-     * and inserts/updates the target document.
+     * and inserts/updates the target documents.
      *
-     * @param action represents the source document and recompute configuration.
-     * @return the ES IndexRespons to the insert of the target document.
+     * @param session represents the source document and the recompute configurations.
+     * @return the results of the recompute of each request in the session.
      */
-    private Callable<RecomputeResult> recomputeDocument(final RecomputeRequest action)
+    private Callable<List<Future<RecomputeResult>>> recomputeDocuments(final RecomputeSession session)
     {
-        return new Callable<RecomputeResult>()
+        return new Callable<List<Future<RecomputeResult>>>()
         {
             @Override
-            public RecomputeResult call()
+            public List<Future<RecomputeResult>> call()
             {
                 // TODO pass callback
                 final RecomputeCallback cb = new RecomputeCallback()
                 {
                 };
-                return recomputer.recompute(action, cb);
+                return recomputer.recompute(session, cb);
             }
         };
     }
@@ -0,0 +1,336 @@
+package dgm.degraphmalizr;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dgm.exceptions.Overloaded;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Deficit round robin over the source indices of the degraphmalize queue.
+ * <p/>
+ * Every source index has a queue of its own. The degraphmalize thread gets one task at a time: the indices with work
+ * take turns, and in its turn an index may run as many tasks as its weight (default {@code 1}). So an index with a
+ * large backlog, like a reindex, only delays the other indices by its share instead of by its whole backlog.
+ * <p/>
+ * An index has at most {@code maxInFlightPerIndex} tasks waiting or running, more are refused with
+ * {@link Overloaded}. Slices of a request that is already running continue regardless (see {@link ScopedRuns}).
+ */
+public class FairScheduler implements FairSchedulerMBean
+{
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_INDEX = 500;
+
+    // weight of the last task in the average times
+    private static final double ALPHA = 0.1;
+
+    private final ExecutorService degraphmalizeQueue;
+
+    private volatile int maxInFlightPerIndex;
+    private final ConcurrentMap<String, Integer> weights = new ConcurrentHashMap<String, Integer>();
+
+    // all below is guarded by this
+    private final Map<String, Lane> lanes = new TreeMap<String, Lane>();
+
+    // the lanes with queued tasks, in the order of their turns
+    private final LinkedList<Lane> active = new LinkedList<Lane>();
+
+    // a task has been handed to the degraphmalize queue and hasn't finished
+    private boolean dispatched = false;
+
+    /**
+     * The queue and numbers of one source index.
+     */
+    private final class Lane
+    {
+        final String index;
+        final LinkedList<Task> queue = new LinkedList<Task>();
+        int deficit = 0;
+
+        int running = 0;
+        long completed = 0;
+        long refused = 0;
+        double waitInMillis = 0;
+        double runInMillis = 0;
+
+        Lane(String index)
+        {
+            this.index = index;
+        }
+
+        int weight()
+        {
+            final Integer weight = weights.get(index);
+            return weight == null ? 1 : weight;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s: weight %d, %d queued, %d running, %d completed, %d refused, waited %.0f ms, ran %.0f ms",
+                    index, weight(), queue.size(), running, completed, refused, waitInMillis, runInMillis);
+        }
+    }
+
+    private final class Task implements Runnable
+    {
+        final Lane lane;
+        final Runnable work;
+        final long queuedAt = System.currentTimeMillis();
+
+        Task(Lane lane, Runnable work)
+        {
+            this.lane = lane;
+            this.work = work;
+        }
+
+        @Override
+        public void run()
+        {
+            final long start = System.currentTimeMillis();
+            try
+            {
+                work.run();
+            }
+            finally
+            {
+                finished(this, start);
+            }
+        }
+    }
+
+    public FairScheduler(ExecutorService degraphmalizeQueue, int maxInFlightPerIndex, Map<String, Integer> weights)
+    {
+        this.degraphmalizeQueue = degraphmalizeQueue;
+        this.maxInFlightPerIndex = maxInFlightPerIndex;
+        for (Map.Entry<String, Integer> weight : weights.entrySet())
+            setWeight(weight.getKey(), weight.getValue());
+    }
+
+    /**
+     * Queue a task for a source index.
+     *
+     * @throws Overloaded when the index has {@code maxInFlightPerIndex} tasks waiting or running
+     */
+    public <T> Future<T> submit(String index, Callable<T> task)
+    {
+        final FutureTask<T> future = new FutureTask<T>(task);
+        enqueue(index, future, true);
+        return future;
+    }
+
+    /**
+     * Queue a task for a source index.
+     *
+     * @throws Overloaded when the index has {@code maxInFlightPerIndex} tasks waiting or running
+     */
+    public void execute(String index, Runnable task)
+    {
+        enqueue(index, task, true);
+    }
+
+    /**
+     * Queue the next part of work that was already accepted, it is never refused.
+     */
+    public void resume(String index, Runnable task)
+    {
+        enqueue(index, task, false);
+    }
+
+    private void enqueue(String index, Runnable work, boolean quota)
+    {
+        synchronized (this)
+        {
+            Lane lane = lanes.get(index);
+            if (lane == null)
+            {
+                lane = new Lane(index);
+                lanes.put(index, lane);
+            }
+
+            if (quota && lane.queue.size() + lane.running >= maxInFlightPerIndex)
+            {
+                lane.refused++;
+                throw new Overloaded(retryAfterInSeconds(lane));
+            }
+
+            if (lane.queue.isEmpty())
+                active.addLast(lane);
+            lane.queue.addLast(new Task(lane, work));
+        }
+        dispatch();
+    }
+
+    // hand the next task to the degraphmalize thread, if it is free
+    private void dispatch()
+    {
+        final Task task;
+        synchronized (this)
+        {
+            if (dispatched)
+                return;
+
+            task = next();
+            if (task == null)
+                return;
+
+            dispatched = true;
+            task.lane.running++;
+        }
+
+        try
+        {
+            degraphmalizeQueue.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // shutting down, nothing will run anymore
+            synchronized (this)
+            {
+                task.lane.running--;
+                dispatched = false;
+            }
+        }
+    }
+
+    // the next task by deficit round robin, while synchronized
+    private Task next()
+    {
+        if (active.isEmpty())
+            return null;
+
+        final Lane lane = active.getFirst();
+
+        // a new turn of this lane
+        if (lane.deficit < 1)
+            lane.deficit += Math.max(1, lane.weight());
+
+        final Task task = lane.queue.removeFirst();
+        lane.deficit--;
+
+        if (lane.queue.isEmpty())
+        {
+            // an index without work doesn't save up for later
+            lane.deficit = 0;
+            active.removeFirst();
+        }
+        else if (lane.deficit < 1)
+            active.addLast(active.removeFirst());
+
+        return task;
+    }
+
+    private void finished(Task task, long start)
+    {
+        final long now = System.currentTimeMillis();
+        synchronized (this)
+        {
+            final Lane lane = task.lane;
+            lane.running--;
+            lane.completed++;
+            lane.waitInMillis = average(lane.waitInMillis, start - task.queuedAt, lane.completed);
+            lane.runInMillis = average(lane.runInMillis, now - start, lane.completed);
+            dispatched = false;
+        }
+        dispatch();
+    }
+
+    private static double average(double average, long value, long count)
+    {
+        if (count == 1)
+            return value;
+        return ALPHA * value + (1 - ALPHA) * average;
+    }
+
+    // time to work through the queue of a lane at its share, while synchronized
+    private int retryAfterInSeconds(Lane lane)
+    {
+        final double perTask = Math.max(1, lane.runInMillis) * Math.max(1, active.size());
+        final double seconds = Math.ceil(lane.queue.size() * perTask / Math.max(1, lane.weight()) / 1000);
+        return (int) Math.max(1, Math.min(Admission.MAX_RETRY_AFTER_IN_SECONDS, seconds));
+    }
+
+    /**
+     * The numbers of each source index, as JSON.
+     */
+    public synchronized ObjectNode render(ObjectMapper om)
+    {
+        final ObjectNode indices = om.createObjectNode();
+        for (Lane lane : lanes.values())
+        {
+            final ObjectNode node = indices.putObject(lane.index);
+            node.put("weight", lane.weight());
+            node.put("queued", lane.queue.size());
+            node.put("running", lane.running);
+            node.put("completed", lane.completed);
+            node.put("refused", lane.refused);
+            node.put("waitInMillis", Math.round(lane.waitInMillis));
+            node.put("runInMillis", Math.round(lane.runInMillis));
+        }
+        return indices;
+    }
+
+    @Override
+    public synchronized String[] getIndices()
+    {
+        final String[] lines = new String[lanes.size()];
+        int i = 0;
+        for (Lane lane : lanes.values())
+            lines[i++] = lane.toString();
+        return lines;
+    }
+
+    @Override
+    public int getMaxInFlightPerIndex()
+    {
+        return maxInFlightPerIndex;
+    }
+
+    @Override
+    public void setMaxInFlightPerIndex(int maxInFlightPerIndex)
+    {
+        this.maxInFlightPerIndex = maxInFlightPerIndex;
+    }
+
+    @Override
+    public int getWeight(String index)
+    {
+        final Integer weight = weights.get(index);
+        return weight == null ? 1 : weight;
+    }
+
+    @Override
+    public void setWeight(String index, int weight)
+    {
+        weights.put(index, Math.max(1, weight));
+    }
+
+    /**
+     * Parse weights like {@code books=3,news=2}.
+     */
+    public static Map<String, Integer> parseWeights(String weights)
+    {
+        final Map<String, Integer> parsed = new HashMap<String, Integer>();
+        if (weights == null)
+            return parsed;
+
+        for (String weight : weights.split(","))
+        {
+            final String[] kv = weight.trim().split("=");
+            if (kv.length != 2)
+            {
+                if (!weight.trim().isEmpty())
+                    throw new IllegalArgumentException("Weight should look like index=weight, not " + weight);
+                continue;
+            }
+            parsed.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,23 @@
+package dgm.degraphmalizr;
+
+/**
+ * Queues and weights of the source indices, see {@link FairScheduler}.
+ */
+public interface FairSchedulerMBean
+{
+    /**
+     * One line per source index: weight, queued, running, completed, refused, and the average wait and run time.
+     */
+    String[] getIndices();
+
+    /**
+     * Tasks of one source index waiting or running before more are refused.
+     */
+    int getMaxInFlightPerIndex();
+
+    void setMaxInFlightPerIndex(int maxInFlightPerIndex);
+
+    int getWeight(String index);
+
+    void setWeight(String index, int weight);
+}
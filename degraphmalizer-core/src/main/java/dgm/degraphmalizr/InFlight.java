@@ -0,0 +1,231 @@
+package dgm.degraphmalizr;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.CacheBuilder;
+import dgm.ID;
+import dgm.exceptions.Superseded;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The degraphmalize requests and recomputes in progress, by document.
+ * <p/>
+ * When version 7 of a document arrives while version 6 is still being degraphmalized or recomputed, the work on
+ * version 6 is wasted: it is overwritten, or fails later because it expired. So the newest version of each document
+ * in progress is kept here, and the work on older versions checks it at the boundaries of its stages and stops with
+ * {@link Superseded}. Requests without a version are never stopped.
+ * <p/>
+ * The newest version seen of the last {@code maxVersions} documents is kept as well, so a request for an older version
+ * than one that already arrived is refused before it is queued, instead of failing with an expired version after
+ * fetching the document. The refusal only looks at the versions kept here, it runs on the thread that received the
+ * request. A document that is deleted is forgotten, because when it is created again it starts at version 1.
+ */
+public class InFlight implements InFlightMBean
+{
+    public static final int DEFAULT_MAX_VERSIONS = 100000;
+
+    public enum Stage { INTAKE, QUEUED, FETCHED, REDUCE, WRITE }
+
+    // the symbolic id of a document to its newest version, while synchronized
+    private final Map<ID, Document> documents = new HashMap<ID, Document>();
+
+    // the symbolic id of a document to the newest version that arrived, bounded
+    private final ConcurrentMap<ID, Long> seen;
+
+    private final Map<Stage, AtomicLong> cancelled = new EnumMap<Stage, AtomicLong>(Stage.class);
+
+    private static final class Document
+    {
+        long latest = 0;
+
+        // requests and recomputes of this document in progress
+        int active = 0;
+    }
+
+    public InFlight()
+    {
+        this(DEFAULT_MAX_VERSIONS);
+    }
+
+    public InFlight(int maxVersions)
+    {
+        seen = CacheBuilder.newBuilder()
+                .maximumSize(maxVersions)
+                .expireAfterWrite(1, TimeUnit.HOURS)
+                .<ID, Long>build().asMap();
+
+        for (Stage stage : Stage.values())
+            cancelled.put(stage, new AtomicLong());
+    }
+
+    /**
+     * A request for a version of a document arrived, refuse it when a newer version arrived before. The same version
+     * again, like a retry, is let through.
+     *
+     * @throws Superseded when a newer version of the document arrived
+     */
+    public void intake(ID id)
+    {
+        if (id.version() <= 0)
+            return;
+
+        final ID symbolic = id.version(0);
+        while (true)
+        {
+            final Long latest = seen.get(symbolic);
+            if (latest == null)
+            {
+                if (seen.putIfAbsent(symbolic, id.version()) == null)
+                    return;
+                continue;
+            }
+
+            if (id.version() < latest)
+            {
+                cancelled.get(Stage.INTAKE).incrementAndGet();
+                throw new Superseded(id, latest);
+            }
+
+            if (id.version() == latest || seen.replace(symbolic, latest, id.version()))
+                return;
+        }
+    }
+
+    /**
+     * A delete of a document was accepted, so it can be created again starting at version 1.
+     */
+    public void forget(ID id)
+    {
+        seen.remove(id.version(0));
+    }
+
+    /**
+     * Work on a version of a document started, it must be {@link #finished} afterwards.
+     */
+    public void started(ID id)
+    {
+        if (id.version() <= 0)
+            return;
+
+        final ID symbolic = id.version(0);
+        synchronized (documents)
+        {
+            Document document = documents.get(symbolic);
+            if (document == null)
+            {
+                document = new Document();
+                documents.put(symbolic, document);
+            }
+            document.latest = Math.max(document.latest, id.version());
+            document.active++;
+        }
+    }
+
+    public void finished(ID id)
+    {
+        if (id.version() <= 0)
+            return;
+
+        final ID symbolic = id.version(0);
+        synchronized (documents)
+        {
+            final Document document = documents.get(symbolic);
+            if (document != null && --document.active <= 0)
+                documents.remove(symbolic);
+        }
+    }
+
+    /**
+     * The newest version of the document in progress, {@code 0} if none.
+     */
+    public long latest(ID id)
+    {
+        synchronized (documents)
+        {
+            final Document document = documents.get(id.version(0));
+            return document == null ? 0 : document.latest;
+        }
+    }
+
+    /**
+     * Stop the work on a version of a document when a newer version arrived.
+     *
+     * @throws Superseded when there is a newer version in progress
+     */
+    public void check(ID id, Stage stage)
+    {
+        if (id.version() <= 0)
+            return;
+
+        final long latest = latest(id);
+        if (latest > id.version())
+        {
+            cancelled.get(stage).incrementAndGet();
+            throw new Superseded(id, latest);
+        }
+    }
+
+    /**
+     * The stopped work of each stage, as JSON.
+     */
+    public ObjectNode render(ObjectMapper om)
+    {
+        final ObjectNode node = om.createObjectNode();
+        node.put("documents", getDocuments());
+        node.put("versions", getVersions());
+        for (Stage stage : Stage.values())
+            node.put(stage.name().toLowerCase(), cancelled.get(stage).get());
+        return node;
+    }
+
+    @Override
+    public int getDocuments()
+    {
+        synchronized (documents)
+        {
+            return documents.size();
+        }
+    }
+
+    @Override
+    public int getVersions()
+    {
+        return seen.size();
+    }
+
+    @Override
+    public long getRefusedAtIntake()
+    {
+        return cancelled.get(Stage.INTAKE).get();
+    }
+
+    @Override
+    public long getCancelledQueued()
+    {
+        return cancelled.get(Stage.QUEUED).get();
+    }
+
+    @Override
+    public long getCancelledAfterFetch()
+    {
+        return cancelled.get(Stage.FETCHED).get();
+    }
+
+    @Override
+    public long getCancelledBeforeReduce()
+    {
+        return cancelled.get(Stage.REDUCE).get();
+    }
+
+    @Override
+    public long getCancelledBeforeWrite()
+    {
+        return cancelled.get(Stage.WRITE).get();
+    }
+}
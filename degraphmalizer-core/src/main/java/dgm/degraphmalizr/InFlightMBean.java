@@ -0,0 +1,42 @@
+package dgm.degraphmalizr;
+
+/**
+ * Documents in progress, and the requests refused or stopped because a newer version arrived, see {@link InFlight}.
+ */
+public interface InFlightMBean
+{
+    /**
+     * Documents with a request or recompute in progress.
+     */
+    int getDocuments();
+
+    /**
+     * Documents of which the newest version that arrived is kept.
+     */
+    int getVersions();
+
+    /**
+     * Requests refused because a newer version had arrived already.
+     */
+    long getRefusedAtIntake();
+
+    /**
+     * Requests stopped before they started.
+     */
+    long getCancelledQueued();
+
+    /**
+     * Requests and recomputes stopped after fetching their source document.
+     */
+    long getCancelledAfterFetch();
+
+    /**
+     * Recomputes stopped before the walks were reduced.
+     */
+    long getCancelledBeforeReduce();
+
+    /**
+     * Recomputes stopped before their target documents were written.
+     */
+    long getCancelledBeforeWrite();
+}
@@ -0,0 +1,299 @@
+package dgm.degraphmalizr;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Provider;
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.Vertex;
+import dgm.GraphUtilities;
+import dgm.ID;
+import dgm.Subgraph;
+import dgm.SubgraphManager;
+import dgm.configuration.Configuration;
+import dgm.configuration.Configurations;
+import dgm.configuration.IndexConfig;
+import dgm.configuration.TypeConfig;
+import dgm.degraphmalizr.recompute.RecomputeCallback;
+import dgm.degraphmalizr.recompute.RecomputeRequest;
+import dgm.degraphmalizr.recompute.RecomputeResult;
+import dgm.degraphmalizr.recompute.RecomputeSession;
+import dgm.degraphmalizr.recompute.Recomputer;
+import dgm.exceptions.DegraphmalizerException;
+import dgm.graphs.Subgraphs;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.MatchAllQueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuild the graph and all target documents from the source indices, while the degraphmalizer doesn't serve
+ * requests.
+ * <p/>
+ * Sending every document through the degraphmalizer recomputes all documents connected to it, so a document in a
+ * large connected part of the graph is recomputed once for every document in that part. A rebuild works in two
+ * phases instead:
+ * <ol>
+ * <li>every document of the configured source indices is read and its subgraph committed, without recomputing
+ * anything;</li>
+ * <li>every vertex of the source indices is recomputed exactly once for each of its configurations, by
+ * {@code parallelism} threads, writing the target documents of a vertex in one bulk request.</li>
+ * </ol>
+ * So the work is linear in the number of documents. Targets whose inputs are unchanged are not rewritten, so an
+ * interrupted rebuild can simply be run again.
+ */
+public class Rebuild
+{
+    private static final Logger log = LoggerFactory.getLogger(Rebuild.class);
+
+    // a scroll is kept open this long between pages
+    private static final TimeValue SCROLL_TIMEOUT = TimeValue.timeValueMinutes(5);
+
+    // log progress after this many documents
+    private static final int PROGRESS_EVERY = 10000;
+
+    private final Client client;
+    private final Graph graph;
+    private final SubgraphManager subgraphManager;
+    private final Recomputer recomputer;
+    private final Provider<Configuration> cfgProvider;
+    private final ObjectMapper objectMapper;
+
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong vertices = new AtomicLong();
+    private final AtomicLong recomputed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    @Inject
+    public Rebuild(Client client, Graph graph, SubgraphManager subgraphManager, Recomputer recomputer,
+                   Provider<Configuration> cfgProvider, ObjectMapper objectMapper)
+    {
+        this.client = client;
+        this.graph = graph;
+        this.subgraphManager = subgraphManager;
+        this.recomputer = recomputer;
+        this.cfgProvider = cfgProvider;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Run both phases.
+     *
+     * @param pageSize documents read from elasticsearch at a time, per shard
+     * @param parallelism vertices recomputed at the same time
+     * @return whether every document and recompute succeeded or was skipped
+     */
+    public boolean run(int pageSize, int parallelism) throws InterruptedException
+    {
+        final Configuration cfg = cfgProvider.get();
+        final Map<String, Set<String>> sources = sourcesOf(cfg);
+
+        final long start = System.currentTimeMillis();
+        log.info("Rebuilding the graph from source indices {}", sources.keySet());
+        for (Map.Entry<String, Set<String>> source : sources.entrySet())
+            buildGraph(cfg, source.getKey(), source.getValue(), pageSize);
+        log.info("Built the graph in {} ms: {} documents, {} subgraphs committed, {} failed",
+                new Object[]{System.currentTimeMillis() - start, documents.get(), committed.get(), failed.get()});
+
+        final long recomputeStart = System.currentTimeMillis();
+        recomputeAll(cfg, sources.keySet(), Math.max(1, parallelism));
+        log.info("Recomputed the target documents in {} ms: {} vertices, {} recomputed, {} skipped, {} failed",
+                new Object[]{System.currentTimeMillis() - recomputeStart, vertices.get(), recomputed.get(), skipped.get(), failed.get()});
+
+        return failed.get() == 0;
+    }
+
+    // the source types of each configured source index, an empty set for all types
+    private static Map<String, Set<String>> sourcesOf(Configuration cfg)
+    {
+        final Map<String, Set<String>> sources = new TreeMap<String, Set<String>>();
+        final Set<String> allTypes = new HashSet<String>();
+        for (IndexConfig i : cfg.indices().values())
+            for (TypeConfig t : i.types().values())
+            {
+                Set<String> types = sources.get(t.sourceIndex());
+                if (types == null)
+                {
+                    types = new TreeSet<String>();
+                    sources.put(t.sourceIndex(), types);
+                }
+
+                if (t.sourceType() == null)
+                    allTypes.add(t.sourceIndex());
+                else
+                    types.add(t.sourceType());
+            }
+
+        for (String index : allTypes)
+            sources.get(index).clear();
+
+        return sources;
+    }
+
+    /**
+     * Phase 1: commit the subgraph of every document of a source index, a page at a time.
+     */
+    private void buildGraph(Configuration cfg, String index, Set<String> types, int pageSize)
+    {
+        log.info("Reading the documents of {} {}", index, types.isEmpty() ? "" : types);
+
+        SearchResponse response = client.prepareSearch(index)
+                .setTypes(types.toArray(new String[types.size()]))
+                .setSearchType(SearchType.SCAN)
+                .setScroll(SCROLL_TIMEOUT)
+                .setQuery(new MatchAllQueryBuilder())
+                .setSize(pageSize)
+                .setVersion(true)
+                .execute().actionGet();
+
+        while (true)
+        {
+            response = client.prepareSearchScroll(response.getScrollId())
+                    .setScroll(SCROLL_TIMEOUT)
+                    .execute().actionGet();
+
+            final SearchHit[] hits = response.getHits().getHits();
+            if (hits.length == 0)
+                break;
+
+            for (SearchHit hit : hits)
+                commit(cfg, hit);
+        }
+    }
+
+    private void commit(Configuration cfg, SearchHit hit)
+    {
+        final ID id = new ID(hit.getIndex(), hit.getType(), hit.getId(), hit.version());
+        if (documents.incrementAndGet() % PROGRESS_EVERY == 0)
+            log.info("Read {} documents, committed {} subgraphs", documents.get(), committed.get());
+
+        try
+        {
+            final JsonNode document = objectMapper.readTree(hit.sourceAsString());
+
+            final List<Subgraph> subgraphs = new ArrayList<Subgraph>();
+            for (TypeConfig c : Configurations.configsFor(cfg, id.index(), id.type()))
+            {
+                final Subgraph sg = c.extract(document);
+                if (sg != null)
+                    subgraphs.add(sg);
+            }
+
+            // no recomputes, every vertex is recomputed once when the graph is complete
+            subgraphManager.commitSubgraph(id, Subgraphs.merge(subgraphs));
+            committed.incrementAndGet();
+        }
+        catch (Exception e)
+        {
+            log.warn("Could not commit the subgraph of " + id, e);
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Phase 2: recompute each vertex of the source indices once, for all its configurations.
+     */
+    private void recomputeAll(Configuration cfg, Set<String> indices, int parallelism) throws InterruptedException
+    {
+        final ExecutorService workers = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+                .setNameFormat("rebuild-%d").build());
+
+        // vertices waiting or recomputing, so the vertices are read as fast as they are recomputed
+        final Semaphore room = new Semaphore(parallelism * 2);
+        try
+        {
+            for (String index : indices)
+            {
+                log.info("Recomputing the documents of {}", index);
+                for (Vertex vertex : GraphUtilities.findVerticesInIndex(graph, index))
+                {
+                    final VID vid = new VID(objectMapper, vertex);
+
+                    // the document isn't in elasticsearch, it is only referred to
+                    if (vid.id().version() == 0)
+                        continue;
+
+                    final Iterable<TypeConfig> configs = Configurations.configsFor(cfg, vid.id().index(), vid.id().type());
+                    final Iterator<TypeConfig> it = configs.iterator();
+                    if (!it.hasNext())
+                        continue;
+
+                    final RecomputeSession session = new RecomputeSession(vid);
+                    while (it.hasNext())
+                        session.add(new RecomputeRequest(vid, it.next()));
+
+                    room.acquire();
+                    workers.execute(recompute(session, room));
+                }
+            }
+        }
+        finally
+        {
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Runnable recompute(final RecomputeSession session, final Semaphore room)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    for (Future<RecomputeResult> result : recomputer.recompute(session, new RecomputeCallback() {}))
+                        count(session, result);
+                }
+                catch (RuntimeException e)
+                {
+                    log.warn("Recompute of " + session.root().id() + " failed", e);
+                    failed.addAndGet(session.requests().size());
+                }
+                finally
+                {
+                    room.release();
+                    if (vertices.incrementAndGet() % PROGRESS_EVERY == 0)
+                        log.info("Recomputed {} vertices", vertices.get());
+                }
+            }
+        };
+    }
+
+    private void count(RecomputeSession session, Future<RecomputeResult> result)
+    {
+        try
+        {
+            result.get();
+            recomputed.incrementAndGet();
+        }
+        catch (ExecutionException e)
+        {
+            final Throwable t = e.getCause();
+            if (t instanceof DegraphmalizerException && ((DegraphmalizerException) t).severity() != DegraphmalizerException.Severity.ERROR)
+            {
+                skipped.incrementAndGet();
+                return;
+            }
+            log.warn("Recompute of " + session.root().id() + " failed", t);
+            failed.incrementAndGet();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            failed.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,569 @@
+package dgm.degraphmalizr;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.tinkerpop.blueprints.Vertex;
+import dgm.GraphUtilities;
+import dgm.ID;
+import dgm.degraphmalizr.degraphmalize.DegraphmalizeCallback;
+import dgm.degraphmalizr.degraphmalize.DegraphmalizeRequest;
+import dgm.degraphmalizr.degraphmalize.DegraphmalizeRequestType;
+import dgm.degraphmalizr.degraphmalize.DegraphmalizeResult;
+import dgm.degraphmalizr.degraphmalize.ScopedResult;
+import dgm.exceptions.Cancelled;
+import dgm.exceptions.DegraphmalizerException;
+import dgm.exceptions.WrappedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Requests for a whole index or type, worked through in slices.
+ * <p/>
+ * A request for an index can take hours, and the degraphmalizer works on one request at a time. So instead of doing
+ * all documents in one go, a run does {@code sliceSize} documents and then goes to the back of the queue of its index
+ * (see {@link FairScheduler}): requests for single documents that arrived in the meantime go first. A run reads the
+ * documents a page at a time and remembers how far it got, so it can be paused, resumed and cancelled (through JMX),
+ * and it can be throttled to {@code maxDocumentsPerSecond}.
+ * <p/>
+ * The graph is changed on the degraphmalize thread, but the recomputes of a run are done by {@code parallelism}
+ * workers. A run has at most {@code parallelism} documents recomputing; when it has no room left its slice ends, and
+ * the next slice is queued when a worker is done. Only the numbers of recomputes that succeeded, were skipped or
+ * failed are kept, and a failed document doesn't stop the run.
+ */
+public class ScopedRuns implements ScopedRunsMBean
+{
+    private static final Logger log = LoggerFactory.getLogger(ScopedRuns.class);
+
+    public static final int DEFAULT_SLICE_SIZE = 100;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    // finished runs shown in JMX
+    static final int FINISHED_KEPT = 20;
+
+    public enum State { WAITING, RUNNING, PAUSED, COMPLETE, CANCELLED, FAILED }
+
+    private final FairScheduler scheduler;
+    private final Admission admission;
+
+    // only waits for the throttle, the slices run on the degraphmalize queue
+    private final ScheduledExecutorService throttle;
+
+    // recomputes the documents of the slices
+    private final ExecutorService workers;
+    private final int parallelism;
+
+    private volatile int sliceSize;
+    private volatile int maxDocumentsPerSecond;
+
+    private final AtomicLong count = new AtomicLong();
+    private final Map<Long, Run> runs = new LinkedHashMap<Long, Run>();
+
+    /**
+     * A request for an index or type, and how far it got.
+     */
+    public final class Run
+    {
+        final long number;
+        final DegraphmalizeRequest action;
+        final DegraphmalizeCallback callback;
+        final SettableFuture<DegraphmalizeResult> future = SettableFuture.create();
+
+        // only used on the degraphmalize thread: the vertices are opened by the first slice, and read a page at a time
+        Iterator<Vertex> vertices = null;
+        final LinkedList<ID> page = new LinkedList<ID>();
+        long read = 0;
+
+        // the checkpoint: the documents before it are done or recomputing
+        volatile long position = 0;
+
+        final AtomicLong recomputed = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+
+        // a permit for each document recomputing
+        final Semaphore permits = new Semaphore(parallelism);
+
+        // a slice is queued or running, otherwise the next worker that is done queues it
+        final AtomicBoolean scheduled = new AtomicBoolean(true);
+        final AtomicBoolean finishing = new AtomicBoolean(false);
+
+        // no more documents will be read
+        volatile boolean exhausted = false;
+        volatile boolean cancelled = false;
+        volatile Throwable error = null;
+
+        volatile State state = State.WAITING;
+        volatile long startedAt = 0;
+        volatile long finishedAt = 0;
+        volatile long nextSliceAt = 0;
+
+        // changed while synchronized on the runs
+        boolean pauseRequested = false;
+        Runnable slice;
+
+        Run(long number, DegraphmalizeRequest action, DegraphmalizeCallback callback)
+        {
+            this.number = number;
+            this.action = action;
+            this.callback = callback;
+        }
+
+        /**
+         * Whether the run should read no more documents.
+         */
+        boolean stopped()
+        {
+            return cancelled || error != null;
+        }
+
+        /**
+         * The run can't go on, it fails once its recomputes are done.
+         */
+        void fail(Throwable t)
+        {
+            if (error == null)
+                error = t;
+        }
+
+        int recomputing()
+        {
+            return parallelism - permits.availablePermits();
+        }
+
+        @Override
+        public String toString()
+        {
+            final long until = finishedAt > 0 ? finishedAt : System.currentTimeMillis();
+            final long took = startedAt > 0 ? until - startedAt : 0;
+            return number + ": " + action.type() + " " + action.scope() + " " + action.id() + " " + state
+                    + ", " + position + " documents in " + took + " ms, " + recomputing() + " recomputing, "
+                    + recomputed.get() + " recomputed, " + skipped.get() + " skipped, " + failed.get() + " failed";
+        }
+    }
+
+    public ScopedRuns(FairScheduler scheduler, Admission admission, int sliceSize, int maxDocumentsPerSecond, int parallelism)
+    {
+        this.scheduler = scheduler;
+        this.admission = admission;
+        this.sliceSize = Math.max(1, sliceSize);
+        this.maxDocumentsPerSecond = Math.max(0, maxDocumentsPerSecond);
+        this.parallelism = Math.max(1, parallelism);
+        this.throttle = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("scoped-throttle").setDaemon(true).build());
+        this.workers = Executors.newFixedThreadPool(this.parallelism, new ThreadFactoryBuilder()
+                .setNameFormat("scoped-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Start a run, its first slice is queued right away.
+     *
+     * @throws dgm.exceptions.Overloaded when the index of the request has too much work already
+     *
+     * @param slice does one slice of the run, see {@link #running}, {@link #readPage}, {@link #acquire},
+     * {@link #recompute} and {@link #sliceDone}
+     */
+    Run start(DegraphmalizeRequest action, DegraphmalizeCallback callback, SliceFactory slice)
+    {
+        final Run run = new Run(count.incrementAndGet(), action, callback);
+        run.slice = slice.sliceOf(run);
+        scheduler.execute(action.id().index(), run.slice);
+        synchronized (this)
+        {
+            runs.put(run.number, run);
+        }
+        return run;
+    }
+
+    /**
+     * Makes the slice of a run.
+     */
+    interface SliceFactory
+    {
+        Runnable sliceOf(Run run);
+    }
+
+    /**
+     * Finds the vertices of the index or type of a run.
+     */
+    interface VertexFinder
+    {
+        Iterable<Vertex> find(DegraphmalizeRequest action);
+    }
+
+    /**
+     * Read the ids of the next {@code sliceSize} documents of a run, so the graph isn't changed while the vertices
+     * are read. The first page opens the vertices of the run.
+     * <p/>
+     * Requests for single documents may have changed the graph since the last page. When the vertices can't be read
+     * anymore they are found again, skipping the ones read before; deleted documents are gone, so a delete starts
+     * over.
+     */
+    void readPage(Run run, VertexFinder finder, ObjectMapper om)
+    {
+        if (run.vertices == null)
+            run.vertices = finder.find(run.action).iterator();
+
+        try
+        {
+            fillPage(run, om);
+        }
+        catch (ConcurrentModificationException e)
+        {
+            log.debug("Graph changed while reading the documents of run for {}, finding them again", run.action.id());
+            run.vertices = finder.find(run.action).iterator();
+
+            final long skip = run.action.type() == DegraphmalizeRequestType.DELETE ? 0 : run.read;
+            run.read = 0;
+            while (run.read < skip && run.vertices.hasNext())
+            {
+                run.vertices.next();
+                run.read++;
+            }
+            fillPage(run, om);
+        }
+    }
+
+    private void fillPage(Run run, ObjectMapper om)
+    {
+        while (run.page.size() < sliceSize && run.vertices.hasNext())
+        {
+            run.page.add(GraphUtilities.getID(om, run.vertices.next()));
+            run.read++;
+        }
+    }
+
+    /**
+     * A slice of the run has started, the first one starts the request.
+     */
+    void running(Run run)
+    {
+        run.state = State.RUNNING;
+        if (run.startedAt == 0)
+        {
+            run.startedAt = System.currentTimeMillis();
+            admission.started();
+            run.callback.started(run.action);
+        }
+    }
+
+    /**
+     * Make room for one more document of the run to recompute.
+     *
+     * @return {@code false} when the run has {@code parallelism} documents recomputing, the slice should end
+     */
+    boolean acquire(Run run)
+    {
+        return run.permits.tryAcquire();
+    }
+
+    /**
+     * Recompute a document of the run on a worker, the room made by {@link #acquire} is released afterwards.
+     *
+     * @param counted the recomputes of the document, the ones the work didn't mark done are abandoned afterwards
+     */
+    void recompute(final Run run, final Admission.Recomputes counted, final Runnable work)
+    {
+        try
+        {
+            workers.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        work.run();
+                    }
+                    finally
+                    {
+                        counted.abandon();
+                        release(run);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // shutting down
+            run.fail(e);
+            counted.abandon();
+            release(run);
+        }
+    }
+
+    /**
+     * A document of the run is done, or won't be recomputed after {@link #acquire}.
+     */
+    void release(Run run)
+    {
+        run.permits.release();
+        if (run.exhausted)
+            finishIfDone(run);
+        else if (run.scheduled.compareAndSet(false, true))
+            // the run was waiting for room
+            next(run);
+    }
+
+    /**
+     * A slice of the run is done, queue the next one unless the run is done or should pause.
+     *
+     * @param documents the number of documents in the slice
+     * @param startedAt the time the slice started
+     */
+    void sliceDone(Run run, int documents, long startedAt)
+    {
+        if (run.stopped())
+            run.exhausted = true;
+
+        if (run.exhausted)
+        {
+            finishIfDone(run);
+            return;
+        }
+
+        final int max = maxDocumentsPerSecond;
+        run.nextSliceAt = max > 0 ? startedAt + documents * 1000L / max : 0;
+
+        if (run.permits.availablePermits() == 0)
+        {
+            // the next worker that is done queues the next slice, unless it already was done
+            run.state = State.WAITING;
+            run.scheduled.set(false);
+            if (run.permits.availablePermits() == 0 || !run.scheduled.compareAndSet(false, true))
+                return;
+        }
+        next(run);
+    }
+
+    // queue the next slice of a run, after the throttle
+    private void next(final Run run)
+    {
+        synchronized (this)
+        {
+            if (run.pauseRequested)
+            {
+                run.pauseRequested = false;
+                run.state = State.PAUSED;
+                log.info("Paused run {}", run);
+                return;
+            }
+            run.state = State.WAITING;
+        }
+
+        final long delay = run.nextSliceAt - System.currentTimeMillis();
+        if (delay <= 0)
+        {
+            submit(run);
+            return;
+        }
+
+        throttle.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                submit(run);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void submit(Run run)
+    {
+        try
+        {
+            scheduler.resume(run.action.id().index(), run.slice);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // shutting down
+            run.fail(e);
+            run.exhausted = true;
+            finishIfDone(run);
+        }
+    }
+
+    // complete the run once it read its last document and the recomputes are done
+    private void finishIfDone(Run run)
+    {
+        if (!run.exhausted || run.recomputing() > 0 || !run.finishing.compareAndSet(false, true))
+            return;
+
+        admission.finished();
+
+        if (run.error != null)
+        {
+            final DegraphmalizerException e = run.error instanceof DegraphmalizerException
+                    ? (DegraphmalizerException) run.error : new WrappedException(run.error);
+            run.callback.failed(e);
+            finish(run, State.FAILED);
+            run.future.setException(e);
+            log.warn("Run {} failed: {}", run, run.error.getMessage());
+        }
+        else if (run.cancelled)
+        {
+            final Cancelled e = new Cancelled("Run " + run.number + " for " + run.action.id() + " was cancelled after "
+                    + run.position + " documents");
+            run.callback.failed(e);
+            finish(run, State.CANCELLED);
+            run.future.setException(e);
+            log.info("Cancelled run {}", run);
+        }
+        else
+        {
+            final ScopedResult result = new ScopedResult(run.action.id(), run.position, run.recomputed.get(),
+                    run.skipped.get(), run.failed.get());
+            run.callback.complete(result);
+            finish(run, State.COMPLETE);
+            run.future.set(result);
+            log.info("Completed run {}", run);
+        }
+    }
+
+    int sliceSize()
+    {
+        return sliceSize;
+    }
+
+    private synchronized void finish(Run run, State state)
+    {
+        run.finishedAt = System.currentTimeMillis();
+        run.state = state;
+
+        // forget the oldest finished runs
+        int finished = 0;
+        for (Run r : runs.values())
+            if (r.finishedAt > 0)
+                finished++;
+
+        final Iterator<Run> it = runs.values().iterator();
+        while (finished > FINISHED_KEPT && it.hasNext())
+        {
+            if (it.next().finishedAt > 0)
+            {
+                it.remove();
+                finished--;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String[] getRuns()
+    {
+        final String[] lines = new String[runs.size()];
+        int i = 0;
+        for (Run run : runs.values())
+            lines[i++] = run.toString();
+        return lines;
+    }
+
+    @Override
+    public synchronized int getActiveRuns()
+    {
+        int active = 0;
+        for (Run run : runs.values())
+            if (run.finishedAt == 0)
+                active++;
+        return active;
+    }
+
+    @Override
+    public int getSliceSize()
+    {
+        return sliceSize;
+    }
+
+    @Override
+    public void setSliceSize(int sliceSize)
+    {
+        this.sliceSize = Math.max(1, sliceSize);
+    }
+
+    @Override
+    public int getMaxDocumentsPerSecond()
+    {
+        return maxDocumentsPerSecond;
+    }
+
+    @Override
+    public void setMaxDocumentsPerSecond(int maxDocumentsPerSecond)
+    {
+        this.maxDocumentsPerSecond = Math.max(0, maxDocumentsPerSecond);
+    }
+
+    @Override
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    @Override
+    public synchronized boolean pause(long number)
+    {
+        final Run run = runs.get(number);
+        if (run == null || run.finishedAt > 0 || run.cancelled || run.state == State.PAUSED)
+            return false;
+
+        run.pauseRequested = true;
+        return true;
+    }
+
+    @Override
+    public boolean resume(long number)
+    {
+        final Run run;
+        synchronized (this)
+        {
+            run = runs.get(number);
+            if (run == null)
+                return false;
+
+            // not paused yet, so it simply goes on
+            if (run.pauseRequested)
+            {
+                run.pauseRequested = false;
+                return true;
+            }
+
+            if (run.state != State.PAUSED)
+                return false;
+
+            run.state = State.WAITING;
+        }
+
+        log.info("Resuming run {}", run);
+        submit(run);
+        return true;
+    }
+
+    @Override
+    public boolean cancel(long number)
+    {
+        final Run run;
+        final boolean paused;
+        synchronized (this)
+        {
+            run = runs.get(number);
+            if (run == null || run.finishedAt > 0 || run.cancelled)
+                return false;
+
+            run.cancelled = true;
+            run.pauseRequested = false;
+
+            // a paused run needs one more slice to finish
+            paused = run.state == State.PAUSED;
+            if (paused)
+                run.state = State.WAITING;
+        }
+
+        log.info("Cancelling run {}", run);
+        if (paused)
+            submit(run);
+        return true;
+    }
+}
@@ -0,0 +1,51 @@
+package dgm.degraphmalizr;
+
+/**
+ * Progress and control of the requests for a whole index or type, see {@link ScopedRuns}.
+ */
+public interface ScopedRunsMBean
+{
+    /**
+     * One line per run: number, request, state, documents done, the time it took so far, and its recomputes.
+     */
+    String[] getRuns();
+
+    int getActiveRuns();
+
+    int getSliceSize();
+
+    void setSliceSize(int sliceSize);
+
+    /**
+     * Documents per second a run may do at most, {@code 0} for no limit.
+     */
+    int getMaxDocumentsPerSecond();
+
+    void setMaxDocumentsPerSecond(int maxDocumentsPerSecond);
+
+    /**
+     * Documents a run recomputes at the same time.
+     */
+    int getParallelism();
+
+    /**
+     * Stop a run after its current slice, it remembers where it was.
+     *
+     * @return whether the run will pause
+     */
+    boolean pause(long run);
+
+    /**
+     * Continue a paused run where it stopped.
+     *
+     * @return whether the run was paused
+     */
+    boolean resume(long run);
+
+    /**
+     * Stop a run after its current slice, it fails once the documents it is recomputing are done.
+     *
+     * @return whether the run will stop
+     */
+    boolean cancel(long run);
+}
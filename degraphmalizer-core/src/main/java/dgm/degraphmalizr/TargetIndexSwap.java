@@ -0,0 +1,171 @@
+package dgm.degraphmalizr;
+
+import com.google.inject.Provider;
+import dgm.configuration.Configuration;
+import dgm.configuration.IndexConfig;
+import dgm.degraphmalizr.recompute.TargetIndices;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Rebuild the target indices next to the live ones, and swap them in when they are done.
+ * <p/>
+ * Every target index is an alias for a versioned index, like {@code books-20130501120000}. Before a rebuild a new
+ * versioned index is created for each target index, with the settings (like shards and analyzers) and mappings of the
+ * current one, but without replicas and refreshes so bulk writes are fast. The recomputes write to the new indices (see {@link TargetIndices}),
+ * while searches are still served by the aliases. After the rebuild the settings are restored, the new indices are
+ * merged and the aliases are moved to them in one request. The old indices are kept, to go back to or to delete.
+ */
+public class TargetIndexSwap
+{
+    private static final Logger log = LoggerFactory.getLogger(TargetIndexSwap.class);
+
+    static final String DEFAULT_REFRESH_INTERVAL = "1s";
+    static final int DEFAULT_REPLICAS = 1;
+
+    // settings of the current index that the new one doesn't get, they belong to that index or are set for the rebuild
+    private static final Set<String> NOT_COPIED = new HashSet<String>(Arrays.asList(
+            "index.number_of_replicas", "index.refresh_interval", "index.uuid", "index.version.created"));
+
+    private final Client client;
+    private final Provider<Configuration> cfgProvider;
+    private final TargetIndices targetIndices;
+
+    // target index to its new index, and the settings to restore
+    private final Map<String, Target> targets = new TreeMap<String, Target>();
+
+    private static final class Target
+    {
+        final String alias;
+        final String index;
+        final Set<String> previous;
+        final String refreshInterval;
+        final int replicas;
+
+        Target(String alias, String index, Set<String> previous, String refreshInterval, int replicas)
+        {
+            this.alias = alias;
+            this.index = index;
+            this.previous = previous;
+            this.refreshInterval = refreshInterval;
+            this.replicas = replicas;
+        }
+    }
+
+    @Inject
+    public TargetIndexSwap(Client client, Provider<Configuration> cfgProvider, TargetIndices targetIndices)
+    {
+        this.client = client;
+        this.cfgProvider = cfgProvider;
+        this.targetIndices = targetIndices;
+    }
+
+    /**
+     * Create a new index for every configured target index, and write to it from now on.
+     *
+     * @throws IllegalStateException when a target index is an index instead of an alias
+     */
+    public void prepare() throws IOException
+    {
+        final MetaData metaData = client.admin().cluster().prepareState().execute().actionGet().state().metaData();
+        final String version = new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+
+        // check them all before creating anything
+        for (IndexConfig config : cfgProvider.get().indices().values())
+            if (metaData.index(config.name()) != null)
+                throw new IllegalStateException("Target index " + config.name() + " is an index, it should be an alias to swap indices");
+
+        for (IndexConfig config : cfgProvider.get().indices().values())
+        {
+            final String alias = config.name();
+            final String index = alias + "-" + version;
+
+            // the new index looks like the one the alias points to
+            final Map<String, AliasMetaData> aliased = metaData.aliases().get(alias);
+            final Set<String> previous = aliased == null ? Collections.<String>emptySet() : new TreeSet<String>(aliased.keySet());
+            final IndexMetaData current = previous.isEmpty() ? null : metaData.index(previous.iterator().next());
+
+            final ImmutableSettings.Builder settings = ImmutableSettings.settingsBuilder();
+            if (current != null)
+                for (Map.Entry<String, String> setting : current.settings().getAsMap().entrySet())
+                    if (!NOT_COPIED.contains(setting.getKey()))
+                        settings.put(setting.getKey(), setting.getValue());
+            settings.put("index.number_of_replicas", 0)
+                    .put("index.refresh_interval", "-1");
+
+            final CreateIndexRequestBuilder create = client.admin().indices().prepareCreate(index).setSettings(settings);
+            if (current != null)
+                for (Map.Entry<String, MappingMetaData> mapping : current.mappings().entrySet())
+                    create.addMapping(mapping.getKey(), mapping.getValue().source().string());
+            create.execute().actionGet();
+
+            final Target target = new Target(alias, index, previous,
+                    current == null ? DEFAULT_REFRESH_INTERVAL : current.settings().get("index.refresh_interval", DEFAULT_REFRESH_INTERVAL),
+                    current == null ? DEFAULT_REPLICAS : current.numberOfReplicas());
+            targets.put(alias, target);
+            targetIndices.redirect(alias, index);
+            log.info("Writing target index {} to {}, it is {} until the swap", new Object[]{alias, index, previous});
+        }
+    }
+
+    /**
+     * Restore the settings of the new indices, merge them and move the aliases to them.
+     */
+    public void swap()
+    {
+        final IndicesAliasesRequestBuilder aliases = client.admin().indices().prepareAliases();
+        for (Target target : targets.values())
+        {
+            client.admin().indices().prepareUpdateSettings(target.index)
+                    .setSettings(ImmutableSettings.settingsBuilder()
+                            .put("index.refresh_interval", target.refreshInterval)
+                            .put("index.number_of_replicas", target.replicas))
+                    .execute().actionGet();
+
+            log.info("Merging {}", target.index);
+            client.admin().indices().prepareOptimize(target.index).setMaxNumSegments(1).setWaitForMerge(true)
+                    .execute().actionGet();
+            client.admin().indices().prepareRefresh(target.index).execute().actionGet();
+
+            for (String index : target.previous)
+                aliases.removeAlias(index, target.alias);
+            aliases.addAlias(target.index, target.alias);
+        }
+
+        // all aliases move at once
+        aliases.execute().actionGet();
+
+        for (Target target : targets.values())
+        {
+            targetIndices.clear(target.alias);
+            log.info("Target index {} is now {}, the old {} can be deleted", new Object[]{target.alias, target.index, target.previous});
+        }
+        targets.clear();
+    }
+
+    /**
+     * Keep the aliases as they are, and write to them again. The new indices are left for inspection.
+     */
+    public void abandon()
+    {
+        for (Target target : targets.values())
+        {
+            targetIndices.clear(target.alias);
+            log.warn("Target index {} stays {}, the unfinished {} can be deleted", new Object[]{target.alias, target.previous, target.index});
+        }
+        targets.clear();
+    }
+}
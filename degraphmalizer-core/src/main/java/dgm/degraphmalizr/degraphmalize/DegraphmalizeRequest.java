@@ -4,6 +4,7 @@
  */
 package dgm.degraphmalizr.degraphmalize;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import dgm.ID;
 import dgm.configuration.TypeConfig;
 
@@ -19,12 +20,22 @@ public class DegraphmalizeRequest {
 
     public final Iterable<TypeConfig> configs;
 
+    /**
+     * The source document of this version, when the request came with it. Otherwise it is fetched from Elasticsearch.
+     */
+    public final JsonNode source;
+
 
     public DegraphmalizeRequest(DegraphmalizeRequestType requestType, DegraphmalizeRequestScope requestScope, ID id, Iterable<TypeConfig> configs) {
+        this(requestType, requestScope, id, configs, null);
+    }
+
+    public DegraphmalizeRequest(DegraphmalizeRequestType requestType, DegraphmalizeRequestScope requestScope, ID id, Iterable<TypeConfig> configs, JsonNode source) {
         this.requestType = requestType;
         this.requestScope = requestScope;
         this.id = id;
         this.configs = configs;
+        this.source = source;
     }
 
     public DegraphmalizeRequestType type() {
@@ -43,6 +54,10 @@ public class DegraphmalizeRequest {
         return configs;
     }
 
+    public JsonNode source() {
+        return source;
+    }
+
     @Override
     public final String toString() {
         return requestType.name()+", "+requestScope.name()+", "+id.toString();
@@ -1,5 +1,6 @@
 package dgm.degraphmalizr.degraphmalize;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import dgm.ID;
 
 public class JobRequest
@@ -7,12 +8,26 @@ public class JobRequest
     private final DegraphmalizeRequestType requestType;
     private final DegraphmalizeRequestScope requestScope;
     private final ID id;
+    private final JsonNode source;
+    private final boolean async;
 
     public JobRequest(DegraphmalizeRequestType requestType, DegraphmalizeRequestScope requestScope, ID id)
+    {
+        this(requestType, requestScope, id, null);
+    }
+
+    public JobRequest(DegraphmalizeRequestType requestType, DegraphmalizeRequestScope requestScope, ID id, JsonNode source)
+    {
+        this(requestType, requestScope, id, source, false);
+    }
+
+    public JobRequest(DegraphmalizeRequestType requestType, DegraphmalizeRequestScope requestScope, ID id, JsonNode source, boolean async)
     {
         this.requestType = requestType;
         this.requestScope = requestScope;
         this.id = id;
+        this.source = source;
+        this.async = async;
     }
 
     public DegraphmalizeRequestType actionType()
@@ -29,4 +44,20 @@ public class JobRequest
     {
         return id;
     }
+
+    /**
+     * The source document sent along with the request, or {@code null} if it has to be fetched.
+     */
+    public JsonNode source()
+    {
+        return source;
+    }
+
+    /**
+     * Whether the client only wants to know the request was accepted, instead of waiting for the result.
+     */
+    public boolean async()
+    {
+        return async;
+    }
 }
@@ -0,0 +1,56 @@
+package dgm.degraphmalizr.degraphmalize;
+
+import dgm.ID;
+import dgm.degraphmalizr.recompute.RecomputeResult;
+
+import java.util.Collections;
+import java.util.concurrent.Future;
+
+/**
+ * The result of a request for a whole index or type.
+ * <p/>
+ * Such a request recomputes far too many documents to keep a result for each, so only the numbers are kept and
+ * {@link #results()} is empty.
+ */
+public class ScopedResult extends DegraphmalizeResult
+{
+    protected final long documents;
+    protected final long recomputed;
+    protected final long skipped;
+    protected final long failed;
+
+    public ScopedResult(ID root, long documents, long recomputed, long skipped, long failed)
+    {
+        super(root, Collections.<Future<RecomputeResult>>emptyList());
+        this.documents = documents;
+        this.recomputed = recomputed;
+        this.skipped = skipped;
+        this.failed = failed;
+    }
+
+    /**
+     * Documents of the index or type that were degraphmalized.
+     */
+    public long documents()
+    {
+        return documents;
+    }
+
+    public long recomputed()
+    {
+        return recomputed;
+    }
+
+    /**
+     * Recomputes that were not done, for instance because the document changed in the meantime.
+     */
+    public long skipped()
+    {
+        return skipped;
+    }
+
+    public long failed()
+    {
+        return failed;
+    }
+}
@@ -0,0 +1,80 @@
+package dgm.degraphmalizr.recompute;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import dgm.EdgeID;
+import dgm.GraphUtilities;
+import dgm.ID;
+import dgm.trees.Pair;
+import dgm.trees.Tree;
+import dgm.trees.Trees;
+
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Cheap fingerprint of everything a recompute depends on.
+ * <p/>
+ * A recompute only reads the source document, the documents found by its walks and the configuration. Vertices in the
+ * graph carry the version of their document and the {@link dgm.modules.elasticsearch.QueryFunction} refuses documents
+ * whose version differs, so hashing the IDs (including versions) of the walk trees together with the configuration
+ * hash identifies the inputs without fetching a single document.
+ */
+public final class InputFingerprint
+{
+    /**
+     * Name of the field in the target document in which the fingerprint is stored.
+     */
+    public static final String FIELD = "_fingerprint";
+
+    private InputFingerprint()
+    {
+    }
+
+    /**
+     * @param source ID (with version) of the source document
+     * @param configurationHash see {@link dgm.configuration.TypeConfig#configurationHash()}
+     * @param walkTrees the trees of all walks, by walk name
+     */
+    public static String compute(ObjectMapper om, ID source, String configurationHash, Map<String, Tree<Pair<Edge, Vertex>>> walkTrees)
+    {
+        final Hasher hasher = Hashing.md5().newHasher()
+                .putString(source.toString())
+                .putString(String.valueOf(configurationHash));
+
+        // walk in order of name, so the fingerprint doesn't depend on the order of the walk configuration
+        for (Map.Entry<String, Tree<Pair<Edge, Vertex>>> walk : new TreeMap<String, Tree<Pair<Edge, Vertex>>>(walkTrees).entrySet())
+        {
+            hasher.putString(walk.getKey());
+
+            // the edges (with the versions of both ends) determine the tree, sort them as the graph doesn't
+            // guarantee the order in which the children are visited
+            final SortedSet<String> elements = new TreeSet<String>();
+            for (Pair<Edge, Vertex> element : Trees.bfsWalk(walk.getValue()))
+                elements.add(describe(om, element));
+
+            for (String element : elements)
+                hasher.putString(element);
+        }
+
+        return hasher.hash().toString();
+    }
+
+    private static String describe(ObjectMapper om, Pair<Edge, Vertex> element)
+    {
+        if (element.a != null)
+        {
+            final EdgeID edgeID = GraphUtilities.getEdgeID(om, element.a);
+            if (edgeID != null)
+                return edgeID.toString();
+        }
+
+        final ID id = GraphUtilities.getID(om, element.b);
+        return String.valueOf(id);
+    }
+}
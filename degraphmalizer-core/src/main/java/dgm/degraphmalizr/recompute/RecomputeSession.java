@@ -0,0 +1,92 @@
+package dgm.degraphmalizr.recompute;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Optional;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import dgm.ID;
+import dgm.degraphmalizr.VID;
+import dgm.modules.elasticsearch.ResolvedPathElement;
+import dgm.trees.Pair;
+import dgm.trees.Tree;
+
+import java.util.*;
+import java.util.concurrent.FutureTask;
+
+/**
+ * All recomputes of one root document.
+ * <p/>
+ * When a source type maps to several {@link dgm.configuration.TypeConfig}s, or several walks of a configuration share
+ * a direction, they all need the same walk tree and the same documents. A session evaluates each distinct walk
+ * direction and fetches its documents only once for all requests and then writes all target documents together.
+ * <p/>
+ * The {@link Recomputer} fills the caches of a session, so a session should only be recomputed once.
+ */
+public class RecomputeSession
+{
+    final VID root;
+    final List<RecomputeRequest> requests = new ArrayList<RecomputeRequest>();
+
+    // caches, filled by the recomputer
+    final Map<Direction, Tree<Pair<Edge, Vertex>>> walkTrees = new EnumMap<Direction, Tree<Pair<Edge, Vertex>>>(Direction.class);
+    final Map<Direction, FutureTask<Optional<Tree<ResolvedPathElement>>>> documentTrees = new EnumMap<Direction, FutureTask<Optional<Tree<ResolvedPathElement>>>>(Direction.class);
+    JsonNode rawDocument = null;
+
+    public RecomputeSession(VID root)
+    {
+        this.root = root;
+    }
+
+    public RecomputeSession(RecomputeRequest request)
+    {
+        this(request.root);
+        add(request);
+    }
+
+    /**
+     * Add a request, it must have the same root as the session.
+     */
+    public final RecomputeSession add(RecomputeRequest request)
+    {
+        if (!root.id().equals(request.root.id()))
+            throw new IllegalArgumentException("Request for " + request.root.id() + " does not belong to session of " + root.id());
+
+        requests.add(request);
+        return this;
+    }
+
+    public final VID root()
+    {
+        return root;
+    }
+
+    public final List<RecomputeRequest> requests()
+    {
+        return Collections.unmodifiableList(requests);
+    }
+
+    /**
+     * Group requests into sessions by the ID of their root, keeping the order in which the roots were first seen.
+     */
+    public static List<RecomputeSession> sessionsFor(Iterable<RecomputeRequest> requests)
+    {
+        final LinkedHashMap<ID, RecomputeSession> sessions = new LinkedHashMap<ID, RecomputeSession>();
+        for (RecomputeRequest r : requests)
+        {
+            final RecomputeSession s = sessions.get(r.root.id());
+            if (s == null)
+                sessions.put(r.root.id(), new RecomputeSession(r));
+            else
+                s.add(r);
+        }
+
+        return new ArrayList<RecomputeSession>(sessions.values());
+    }
+
+    @Override
+    public final String toString()
+    {
+        return "RecomputeSession(" + root.id() + ", " + requests.size() + " requests)";
+    }
+}
@@ -0,0 +1,60 @@
+package dgm.degraphmalizr.recompute;
+
+import java.util.concurrent.*;
+
+/**
+ * Small dependency graph of tasks on the recompute pool.
+ * <p/>
+ * The tasks of a recompute are forked onto the same pool the recompute itself runs on. To make sure a recompute waiting
+ * for its tasks never starves the pool, {@link #join} runs a task in the calling thread when no pool thread has picked
+ * it up yet.
+ */
+final class RecomputeTasks
+{
+    private final ExecutorService executor;
+
+    RecomputeTasks(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Start a task in the background.
+     */
+    <T> FutureTask<T> fork(Callable<T> job)
+    {
+        final FutureTask<T> task = new FutureTask<T>(job);
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Wait for a task to finish, or run it ourselves if it hasn't started yet.
+     *
+     * @throws ExecutionException with the exception that failed the task (or the task it depended on) as cause
+     */
+    static <T> T join(FutureTask<T> task) throws ExecutionException, InterruptedException
+    {
+        // no-op when the task is already running or done
+        task.run();
+
+        try
+        {
+            return task.get();
+        }
+        catch (ExecutionException e)
+        {
+            // the task failed because it joined a failed task
+            if (e.getCause() instanceof ExecutionException)
+                throw (ExecutionException) e.getCause();
+
+            throw e;
+        }
+    }
+
+    static void cancel(Iterable<? extends Future<?>> tasks)
+    {
+        for (Future<?> task : tasks)
+            task.cancel(false);
+    }
+}
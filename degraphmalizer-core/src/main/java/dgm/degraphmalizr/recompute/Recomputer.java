@@ -1,9 +1,22 @@
 package dgm.degraphmalizr.recompute;
 
+import java.util.List;
+import java.util.concurrent.Future;
+
 /**
  * Recompute documents
  */
 public interface Recomputer
 {
     RecomputeResult recompute(final RecomputeRequest request, RecomputeCallback callback);
-}
\ No newline at end of file
+
+    /**
+     * Recompute all requests of a session at once, evaluating shared walks only once.
+     * <p/>
+     * Requests with the same target document (configurations with the same target index and type) would overwrite
+     * each other's document, so only the first of them is computed and the others get its result.
+     *
+     * @return a completed future for each request of the session, in order
+     */
+    List<Future<RecomputeResult>> recompute(final RecomputeSession session, RecomputeCallback callback);
+}
@@ -5,9 +5,11 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Optional;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Futures;
 import com.tinkerpop.blueprints.*;
 import dgm.*;
 import dgm.configuration.*;
+import dgm.degraphmalizr.InFlight;
 import dgm.exceptions.*;
 import dgm.modules.elasticsearch.QueryFunction;
 import dgm.modules.elasticsearch.ResolvedPathElement;
@@ -15,16 +17,25 @@ import dgm.GraphUtilities;
 import dgm.modules.bindingannotations.Fetches;
 import dgm.modules.bindingannotations.Recomputes;
 import dgm.trees.*;
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.index.get.GetField;
 import org.nnsoft.guice.sli4j.core.InjectLogger;
 import org.slf4j.Logger;
 
 import javax.inject.Inject;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.*;
 
 import static dgm.GraphUtilities.toJSON;
 
@@ -40,13 +51,17 @@ public class RecomputerFactoryImpl implements Recomputer
     protected final ExecutorService fetchQueue;
     protected final QueryFunction queryFn;
     protected final ObjectMapper objectMapper;
+    protected final TargetIndices targetIndices;
+    protected final InFlight inFlight;
 
     @Inject
     public RecomputerFactoryImpl(Client client, Graph graph,
                                  @Fetches ExecutorService fetchQueue,
                                  @Recomputes ExecutorService recomputeQueue,
                                  ObjectMapper objectMapper,
-                                 QueryFunction queryFunction)
+                                 QueryFunction queryFunction,
+                                 TargetIndices targetIndices,
+                                 InFlight inFlight)
     {
         this.fetchQueue = fetchQueue;
         this.recomputeQueue = recomputeQueue;
@@ -54,105 +69,227 @@ public class RecomputerFactoryImpl implements Recomputer
         this.client = client;
         this.queryFn = queryFunction;
         this.objectMapper = objectMapper;
+        this.targetIndices = targetIndices;
+        this.inFlight = inFlight;
     }
 
     class Recomputer
     {
+        protected final RecomputeSession session;
         protected final RecomputeRequest request;
         protected final RecomputeCallback callback;
 
+        // the target index may be redirected during the recompute, write where the fingerprint was looked up
+        protected final ID targetID;
 
-        public Recomputer(RecomputeRequest request, RecomputeCallback callback)
+        public Recomputer(RecomputeSession session, RecomputeRequest request, RecomputeCallback callback)
         {
+            this.session = session;
             this.request = request;
             this.callback = callback;
+            this.targetID = request.root.id().index(targetIndices.indexFor(request.config.targetIndex())).type(request.config.targetType());
         }
 
-        private HashMap<String,JsonNode> walkResults() throws ExecutionException, InterruptedException
+        /**
+         * Tree of children in the given direction, shared by all requests in the session.
+         */
+        private Tree<Pair<Edge, Vertex>> walkTree(Direction direction)
         {
-            final HashMap<String, JsonNode> walkResults = new HashMap<String, JsonNode>();
+            synchronized (session)
+            {
+                Tree<Pair<Edge, Vertex>> tree = session.walkTrees.get(direction);
+                if (tree == null)
+                {
+                    tree = GraphUtilities.childrenFrom(session.root.vertex(), direction);
+                    session.walkTrees.put(direction, tree);
+                }
+                return tree;
+            }
+        }
 
-            if (request.config.walks().entrySet().isEmpty())
-                return walkResults;
+        /**
+         * Documents of the tree in the given direction, absent if any of them could not be retrieved. Shared by all
+         * requests in the session, the first walk that needs them fetches them.
+         */
+        private Optional<Tree<ResolvedPathElement>> documentTree(final Direction direction) throws ExecutionException, InterruptedException
+        {
+            FutureTask<Optional<Tree<ResolvedPathElement>>> documents;
+            synchronized (session)
+            {
+                documents = session.documentTrees.get(direction);
+                if (documents == null)
+                {
+                    documents = new FutureTask<Optional<Tree<ResolvedPathElement>>>(new Callable<Optional<Tree<ResolvedPathElement>>>()
+                    {
+                        @Override
+                        public Optional<Tree<ResolvedPathElement>> call() throws Exception
+                        {
+                            return fetchDocumentTree(direction);
+                        }
+                    });
+                    session.documentTrees.put(direction, documents);
+                }
+            }
+
+            return RecomputeTasks.join(documents);
+        }
+
+        private Optional<Tree<ResolvedPathElement>> fetchDocumentTree(Direction direction) throws ExecutionException, InterruptedException
+        {
+            final Tree<Pair<Edge, Vertex>> tree = walkTree(direction);
+
+            // write size information to log
+            if (log.isDebugEnabled())
+            {
+                final int size = Iterables.size(Trees.bfsWalk(tree));
+                log.debug("Retrieving {} documents from ES", size);
+            }
+
+            // get all documents in the tree from Elasticsearch (in parallel)
+            final Tree<Optional<ResolvedPathElement>> docTree = Trees.pmapStrict(fetchQueue, queryFn, tree);
 
-            boolean isAbsent = false;
+            // if some value is absent from the tree, the whole tree is absent
+            if (Iterables.contains(Trees.bfsWalk(docTree), Optional.<ResolvedPathElement>absent()))
+                return Optional.absent();
 
+            return Optional.of(Trees.materialize(Trees.optional(docTree).get()));
+        }
+
+        private HashMap<String, Tree<Pair<Edge, Vertex>>> walkTrees()
+        {
+            final HashMap<String, Tree<Pair<Edge, Vertex>>> walkTrees = new HashMap<String, Tree<Pair<Edge, Vertex>>>();
+
+            // walk graph, and fetch all the children in the opposite direction of the walk
             for (Map.Entry<String, WalkConfig> walkCfg : request.config.walks().entrySet())
+                walkTrees.put(walkCfg.getKey(), walkTree(walkCfg.getValue().direction()));
+
+            return walkTrees;
+        }
+
+        /**
+         * Fork a task that fetches the documents of a walk. It fails with a {@link ValueIsAbsentException} when some
+         * document is absent.
+         */
+        private FutureTask<Tree<ResolvedPathElement>> forkWalk(RecomputeTasks tasks, final WalkConfig walkConfig)
+        {
+            return tasks.fork(new Callable<Tree<ResolvedPathElement>>()
             {
-                // walk graph, and fetch all the children in the opposite direction of the walk
-                final Tree<Pair<Edge, Vertex>> tree =
-                        GraphUtilities.childrenFrom(request.root.vertex(), walkCfg.getValue().direction());
+                @Override
+                public Tree<ResolvedPathElement> call() throws Exception
+                {
+                    final Optional<Tree<ResolvedPathElement>> fullTree = documentTree(walkConfig.direction());
+                    if (!fullTree.isPresent())
+                        throw new ValueIsAbsentException();
 
-                // write size information to log
-                if (log.isDebugEnabled())
+                    return fullTree.get();
+                }
+            });
+        }
+
+        /**
+         * Fork a task that reduces a property as soon as the documents of its walk are there.
+         */
+        private FutureTask<JsonNode> forkProperty(RecomputeTasks tasks, final FutureTask<Tree<ResolvedPathElement>> walk, final PropertyConfig propertyConfig)
+        {
+            return tasks.fork(new Callable<JsonNode>()
+            {
+                @Override
+                public JsonNode call() throws Exception
                 {
-                    final int size = Iterables.size(Trees.bfsWalk(tree));
-                    log.debug("Retrieving {} documents from ES", size);
+                    final Tree<ResolvedPathElement> documents = RecomputeTasks.join(walk);
+
+                    // a newer version of the document arrived while the walk was fetched
+                    inFlight.check(request.root.id(), InFlight.Stage.REDUCE);
+                    return propertyConfig.reduce(documents);
                 }
+            });
+        }
 
-                // get all documents in the tree from Elasticsearch (in parallel)
-                final Tree<Optional<ResolvedPathElement>> docTree = Trees.pmap(fetchQueue, queryFn, tree);
+        private HashMap<String,JsonNode> walkResults(RecomputeTasks tasks) throws ExecutionException, InterruptedException
+        {
+            final HashMap<String, JsonNode> walkResults = new HashMap<String, JsonNode>();
 
-                // if some value is absent from the tree, abort the computation
-                final Optional<Tree<ResolvedPathElement>> fullTree = Trees.optional(docTree);
+            if (request.config.walks().entrySet().isEmpty())
+                return walkResults;
 
-                // TODO this does not work at present as Trees.optional behaves 'lazy'
-                if (!fullTree.isPresent())
-                {
-                    isAbsent = true;
-                    break;
-                }
+            // fetch the documents of all walks and reduce all properties in parallel
+            final ArrayList<FutureTask<?>> forked = new ArrayList<FutureTask<?>>();
+            final ArrayList<FutureTask<Tree<ResolvedPathElement>>> walks = new ArrayList<FutureTask<Tree<ResolvedPathElement>>>();
+            final LinkedHashMap<String, FutureTask<JsonNode>> properties = new LinkedHashMap<String, FutureTask<JsonNode>>();
+
+            for (Map.Entry<String, WalkConfig> walkCfg : request.config.walks().entrySet())
+            {
+                final FutureTask<Tree<ResolvedPathElement>> walk = forkWalk(tasks, walkCfg.getValue());
+                walks.add(walk);
+                forked.add(walk);
 
-                // reduce each property to a value based on the walk result
                 for (final Map.Entry<String, ? extends PropertyConfig> propertyCfg : walkCfg.getValue().properties().entrySet())
                 {
-                    try {
-                        walkResults.put(propertyCfg.getKey(), propertyCfg.getValue().reduce(fullTree.get()));
-                    } catch (ValueIsAbsentException v) {
-                        isAbsent = true;
-                        break;
-                    }
+                    final FutureTask<JsonNode> property = forkProperty(tasks, walk, propertyCfg.getValue());
+                    properties.put(propertyCfg.getKey(), property);
+                    forked.add(property);
                 }
             }
 
-            // something failed, so we abort the whole re-computation
-            if (isAbsent)
+            try
             {
+                for (Map.Entry<String, FutureTask<JsonNode>> property : properties.entrySet())
+                    walkResults.put(property.getKey(), RecomputeTasks.join(property.getValue()));
+
+                // walks without properties must be complete as well
+                for (FutureTask<Tree<ResolvedPathElement>> walk : walks)
+                    RecomputeTasks.join(walk);
+            }
+            catch (ExecutionException e)
+            {
+                if (!(e.getCause() instanceof ValueIsAbsentException))
+                {
+                    // the other walks and properties of a superseded version aren't needed either
+                    if (e.getCause() instanceof Superseded)
+                        RecomputeTasks.cancel(forked);
+                    throw e;
+                }
+
+                // something failed, so we abort the whole re-computation
+                RecomputeTasks.cancel(forked);
                 log.debug("Some results were absent, aborting re-computation for {}", request.root.id());
 
                 // TODO return list of expired nodes/IDs
                 //return factory.recomputeExpired(request, Collections.<ID>emptyList());
                 return null;
-
             }
 
             return walkResults;
         }
 
-        private IndexResponse writeToES(ObjectNode document)
+        private IndexRequestBuilder indexRequest(ObjectNode document, String fingerprint)
         {
-            final TypeConfig conf = request.config;
             final ID sourceID = request.root.id();
-            final ID targetID = sourceID.index(conf.targetIndex()).type(conf.targetType());
 
-            // write the source version to the document
+            // write the source version and the fingerprint of the inputs to the document
             document.put("_fromSource", toJSON(objectMapper, sourceID));
+            document.put(InputFingerprint.FIELD, fingerprint);
             final String documentSource = document.toString();
 
-            // write document to Elasticsearch
-            final IndexResponse ir = client.prepareIndex(targetID.index(), targetID.type(), targetID.id())
-                    .setSource(documentSource).execute().actionGet();
+            log.debug("Content of /{}/{}/{}: {}", new Object[]{targetID.index(), targetID.type(), targetID.id(), documentSource});
 
-            // log some stuff
-            final Object[] args = new Object[]{targetID.index(), targetID.type(), targetID.id(), ir.version()};
-            log.debug("Written /{}/{}/{}, version={}", args);
-            log.debug("Content: {}", documentSource);
-
-            return ir;
+            return client.prepareIndex(targetID.index(), targetID.type(), targetID.id()).setSource(documentSource);
         }
 
         private JsonNode getFromES() throws IOException
         {
+            synchronized (session)
+            {
+                if (session.rawDocument == null)
+                    session.rawDocument = fetchRawDocument();
+
+                // every configuration transforms its own copy
+                return session.rawDocument.deepCopy();
+            }
+        }
+
+        private JsonNode fetchRawDocument() throws IOException
+        {
 // TODO oops this doesn't work at the moment, we have the REDUCE results in walkResults :(
 //            // we are always on the root node of a walk result, so use that if it's there
 //            if(walkResults != null && !walkResults.isEmpty())
@@ -165,24 +302,38 @@ public class RecomputerFactoryImpl implements Recomputer
             //todo: queryFn.apply may produce null
 
             // retrieve the raw document from ES
-            final Optional<ResolvedPathElement> r = queryFn.apply(new Pair<Edge, Vertex>(null, request.root.vertex()));
+            final Optional<ResolvedPathElement> r = queryFn.apply(new Pair<Edge, Vertex>(null, session.root.vertex()));
             if(!r.isPresent() || !r.get().getResponse().isPresent())
                 throw new SourceMissingException(request.root.id());
 
             return objectMapper.readTree(r.get().getResponse().get().sourceAsString());
         }
 
-        public RecomputeResult recompute() throws IOException, ExecutionException, InterruptedException
+        /**
+         * Compute the target document, without writing it.
+         *
+         * @param storedFingerprint fingerprint stored in the current target document, {@code null} if there is none
+         */
+        public Computed compute(String storedFingerprint) throws IOException, ExecutionException, InterruptedException
         {
             log.debug("Recompute {} started", request.root.id().toString());
 
-            // ideally, this is handled in a monad, but with this boolean we keep track of failures
-            boolean isAbsent = false;
+            // We first determine the trees of all the walks and fingerprint them together with the source version and
+            // the configuration. If the target document was computed from exactly these inputs, we are done.
+            final String fingerprint = InputFingerprint.compute(objectMapper, request.root.id(), request.config.configurationHash(), walkTrees());
+            if (fingerprint.equals(storedFingerprint))
+            {
+                log.debug("Skipped recompute for {} because its inputs are unchanged", request.root.id().toString());
+                throw new InputsUnchanged(request.root.id());
+            }
 
             // Now we are going to:
             // - fetch the current ElasticSearch document,
             final JsonNode rawDocument = getFromES();
 
+            // - stop when a newer version of the document arrived in the meantime, it will be recomputed again,
+            inFlight.check(request.root.id(), InFlight.Stage.FETCHED);
+
             // - Return when this document does not need to be processed.
             if (!request.config.filter(rawDocument))
             {
@@ -190,26 +341,38 @@ public class RecomputerFactoryImpl implements Recomputer
                 throw new DocumentFiltered();
             }
 
+            // pre-process document using javascript, while the walks are running
+            final RecomputeTasks tasks = new RecomputeTasks(recomputeQueue);
+            final FutureTask<JsonNode> transform = tasks.fork(new Callable<JsonNode>()
+            {
+                @Override
+                public JsonNode call() throws Exception
+                {
+                    return request.config.transform(rawDocument);
+                }
+            });
+
             // Now we are going to iterate over all the walks configured for this input document. For each walk:
             // - We fetch a tree of children non-recursively from our document in the inverted direction of the walk, as Graph vertices
             // - We convert the tree of vertices to a tree of ElasticSearch documents
-            // - We call the reduce() method for this walk, with the tree of documents as argument.
+            // - We call the reduce() method for each property of this walk, with the tree of documents as argument.
             // - We collect the result.
-            final HashMap<String, JsonNode> walkResults = walkResults();
+            // Both trees are shared with the other requests in the session that walk in the same direction. All walks
+            // and reductions run in parallel on the recompute pool.
+            final HashMap<String, JsonNode> walkResults = walkResults(tasks);
             if(walkResults == null)
             {
+                transform.cancel(false);
                 log.info("Aborted recompute for {} because graph is expired for this node", request.root.id().toString());
                 throw new ExpiredException(Collections.<ID>emptyList());
             }
 
             // Now we are going to:
-            // - Transform it, if transformation is required
+            // - Wait for the transformation
             // - Add the walk properties
             // - Add a reference to the source document.
-            // - And store it as target document type in target index.
-
-            // pre-process document using javascript
-            final JsonNode transformed = request.config.transform(rawDocument);
+            // - And prepare to store it as target document type in target index.
+            final JsonNode transformed = RecomputeTasks.join(transform);
 
             if (!transformed.isObject())
             {
@@ -223,13 +386,26 @@ public class RecomputerFactoryImpl implements Recomputer
             for (Map.Entry<String, JsonNode> e : walkResults.entrySet())
                 document.put(e.getKey(), e.getValue());
 
-            // write the result document to the target index
-            final IndexResponse ir = writeToES(document);
+            return new Computed(rawDocument, document, walkResults, indexRequest(document, fingerprint));
+        }
+    }
 
-            log.debug("Recompute completed for {}, wrote /{}/{}/{}/{}",
-                    new Object[]{request.root.id().toString(), ir.index(), ir.type(), ir.id(), ir.version()});
+    /**
+     * A computed target document, waiting to be written to ES.
+     */
+    static class Computed
+    {
+        final JsonNode source;
+        final ObjectNode result;
+        final Map<String, JsonNode> properties;
+        final IndexRequestBuilder indexRequest;
 
-            return new RecomputeResult(ir, rawDocument, document, walkResults);
+        Computed(JsonNode source, ObjectNode result, Map<String, JsonNode> properties, IndexRequestBuilder indexRequest)
+        {
+            this.source = source;
+            this.result = result;
+            this.properties = properties;
+            this.indexRequest = indexRequest;
         }
     }
 
@@ -243,18 +419,238 @@ public class RecomputerFactoryImpl implements Recomputer
     @Override
     public RecomputeResult recompute(final RecomputeRequest request, RecomputeCallback callback)
     {
-        final Recomputer recomputer = new Recomputer(request, callback);
+        final Future<RecomputeResult> result = recompute(new RecomputeSession(request), callback).get(0);
 
         try
         {
-            return recomputer.recompute();
+            return result.get();
         }
-        catch (DegraphmalizerException e)
+        catch (ExecutionException e)
         {
-            throw e;
+            if (e.getCause() instanceof DegraphmalizerException)
+                throw (DegraphmalizerException) e.getCause();
+
+            throw new WrappedException(e.getCause());
         }
-        catch (Exception e) {
+        catch (InterruptedException e)
+        {
             throw new WrappedException(e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Recompute all requests of a session, sharing walk trees and fetched documents between them, and write all
+     * target documents in one bulk request.
+     *
+     * @return completed futures with the result of each request of the session, in the same order.
+     */
+    @Override
+    public List<Future<RecomputeResult>> recompute(RecomputeSession session, RecomputeCallback callback)
+    {
+        inFlight.started(session.root().id());
+        try
+        {
+            return recomputeInFlight(session, callback);
+        }
+        finally
+        {
+            inFlight.finished(session.root().id());
+        }
+    }
+
+    private List<Future<RecomputeResult>> recomputeInFlight(RecomputeSession session, RecomputeCallback callback)
+    {
+        final List<RecomputeRequest> requests = session.requests();
+
+        // requests with the same target would overwrite each other's document, the first one computes the target
+        final LinkedHashMap<ID, Integer> targets = new LinkedHashMap<ID, Integer>();
+        final int[] targetOf = new int[requests.size()];
+
+        final List<Recomputer> recomputers = new ArrayList<Recomputer>();
+        for (int i = 0; i < requests.size(); i++)
+        {
+            final Recomputer recomputer = new Recomputer(session, requests.get(i), callback);
+            final ID targetID = recomputer.targetID;
+
+            final Integer target = targets.get(targetID);
+            if (target != null)
+            {
+                log.debug("Target {} of configuration {} is computed by configuration {}",
+                        new Object[]{targetID, requests.get(i).config.name(), requests.get(target).config.name()});
+                targetOf[i] = target;
+                recomputers.add(null);
+                continue;
+            }
+
+            targets.put(targetID, i);
+            targetOf[i] = i;
+            recomputers.add(recomputer);
+        }
+
+        // what the current target documents were computed from, looked up together
+        final Map<ID, String> stored = storedFingerprints(targets.keySet());
+
+        final List<Future<RecomputeResult>> results = new ArrayList<Future<RecomputeResult>>();
+        final List<Computed> computed = new ArrayList<Computed>();
+        for (int i = 0; i < requests.size(); i++)
+        {
+            final Recomputer recomputer = recomputers.get(i);
+            if (recomputer == null)
+            {
+                results.add(null);
+                computed.add(null);
+                continue;
+            }
+
+            try
+            {
+                computed.add(recomputer.compute(stored.get(recomputer.targetID)));
+                results.add(null);
+            }
+            catch (DegraphmalizerException e)
+            {
+                computed.add(null);
+                results.add(Futures.<RecomputeResult>immediateFailedFuture(e));
+            }
+            catch (ExecutionException e)
+            {
+                // one of the parallel tasks of the recompute failed
+                final Throwable cause = e.getCause();
+                computed.add(null);
+                results.add(Futures.<RecomputeResult>immediateFailedFuture(cause instanceof DegraphmalizerException ? cause : new WrappedException(cause)));
+            }
+            catch (Exception e)
+            {
+                computed.add(null);
+                results.add(Futures.<RecomputeResult>immediateFailedFuture(new WrappedException(e)));
+            }
+        }
+
+        writeToES(session.root().id(), computed, results);
+
+        // duplicate requests share the result of the first request with the same target
+        for (int i = 0; i < requests.size(); i++)
+            if (targetOf[i] != i)
+                results.set(i, results.get(targetOf[i]));
+
+        return results;
+    }
+
+    /**
+     * Fingerprints stored in the current target documents, in one request. Targets without a fingerprint are left
+     * out.
+     */
+    private Map<ID, String> storedFingerprints(Collection<ID> targetIDs)
+    {
+        final Map<ID, String> stored = new HashMap<ID, String>();
+
+        final ArrayList<ID> lookups = new ArrayList<ID>();
+        final MultiGetRequestBuilder get = client.prepareMultiGet();
+        for (ID targetID : targetIDs)
+        {
+            // an index created for a rebuild only holds what was written since, skip the lookup
+            if (targetIndices.isRedirect(targetID.index()))
+                continue;
+
+            lookups.add(targetID);
+            get.add(new MultiGetRequest.Item(targetID.index(), targetID.type(), targetID.id()).fields(InputFingerprint.FIELD));
+        }
+
+        if (lookups.isEmpty())
+            return stored;
+
+        final MultiGetResponse response;
+        try
+        {
+            response = get.execute().actionGet();
+        }
+        catch (ElasticSearchException e)
+        {
+            // without fingerprints all targets are recomputed
+            log.warn("Could not look up the fingerprints of {}: {}", lookups, e.getMessage());
+            return stored;
+        }
+
+        // items are in the order in which they were added
+        final MultiGetItemResponse[] items = response.responses();
+        for (int i = 0; i < lookups.size(); i++)
+        {
+            // a missing target index fails the item
+            if (items[i].failed() || !items[i].response().exists())
+                continue;
+
+            final GetField field = items[i].response().field(InputFingerprint.FIELD);
+            if (field != null && field.value() != null)
+                stored.put(lookups.get(i), field.value().toString());
+        }
+
+        return stored;
+    }
+
+    /**
+     * Write all computed documents in one bulk request and complete their results, unless a newer version of their
+     * source document arrived.
+     */
+    private void writeToES(ID root, List<Computed> computed, List<Future<RecomputeResult>> results)
+    {
+        final ArrayList<Integer> positions = new ArrayList<Integer>();
+        final BulkRequestBuilder bulk = client.prepareBulk();
+        for (int i = 0; i < computed.size(); i++)
+        {
+            if (computed.get(i) == null)
+                continue;
+
+            positions.add(i);
+            bulk.add(computed.get(i).indexRequest);
+        }
+
+        if (positions.isEmpty())
+            return;
+
+        // don't overwrite the targets of a newer version of the document
+        try
+        {
+            inFlight.check(root, InFlight.Stage.WRITE);
+        }
+        catch (Superseded e)
+        {
+            for (int i : positions)
+                results.set(i, Futures.<RecomputeResult>immediateFailedFuture(e));
+            return;
+        }
+
+        final BulkResponse response;
+        try
+        {
+            response = bulk.execute().actionGet();
+        }
+        catch (Exception e)
+        {
+            for (int i : positions)
+                results.set(i, Futures.<RecomputeResult>immediateFailedFuture(new WrappedException(e)));
+            return;
+        }
+
+        // bulk items are in the order in which the requests were added
+        final BulkItemResponse[] items = response.items();
+        for (int j = 0; j < positions.size(); j++)
+        {
+            final int i = positions.get(j);
+            final BulkItemResponse item = items[j];
+
+            if (item.failed())
+            {
+                log.warn("Failed to write /{}/{}/{}: {}", new Object[]{item.index(), item.type(), item.id(), item.failureMessage()});
+                results.set(i, Futures.<RecomputeResult>immediateFailedFuture(new WrappedException(new ElasticSearchException(item.failureMessage()))));
+                continue;
+            }
+
+            final IndexResponse ir = (IndexResponse) item.response();
+            final Computed c = computed.get(i);
+
+            log.debug("Recompute completed, wrote /{}/{}/{}, version={}", new Object[]{ir.index(), ir.type(), ir.id(), ir.version()});
+
+            results.set(i, Futures.immediateFuture(new RecomputeResult(ir, c.source, c.result, c.properties)));
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package dgm.degraphmalizr.recompute;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The elasticsearch index the target documents of a target index are written to.
+ * <p/>
+ * Normally that is the target index itself, but while the target indices are rebuilt next to the live ones (see
+ * {@link dgm.degraphmalizr.TargetIndexSwap}) the documents are written to the new index instead.
+ */
+public class TargetIndices
+{
+    private final ConcurrentMap<String, String> redirects = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The index to write the documents of a target index to.
+     */
+    public String indexFor(String targetIndex)
+    {
+        final String index = redirects.get(targetIndex);
+        return index == null ? targetIndex : index;
+    }
+
+    /**
+     * Whether the documents of a target index are written to this index instead, it was created for a rebuild.
+     */
+    public boolean isRedirect(String index)
+    {
+        return redirects.containsValue(index);
+    }
+
+    public void redirect(String targetIndex, String index)
+    {
+        redirects.put(targetIndex, index);
+    }
+
+    public void clear(String targetIndex)
+    {
+        redirects.remove(targetIndex);
+    }
+}
@@ -4,6 +4,11 @@ import com.beust.jcommander.JCommander;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.Module;
+import dgm.degraphmalizr.FairScheduler;
+import dgm.degraphmalizr.InFlight;
+import dgm.degraphmalizr.Rebuild;
+import dgm.degraphmalizr.TargetIndexSwap;
+import dgm.degraphmalizr.ScopedRuns;
 import dgm.driver.handler.HandlerModule;
 import dgm.driver.server.Server;
 import dgm.driver.server.ServerModule;
@@ -70,11 +75,12 @@ public final class Main
         modules.add(new BlueprintsSubgraphManagerModule());
         modules.add(new Slf4jLoggingModule());
         modules.add(new DegraphmalizerModule());
-        modules.add(new ThreadpoolModule());
+        modules.add(new ThreadpoolModule(opt.maxQueued, opt.maxInFlight, opt.sliceSize, opt.maxScopedRate,
+                opt.scopedParallelism, opt.maxPerIndex, FairScheduler.parseWeights(opt.indexWeights)));
 
         // netty part
-        modules.add(new ServerModule(opt.bindhost, opt.port));
-        modules.add(new HandlerModule());
+        modules.add(new ServerModule(opt.bindhost, opt.port, opt.idleTimeout));
+        modules.add(new HandlerModule(opt.jobRetention));
 
         // we always run an embedded local graph database
         modules.add(new CommonNeo4j());
@@ -104,6 +110,21 @@ public final class Main
                 final GraphBuilder gb = injector.getInstance(GraphBuilder.class);
                 mbs.registerMBean(gb, name);
                 log.info("JMX bean {} started", name);
+
+                // progress of requests for a whole index or type
+                final ObjectName runsName = new ObjectName("dgm.mbeans:type=ScopedRuns");
+                mbs.registerMBean(injector.getInstance(ScopedRuns.class), runsName);
+                log.info("JMX bean {} started", runsName);
+
+                // queues of the source indices
+                final ObjectName schedulerName = new ObjectName("dgm.mbeans:type=FairScheduler");
+                mbs.registerMBean(injector.getInstance(FairScheduler.class), schedulerName);
+                log.info("JMX bean {} started", schedulerName);
+
+                // work stopped because a newer version arrived
+                final ObjectName inFlightName = new ObjectName("dgm.mbeans:type=InFlight");
+                mbs.registerMBean(injector.getInstance(InFlight.class), inFlightName);
+                log.info("JMX bean {} started", inFlightName);
             } catch (Exception e)
             {
                 // TODO log errors
@@ -111,9 +132,17 @@ public final class Main
             }
         }
 
-        final Server server = injector.getInstance(Server.class);
         final ServiceRunner runner = injector.getInstance(ServiceRunner.class);
 
+        // rebuild everything instead of serving requests
+        if (opt.rebuild)
+        {
+            rebuild(opt, injector, runner);
+            return;
+        }
+
+        final Server server = injector.getInstance(Server.class);
+
         // so we can shutdown cleanly
         Runtime.getRuntime().addShutdownHook(new Thread()
         {
@@ -148,6 +177,38 @@ public final class Main
         server.startAndWait();
     }
 
+    private void rebuild(Options opt, Injector injector, ServiceRunner runner)
+    {
+        runner.startServices();
+
+        boolean succeeded = false;
+        final TargetIndexSwap swap = injector.getInstance(TargetIndexSwap.class);
+        try
+        {
+            // live searches keep using the current target indices until the rebuild is done
+            if (opt.blueGreen)
+                swap.prepare();
+
+            succeeded = injector.getInstance(Rebuild.class).run(opt.rebuildPageSize, opt.rebuildParallelism);
+
+            if (opt.blueGreen && succeeded)
+                swap.swap();
+        }
+        catch (Exception e)
+        {
+            log.error("Rebuild failed", e);
+            succeeded = false;
+        }
+        finally
+        {
+            if (!succeeded)
+                swap.abandon();
+            runner.stopServices();
+        }
+
+        System.exit(succeeded ? 0 : 1);
+    }
+
     private void setupElasticsearch(Options opt, List<Module> modules)
     {
         modules.add(new CommonElasticSearchModule());
@@ -19,6 +19,33 @@ public class Options
     @Parameter(names = {"-p", "--port"}, description = "Listening port")
     int port;
 
+    @Parameter(names = {"-i", "--idle-timeout"}, description = "Close connections that are idle for this many seconds, 0 to keep them open")
+    int idleTimeout;
+
+    @Parameter(names = {"--job-retention"}, description = "Number of finished async jobs to keep the status of")
+    int jobRetention;
+
+    @Parameter(names = {"--max-queued"}, description = "Refuse requests when this many are waiting to be degraphmalized")
+    int maxQueued;
+
+    @Parameter(names = {"--max-in-flight"}, description = "Refuse requests when this many recomputes are in progress")
+    int maxInFlight;
+
+    @Parameter(names = {"--slice-size"}, description = "Documents a request for a whole index or type does before requests for single documents go first")
+    int sliceSize;
+
+    @Parameter(names = {"--max-scoped-rate"}, description = "Documents per second a request for a whole index or type does at most, 0 for no limit")
+    int maxScopedRate;
+
+    @Parameter(names = {"--scoped-parallelism"}, description = "Documents a request for a whole index or type recomputes at the same time")
+    int scopedParallelism;
+
+    @Parameter(names = {"--max-per-index"}, description = "Refuse requests when this many of the same source index are waiting or running")
+    int maxPerIndex;
+
+    @Parameter(names = {"--index-weights"}, description = "Share of the degraphmalizer of source indices, like books=3,news=2 (others get 1)")
+    String indexWeights;
+
     @Parameter(names = {"-c", "--config"}, description = "Specify configuration directory")
     String config;
 
@@ -37,6 +64,18 @@ public class Options
     @Parameter(names = {"-f", "--fixtures"}, description = "Load fixtures on startup")
     boolean fixtures;
 
+    @Parameter(names = {"--rebuild"}, description = "Rebuild the graph and all target documents from the source indices, then exit")
+    boolean rebuild;
+
+    @Parameter(names = {"--rebuild-page-size"}, description = "Documents per shard a rebuild reads from the source indices at a time")
+    int rebuildPageSize;
+
+    @Parameter(names = {"--rebuild-parallelism"}, description = "Documents a rebuild recomputes at the same time")
+    int rebuildParallelism;
+
+    @Parameter(names = {"--blue-green"}, description = "Rebuild into new target indices, and move the target aliases to them when done")
+    boolean blueGreen;
+
     @Parameter(names = {"-l", "--jslib"}, description = "Load Javascript library from this file")
     List<String> libraries = new ArrayList<String>();
 
@@ -55,6 +94,17 @@ public class Options
     {
         port = Integer.parseInt(properties.getProperty("degraphmalizer.port", "9821"));
         bindhost = properties.getProperty("degraphmalizer.host");
+        idleTimeout = Integer.parseInt(properties.getProperty("degraphmalizer.idletimeout", "300"));
+        jobRetention = Integer.parseInt(properties.getProperty("degraphmalizer.jobretention", "10000"));
+        maxQueued = Integer.parseInt(properties.getProperty("degraphmalizer.maxqueued", "1000"));
+        maxInFlight = Integer.parseInt(properties.getProperty("degraphmalizer.maxinflight", "10000"));
+        sliceSize = Integer.parseInt(properties.getProperty("degraphmalizer.slicesize", "100"));
+        maxScopedRate = Integer.parseInt(properties.getProperty("degraphmalizer.maxscopedrate", "0"));
+        scopedParallelism = Integer.parseInt(properties.getProperty("degraphmalizer.scopedparallelism", "4"));
+        maxPerIndex = Integer.parseInt(properties.getProperty("degraphmalizer.maxperindex", "500"));
+        indexWeights = properties.getProperty("degraphmalizer.indexweights");
+        rebuildPageSize = Integer.parseInt(properties.getProperty("degraphmalizer.rebuildpagesize", "100"));
+        rebuildParallelism = Integer.parseInt(properties.getProperty("degraphmalizer.rebuildparallelism", "4"));
 
         jmx = Boolean.parseBoolean(properties.getProperty("degraphmalizer.jmx.enabled"));
         reloading = Boolean.parseBoolean(properties.getProperty("degraphmalizer.autoreload"));
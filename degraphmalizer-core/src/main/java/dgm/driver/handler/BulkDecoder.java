@@ -0,0 +1,300 @@
+package dgm.driver.handler;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import dgm.degraphmalizr.degraphmalize.DegraphmalizeRequestType;
+import dgm.degraphmalizr.degraphmalize.JobRequest;
+import dgm.exceptions.DegraphmalizerException;
+import dgm.exceptions.InvalidRequest;
+import dgm.exceptions.WrappedException;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decode a bulk request, {@code POST /_bulk}, into a {@link Start}, an {@link Item} for every change and an
+ * {@link End}. Other requests are passed on.
+ * <p/>
+ * The body contains one change per line (NDJSON), like
+ * <pre>
+ * {"index": "books", "type": "book", "id": "1", "version": 3}
+ * {"index": "books", "type": "book", "id": "2", "action": "delete"}
+ * </pre>
+ * The action is {@code update} when omitted; for a delete the trailing components may be left out, like in the URL of
+ * a single request. An update may carry the source document of its version in a {@code "source"} object, so it
+ * doesn't have to be fetched. The body is decoded line by line as the HTTP chunks arrive, so changes are submitted while the
+ * request is still being received. With the {@code async} parameter every change is answered as soon as it has been
+ * queued.
+ * <p/>
+ * The response has started once the first line is decoded, so errors are answered per line: a line longer than
+ * {@link #MAX_LINE_LENGTH} is an {@link Item} with an error, and the rest of it is skipped. When decoding fails
+ * otherwise the bulk request is ended and the connection closed, the client can't tell where the response stops.
+ */
+public class BulkDecoder extends SimpleChannelUpstreamHandler
+{
+    private static final Logger log = LoggerFactory.getLogger(BulkDecoder.class);
+
+    public static final String PATH = "/_bulk";
+
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    // state of the bulk request currently being received on this channel
+    private boolean inBulk = false;
+    private int lines = 0;
+    private final ChannelBuffer pending = ChannelBuffers.dynamicBuffer();
+
+    // the rest of a line that is too long is skipped, up to its newline
+    private boolean skipping = false;
+
+    /**
+     * A bulk request starts, with changes that are answered as soon as they are queued if it is async
+     */
+    public static class Start
+    {
+        final boolean async;
+
+        Start(boolean async)
+        {
+            this.async = async;
+        }
+    }
+
+    /**
+     * A change in a bulk request, or the reason why the line could not be decoded.
+     */
+    public static class Item
+    {
+        final int line;
+        final JobRequest request;
+        final DegraphmalizerException error;
+
+        Item(int line, JobRequest request, DegraphmalizerException error)
+        {
+            this.line = line;
+            this.request = request;
+            this.error = error;
+        }
+    }
+
+    /**
+     * All changes of a bulk request have been decoded
+     */
+    public static class End
+    {
+        final int items;
+
+        End(int items)
+        {
+            this.items = items;
+        }
+    }
+
+    @Override
+    public final void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+    {
+        final Object msg = e.getMessage();
+
+        if (msg instanceof HttpRequest && ((HttpRequest) msg).getUri().startsWith(PATH))
+        {
+            final HttpRequest request = (HttpRequest) msg;
+            if (!HttpMethod.POST.equals(request.getMethod()) && !HttpMethod.PUT.equals(request.getMethod()))
+                throw new InvalidRequest("Bulk requests must be POSTed");
+
+            reset();
+            inBulk = true;
+            Channels.fireMessageReceived(ctx, new Start(DegraphmalizeDecoder.async(new QueryStringDecoder(request.getUri()))));
+
+            try
+            {
+                decode(ctx, request.getContent());
+                if (!request.isChunked())
+                    end(ctx);
+            }
+            catch (RuntimeException ex)
+            {
+                fail(ctx, ex);
+            }
+            return;
+        }
+
+        if (msg instanceof HttpChunk)
+        {
+            // chunks of other requests are not used
+            if (!inBulk)
+                return;
+
+            final HttpChunk chunk = (HttpChunk) msg;
+            try
+            {
+                decode(ctx, chunk.getContent());
+                if (chunk.isLast())
+                    end(ctx);
+            }
+            catch (RuntimeException ex)
+            {
+                fail(ctx, ex);
+            }
+            return;
+        }
+
+        ctx.sendUpstream(e);
+    }
+
+    private void reset()
+    {
+        inBulk = false;
+        skipping = false;
+        lines = 0;
+        pending.clear();
+    }
+
+    // the response has started, so the request can't be answered with an error anymore
+    private void fail(ChannelHandlerContext ctx, RuntimeException e)
+    {
+        log.error("Decoding bulk request on " + ctx.getChannel() + " failed, closing it", e);
+        final int items = lines;
+        reset();
+        Channels.fireMessageReceived(ctx, new End(items));
+        ctx.getChannel().close();
+    }
+
+    private void decode(ChannelHandlerContext ctx, ChannelBuffer content)
+    {
+        pending.writeBytes(content);
+
+        final List<Item> items = new ArrayList<Item>();
+        while (true)
+        {
+            final int eol = pending.indexOf(pending.readerIndex(), pending.writerIndex(), (byte) '\n');
+            if (skipping)
+            {
+                if (eol < 0)
+                {
+                    pending.clear();
+                    break;
+                }
+                pending.readerIndex(eol + 1);
+                skipping = false;
+                continue;
+            }
+
+            if (eol < 0)
+            {
+                // the line doesn't end before it is too long
+                if (pending.readableBytes() > MAX_LINE_LENGTH)
+                {
+                    items.add(tooLong());
+                    pending.clear();
+                    skipping = true;
+                }
+                break;
+            }
+
+            if (eol - pending.readerIndex() > MAX_LINE_LENGTH)
+            {
+                items.add(tooLong());
+                pending.readerIndex(eol + 1);
+                continue;
+            }
+
+            final String line = pending.toString(pending.readerIndex(), eol - pending.readerIndex(), Charsets.UTF_8);
+            pending.readerIndex(eol + 1);
+
+            final Item item = decodeLine(line);
+            if (item != null)
+                items.add(item);
+        }
+        pending.discardReadBytes();
+
+        for (Item item : items)
+            Channels.fireMessageReceived(ctx, item);
+    }
+
+    private void end(ChannelHandlerContext ctx)
+    {
+        // the last line doesn't need a newline
+        if (pending.readable() && !skipping)
+        {
+            final Item item = decodeLine(pending.toString(Charsets.UTF_8));
+            if (item != null)
+                Channels.fireMessageReceived(ctx, item);
+        }
+
+        final int items = lines;
+        reset();
+        Channels.fireMessageReceived(ctx, new End(items));
+    }
+
+    private Item tooLong()
+    {
+        lines++;
+        return new Item(lines, null, new InvalidRequest("Line " + lines + " of bulk request is longer than " + MAX_LINE_LENGTH + " bytes"));
+    }
+
+    private Item decodeLine(String line)
+    {
+        if (line.trim().isEmpty())
+            return null;
+
+        lines++;
+        try
+        {
+            return new Item(lines, jobRequest(objectMapper.readTree(line)), null);
+        }
+        catch (DegraphmalizerException e)
+        {
+            return new Item(lines, null, e);
+        }
+        catch (Exception e)
+        {
+            return new Item(lines, null, new WrappedException(e));
+        }
+    }
+
+    private static JobRequest jobRequest(JsonNode change)
+    {
+        if (!change.isObject())
+            throw new InvalidRequest("Each line of a bulk request must be a JSON object");
+
+        final String action = change.path("action").asText();
+        final DegraphmalizeRequestType requestType;
+        if (action.isEmpty() || "update".equals(action))
+            requestType = DegraphmalizeRequestType.UPDATE;
+        else if ("delete".equals(action))
+            requestType = DegraphmalizeRequestType.DELETE;
+        else
+            throw new InvalidRequest("Unsupported action: " + action);
+
+        // same components as the URL of a single request, up to the first one missing
+        final List<String> components = new ArrayList<String>();
+        for (String field : new String[]{"index", "type", "id", "version"})
+        {
+            final JsonNode value = change.get(field);
+            if (value == null || value.isNull())
+                break;
+            components.add(value.asText());
+        }
+
+        final JsonNode source = change.get("source");
+        if (source != null && !source.isObject())
+            throw new InvalidRequest("The source document must be a JSON object");
+
+        return DegraphmalizeDecoder.jobRequest(requestType, components.toArray(new String[components.size()]),
+                requestType == DegraphmalizeRequestType.UPDATE ? source : null);
+    }
+}
@@ -0,0 +1,256 @@
+package dgm.driver.handler;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+import com.google.inject.Inject;
+import dgm.Degraphmalizr;
+import dgm.ID;
+import dgm.degraphmalizr.Admission;
+import dgm.degraphmalizr.degraphmalize.DegraphmalizeCallback;
+import dgm.degraphmalizr.degraphmalize.DegraphmalizeRequest;
+import dgm.degraphmalizr.degraphmalize.DegraphmalizeResult;
+import dgm.degraphmalizr.degraphmalize.JobRequest;
+import dgm.exceptions.DegraphmalizerException;
+import dgm.exceptions.Overloaded;
+import dgm.exceptions.Superseded;
+import dgm.exceptions.WrappedException;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.http.*;
+import org.nnsoft.guice.sli4j.core.InjectLogger;
+import org.slf4j.Logger;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Degraphmalize the changes of a bulk request (see {@link BulkDecoder}) and stream back the result of each change as
+ * a line of JSON, in the order in which they complete:
+ * <pre>
+ * {"line": 1, "id": "/books/book/1/3", "status": "ok", "results": 2}
+ * {"line": 2, "id": "/books/book/2/0", "status": "error", "severity": "error", "class": "NoConfiguration", "message": "..."}
+ * </pre>
+ * With {@code /_bulk?async} a change is answered with {@code "status": "accepted"} and its {@code "job"} as soon as
+ * it is queued (see {@link Jobs}).
+ * <p/>
+ * A bulk request that arrives while the degraphmalizer is overloaded is refused as a whole with {@code 503}, changes
+ * that are refused later get a line with {@code "class": "Overloaded"} and the {@code "retryAfter"} in seconds (see
+ * {@link Admission}).
+ * <p/>
+ * The response ends when all changes have completed. Bulk requests pipelined on one connection are worked on at the
+ * same time, their responses follow each other (see {@link HttpPipeliningHandler}).
+ */
+public class BulkHandler extends SimpleChannelUpstreamHandler
+{
+    @InjectLogger
+    Logger log;
+
+    private final Degraphmalizr degraphmalizr;
+    private final Jobs jobs;
+    private final Admission admission;
+    private final ObjectMapper objectMapper;
+
+    // the bulk request being received on this channel, only used on the I/O thread
+    private Bulk current;
+
+    /**
+     * State of a bulk request, until its response has ended
+     */
+    private static final class Bulk
+    {
+        final Channel channel;
+        final int sequence;
+        final boolean async;
+        boolean refused = false;
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicBoolean finished = new AtomicBoolean();
+        volatile boolean decoded = false;
+
+        Bulk(Channel channel, int sequence, boolean async)
+        {
+            this.channel = channel;
+            this.sequence = sequence;
+            this.async = async;
+        }
+
+        void write(Object message)
+        {
+            HttpPipeliningHandler.write(channel, sequence, message);
+        }
+    }
+
+    @Inject
+    public BulkHandler(Degraphmalizr degraphmalizr, Jobs jobs, Admission admission, ObjectMapper objectMapper)
+    {
+        this.degraphmalizr = degraphmalizr;
+        this.jobs = jobs;
+        this.admission = admission;
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public final void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+    {
+        final Object msg = e.getMessage();
+
+        if (msg instanceof BulkDecoder.Start)
+        {
+            current = new Bulk(ctx.getChannel(), HttpPipeliningHandler.sequence(ctx), ((BulkDecoder.Start) msg).async);
+
+            // the changes of a refused request are skipped, the exception handler answers it
+            if (admission.overloaded())
+            {
+                current.refused = true;
+                throw new Overloaded(admission.retryAfterInSeconds());
+            }
+            start(current);
+        }
+        else if (msg instanceof BulkDecoder.Item)
+        {
+            if (!current.refused)
+                submit(current, (BulkDecoder.Item) msg);
+        }
+        else if (msg instanceof BulkDecoder.End)
+        {
+            if (current.refused)
+                return;
+
+            log.info("Received bulk request of {} changes", ((BulkDecoder.End) msg).items);
+            current.decoded = true;
+            finishIfDone(current);
+        }
+        else
+            ctx.sendUpstream(e);
+    }
+
+    private void start(Bulk bulk)
+    {
+        final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.setChunked(true);
+        response.setHeader(HttpHeaders.Names.TRANSFER_ENCODING, HttpHeaders.Values.CHUNKED);
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "application/x-ndjson; charset=UTF-8");
+        bulk.write(response);
+    }
+
+    private void submit(final Bulk bulk, final BulkDecoder.Item item)
+    {
+        bulk.pending.incrementAndGet();
+
+        if (item.error != null)
+        {
+            completed(bulk, error(item, null, item.error));
+            return;
+        }
+
+        final JobRequest request = item.request;
+        if (bulk.async)
+        {
+            accept(bulk, item);
+            return;
+        }
+
+        final DegraphmalizeCallback callback = new DegraphmalizeCallback()
+        {
+            @Override
+            public void started(DegraphmalizeRequest request)
+            {
+                log.debug("Started degraphmalization for {}", request);
+            }
+
+            @Override
+            public void complete(DegraphmalizeResult result)
+            {
+                final ObjectNode line = objectMapper.createObjectNode();
+                line.put("line", item.line);
+                line.put("id", request.id().toString());
+                line.put("status", "ok");
+                line.put("results", result.results().size());
+                completed(bulk, line);
+            }
+
+            @Override
+            public void failed(DegraphmalizerException exception)
+            {
+                completed(bulk, error(item, request.id(), exception));
+            }
+        };
+
+        try
+        {
+            degraphmalizr.degraphmalize(request.actionType(), request.actionScope(), request.id(), request.source(), callback);
+        }
+        catch (DegraphmalizerException e)
+        {
+            completed(bulk, error(item, request.id(), e));
+        }
+        catch (Exception e)
+        {
+            completed(bulk, error(item, request.id(), new WrappedException(e)));
+        }
+    }
+
+    private void accept(Bulk bulk, BulkDecoder.Item item)
+    {
+        final JobRequest request = item.request;
+        final Jobs.Job job = jobs.accept(request.id());
+        try
+        {
+            degraphmalizr.degraphmalize(request.actionType(), request.actionScope(), request.id(), request.source(), job);
+        }
+        catch (DegraphmalizerException e)
+        {
+            jobs.reject(job);
+            completed(bulk, error(item, request.id(), e));
+            return;
+        }
+        catch (Exception e)
+        {
+            jobs.reject(job);
+            completed(bulk, error(item, request.id(), new WrappedException(e)));
+            return;
+        }
+
+        final ObjectNode line = objectMapper.createObjectNode();
+        line.put("line", item.line);
+        line.put("id", request.id().toString());
+        line.put("status", "accepted");
+        line.put("job", job.id());
+        completed(bulk, line);
+    }
+
+    private ObjectNode error(BulkDecoder.Item item, ID id, DegraphmalizerException exception)
+    {
+        final ObjectNode line = objectMapper.createObjectNode();
+        line.put("line", item.line);
+        if (id != null)
+            line.put("id", id.toString());
+        // a newer version arrived, so there's nothing to retry
+        line.put("status", exception instanceof Superseded ? "superseded" : "error");
+        line.put("severity", exception.severity().name().toLowerCase());
+        line.put("class", exception.getClass().getSimpleName());
+        line.put("message", exception.getMessage());
+        if (exception instanceof Overloaded)
+            line.put("retryAfter", ((Overloaded) exception).retryAfterInSeconds());
+        return line;
+    }
+
+    private void completed(Bulk bulk, ObjectNode line)
+    {
+        if (bulk.channel.isOpen())
+            bulk.write(new DefaultHttpChunk(ChannelBuffers.copiedBuffer(line.toString() + "\n", Charsets.UTF_8)));
+
+        bulk.pending.decrementAndGet();
+        finishIfDone(bulk);
+    }
+
+    private void finishIfDone(Bulk bulk)
+    {
+        if (!bulk.decoded || bulk.pending.get() > 0)
+            return;
+
+        // only the last change to complete ends the response
+        if (bulk.finished.compareAndSet(false, true))
+            bulk.write(HttpChunk.LAST_CHUNK);
+    }
+}
@@ -1,31 +1,114 @@
 package dgm.driver.handler;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import dgm.ID;
 import dgm.degraphmalizr.degraphmalize.DegraphmalizeRequestScope;
 import dgm.degraphmalizr.degraphmalize.DegraphmalizeRequestType;
 import dgm.degraphmalizr.degraphmalize.JobRequest;
 import dgm.exceptions.DegraphmalizerException;
 import dgm.exceptions.InvalidRequest;
+import dgm.exceptions.WrappedException;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.QueryStringDecoder;
 import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
 
+import java.io.IOException;
+import java.util.List;
+
 /**
- * Transform a HttpRequest into
+ * Transform a HttpRequest into a {@link JobRequest}. The body of an update, if any, is the source document of the
+ * version in the URL, so it doesn't have to be fetched. A body that doesn't arrive in one piece (see
+ * {@link HandlerModule#MAX_CHUNK_SIZE}) is ignored, and the document is fetched.
+ * <p/>
+ * With the {@code async} parameter the request is answered as soon as it has been queued (see {@link Jobs}).
  */
 public class DegraphmalizeDecoder extends OneToOneDecoder
 {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
     @Override
     protected final Object decode(ChannelHandlerContext channelHandlerContext, Channel channel, Object o) throws DegraphmalizerException
     {
+        // pass on messages that are already decoded, like those of bulk requests
+        if (!(o instanceof HttpRequest))
+            return o;
+
         final HttpRequest request = (HttpRequest) o;
         final DegraphmalizeRequestType requestType = actionTypeFor(request);
 
         // split url /TYPE/ID/ or fail
-        final String[] components = request.getUri().substring(1).split("/");
+        final QueryStringDecoder uri = new QueryStringDecoder(request.getUri());
+        final String[] components = uri.getPath().substring(1).split("/");
+
+        JsonNode source = null;
+        if (requestType == DegraphmalizeRequestType.UPDATE && !request.isChunked() && request.getContent().readable())
+            source = source(request.getContent());
+
+        return jobRequest(requestType, components, source, async(uri));
+    }
+
+    /**
+     * Whether the {@code async} parameter is set, as {@code ?async} or {@code ?async=true}.
+     */
+    static boolean async(QueryStringDecoder uri)
+    {
+        final List<String> values = uri.getParameters().get("async");
+        if (values == null)
+            return false;
+
+        for (String value : values)
+            if (!"false".equals(value))
+                return true;
+
+        return false;
+    }
 
+    static JsonNode source(ChannelBuffer content)
+    {
+        final JsonNode source;
+        try
+        {
+            source = objectMapper.readTree(new ChannelBufferInputStream(content));
+        }
+        catch (IOException e)
+        {
+            throw new WrappedException(e);
+        }
+
+        if (!source.isObject())
+            throw new InvalidRequest("The source document must be a JSON object");
+
+        return source;
+    }
+
+    /**
+     * Request for the ID given by the components {index}, {type}, {id} and {version}, where the last ones may be
+     * missing for a delete.
+     */
+    static JobRequest jobRequest(DegraphmalizeRequestType requestType, String[] components)
+    {
+        return jobRequest(requestType, components, null);
+    }
+
+    /**
+     * Like {@link #jobRequest(DegraphmalizeRequestType, String[])}, with the source document of an update.
+     */
+    static JobRequest jobRequest(DegraphmalizeRequestType requestType, String[] components, JsonNode source)
+    {
+        return jobRequest(requestType, components, source, false);
+    }
+
+    /**
+     * Like {@link #jobRequest(DegraphmalizeRequestType, String[], JsonNode)}, answered as soon as it is queued.
+     */
+    static JobRequest jobRequest(DegraphmalizeRequestType requestType, String[] components, JsonNode source, boolean async)
+    {
         switch (requestType)
         {
             case DELETE:
@@ -41,7 +124,7 @@ public class DegraphmalizeDecoder extends OneToOneDecoder
 
         }
 
-        return new JobRequest(requestType, actionScopeFor(components), getID(components));
+        return new JobRequest(requestType, actionScopeFor(components), getID(components), source, async);
     }
 
     // HTTP.method ? DELETE => anti-degraphmalize it
@@ -12,6 +12,7 @@ import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.handler.codec.http.HttpVersion;
@@ -41,8 +42,9 @@ public class DegraphmalizeResultEncoder extends OneToOneEncoder
                 final ObjectNode n = objectMapper.createObjectNode();
                 n.put("type", c.getSimpleName());
 
-                final HttpResponse r = new DefaultHttpResponse(HttpVersion.HTTP_1_0, HttpResponseStatus.OK);
+                final HttpResponse r = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
                 r.setContent(ChannelBuffers.copiedBuffer(n.toString(), Charsets.UTF_8));
+                r.setHeader(HttpHeaders.Names.CONTENT_LENGTH, r.getContent().readableBytes());
 
                 return r;
             }
@@ -7,6 +7,8 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Charsets;
 import dgm.exceptions.DegraphmalizerException;
+import dgm.exceptions.Overloaded;
+import dgm.exceptions.Superseded;
 import dgm.exceptions.WrappedException;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
@@ -31,18 +33,36 @@ public class ExceptionHandler extends SimpleChannelHandler
         final DegraphmalizerException ex = wrapException(e.getCause());
         final String json = renderExceptionResponse(objectMapper, ex);
 
-        final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_0, ex.httpStatusCode());
+        final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, ex.httpStatusCode());
         response.setContent(ChannelBuffers.copiedBuffer(json, Charsets.UTF_8));
+        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, response.getContent().readableBytes());
+
+        // tell the client when to come back
+        if(ex instanceof Overloaded)
+            response.setHeader(HttpHeaders.Names.RETRY_AFTER, ((Overloaded) ex).retryAfterInSeconds());
 
         logException(ex);
 
-        if(c.isOpen() && c.isWritable())
-            c.write(response).addListener(ChannelFutureListener.CLOSE);
+        if(!c.isOpen() || !c.isWritable())
+            return;
+
+        final ChannelFuture future = HttpPipeliningHandler.write(c, HttpPipeliningHandler.sequence(e), response);
+
+        // anything else than our own exceptions (like errors of netty's http decoder) leaves the connection unusable
+        if(!(e.getCause() instanceof DegraphmalizerException))
+            future.addListener(ChannelFutureListener.CLOSE);
     }
 
     // log according to severity
     void logException(DegraphmalizerException ex)
     {
+        // expected under load, and there is nothing to see in the stack trace
+        if(ex instanceof Superseded)
+        {
+            log.debug(ex.getMessage());
+            return;
+        }
+
         switch (ex.severity())
         {
             case INFO:
@@ -72,9 +92,22 @@ public class ExceptionHandler extends SimpleChannelHandler
         // TODO wrap in "data" element according to JSEND ?
         // construct JSEND style JSON response http://labs.omniti.com/labs/jsend
 
+        // a newer version arrived, the client has nothing to retry
+        if(ex instanceof Superseded)
+        {
+            final ObjectNode superseded = om.createObjectNode();
+            superseded.put("status", "superseded");
+            superseded.put("severity", ex.severity().name().toLowerCase());
+            superseded.put("class", ex.getClass().getSimpleName());
+            superseded.put("message", ex.getMessage());
+            return superseded.toString();
+        }
+
         final ObjectNode root = renderException(om, ex);
         root.put("status", "error");
         root.put("severity", ex.severity().name().toLowerCase());
+        if(ex instanceof Overloaded)
+            root.put("retryAfter", ((Overloaded) ex).retryAfterInSeconds());
 
         // add optional cause
         final Throwable cause = ex.getCause();
@@ -1,5 +1,8 @@
 package dgm.driver.handler;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
 import com.google.inject.Inject;
 import dgm.Degraphmalizr;
 import dgm.degraphmalizr.degraphmalize.DegraphmalizeCallback;
@@ -7,7 +10,9 @@ import dgm.degraphmalizr.degraphmalize.DegraphmalizeRequest;
 import dgm.degraphmalizr.degraphmalize.DegraphmalizeResult;
 import dgm.degraphmalizr.degraphmalize.JobRequest;
 import dgm.exceptions.DegraphmalizerException;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.http.*;
 import org.nnsoft.guice.sli4j.core.InjectLogger;
 import org.slf4j.Logger;
 
@@ -19,11 +24,15 @@ public class Handler extends SimpleChannelHandler
     private static Logger log;
 
     private final Degraphmalizr degraphmalizr;
+    private final Jobs jobs;
+    private final ObjectMapper objectMapper;
 
     @Inject
-    public Handler(Degraphmalizr degraphmalizr)
+    public Handler(Degraphmalizr degraphmalizr, Jobs jobs, ObjectMapper objectMapper)
     {
         this.degraphmalizr = degraphmalizr;
+        this.jobs = jobs;
+        this.objectMapper = objectMapper;
     }
 
     @Override
@@ -35,6 +44,15 @@ public class Handler extends SimpleChannelHandler
 
         final JobRequest jobRequest = (JobRequest) e.getMessage();
 
+        // the response is written in the order of the requests on this connection
+        final int sequence = HttpPipeliningHandler.sequence(ctx);
+
+        if (jobRequest.async())
+        {
+            accept(ctx.getChannel(), sequence, jobRequest);
+            return;
+        }
+
         final DegraphmalizeCallback callback = new DegraphmalizeCallback()
         {
             @Override
@@ -46,9 +64,9 @@ public class Handler extends SimpleChannelHandler
             @Override
             public void complete(DegraphmalizeResult result)
             {
-                // write completion message and close channel
+                // write completion message, the connection is kept alive if the client wants it
                 log.info("Completed degraphmalization for {}", result);
-                ctx.getChannel().write(result).addListener(ChannelFutureListener.CLOSE);
+                HttpPipeliningHandler.write(ctx.getChannel(), sequence, result);
             }
 
             @Override
@@ -56,10 +74,42 @@ public class Handler extends SimpleChannelHandler
             {
                 // send exception message upstream. We cannot simply throw the exception because this is not executed
                 // in the netty selector thread
-                ctx.sendUpstream(new DefaultExceptionEvent(ctx.getChannel(), exception));
+                ctx.sendUpstream(new HttpPipeliningHandler.RequestFailedEvent(ctx.getChannel(), sequence, exception));
             }
         };
 
-        final Future<DegraphmalizeResult> result = degraphmalizr.degraphmalize(jobRequest.actionType(), jobRequest.actionScope(), jobRequest.id(), callback);
+        final Future<DegraphmalizeResult> result = degraphmalizr.degraphmalize(jobRequest.actionType(), jobRequest.actionScope(), jobRequest.id(), jobRequest.source(), callback);
+    }
+
+    /**
+     * Queue the request and answer with {@code 202 Accepted} and the job to follow it with, without waiting for it.
+     */
+    private void accept(Channel channel, int sequence, JobRequest jobRequest)
+    {
+        final Jobs.Job job = jobs.accept(jobRequest.id());
+        try
+        {
+            degraphmalizr.degraphmalize(jobRequest.actionType(), jobRequest.actionScope(), jobRequest.id(), jobRequest.source(), job);
+        }
+        catch (RuntimeException e)
+        {
+            // not queued, the exception handler tells why
+            jobs.reject(job);
+            throw e;
+        }
+
+        log.info("Accepted degraphmalization for {} as job {}", jobRequest.id(), job.id());
+
+        final ObjectNode body = objectMapper.createObjectNode();
+        body.put("status", "accepted");
+        body.put("job", job.id());
+        body.put("id", jobRequest.id().toString());
+
+        final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.ACCEPTED);
+        response.setContent(ChannelBuffers.copiedBuffer(body.toString(), Charsets.UTF_8));
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "application/json; charset=UTF-8");
+        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, response.getContent().readableBytes());
+        response.setHeader(HttpHeaders.Names.LOCATION, JobsHandler.PATH + "/" + job.id());
+        HttpPipeliningHandler.write(channel, sequence, response);
     }
 }
@@ -2,9 +2,13 @@ package dgm.driver.handler;
 
 import com.google.inject.*;
 import dgm.configuration.Configuration;
+import dgm.degraphmalizr.Admission;
+import dgm.degraphmalizr.FairScheduler;
+import dgm.degraphmalizr.InFlight;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.http.HttpServerCodec;
 import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
 
 import java.util.concurrent.Executor;
 
@@ -14,11 +18,34 @@ import java.util.concurrent.Executor;
  */
 public class HandlerModule extends AbstractModule
 {
+    /**
+     * Request bodies up to this size arrive in one piece, larger ones in chunks
+     */
+    static final int MAX_CHUNK_SIZE = BulkDecoder.MAX_LINE_LENGTH;
+
+    final int jobRetention;
+
+    public HandlerModule()
+    {
+        this(Jobs.DEFAULT_RETENTION);
+    }
+
+    /**
+     * @param jobRetention number of finished async jobs to keep the status of
+     */
+    public HandlerModule(int jobRetention)
+    {
+        this.jobRetention = jobRetention;
+    }
+
     @Override
     protected final void configure()
     {
         // bind to our handler
         bind(ChannelHandler.class).to(Handler.class);
+
+        // the jobs of async requests, over all connections
+        bind(Jobs.class).toInstance(new Jobs(jobRetention));
     }
 
     @Provides
@@ -30,20 +57,38 @@ public class HandlerModule extends AbstractModule
 
     @Provides
     @Inject
-    final ChannelPipeline providePipeline(ChannelHandler handler, Executor executor, Provider<Configuration> cfg)
+    final ChannelPipeline providePipeline(ChannelHandler handler, BulkHandler bulkHandler, Jobs jobs, Admission admission, FairScheduler scheduler, InFlight inFlight, IdleStateHandler idleStateHandler, Executor executor, Provider<Configuration> cfg)
     {
         // construct empty pipeline
         final ChannelPipeline pipeline = Channels.pipeline();
 
-        pipeline.addLast("http-codec", new HttpServerCodec());
+        // notices connections without traffic (see ServerModule)
+        pipeline.addLast("idle", idleStateHandler);
+
+        pipeline.addLast("http-codec", new HttpServerCodec(4096, 8192, MAX_CHUNK_SIZE));
+
+        // keep connections alive, and answer pipelined requests in order
+        pipeline.addLast("pipelining", new HttpPipeliningHandler());
+
+        // status of async requests
+        pipeline.addLast("jobs", new JobsHandler(jobs));
+
+        // load of the degraphmalizer
+        pipeline.addLast("health", new HealthHandler(admission, scheduler, inFlight));
         //pipeline.addLast("chunk-aggregator", new HttpChunkAggregator(1024 * 1024 * 2));
 
+        // convert the body of a bulk request into degraphmalize requests, as it arrives
+        pipeline.addLast("bulk-decoder", new BulkDecoder());
+
         // convert http request into degraphmalize requests
         pipeline.addLast("degraphmalize-decoder", new DegraphmalizeDecoder());
 
         // convert degraphmalize responses into http responses
         pipeline.addLast("degraphmalize-encode", new DegraphmalizeResultEncoder());
 
+        // does the work for bulk requests
+        pipeline.addLast("bulk", bulkHandler);
+
         // does the work
         pipeline.addLast("resource", handler);
 
@@ -0,0 +1,67 @@
+package dgm.driver.handler;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+import dgm.degraphmalizr.Admission;
+import dgm.degraphmalizr.FairScheduler;
+import dgm.degraphmalizr.InFlight;
+import dgm.exceptions.InvalidRequest;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.*;
+
+/**
+ * Answer {@code GET /_health/load} with the load of the degraphmalizer (see {@link Admission}) and of each source index
+ * (see {@link FairScheduler}), so clients can slow down before their requests are refused, and with the work stopped
+ * because a newer version arrived (see {@link InFlight}). Other requests are passed on.
+ */
+public class HealthHandler extends SimpleChannelUpstreamHandler
+{
+    public static final String LOAD_PATH = "/_health/load";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Admission admission;
+    private final FairScheduler scheduler;
+    private final InFlight inFlight;
+
+    public HealthHandler(Admission admission, FairScheduler scheduler, InFlight inFlight)
+    {
+        this.admission = admission;
+        this.scheduler = scheduler;
+        this.inFlight = inFlight;
+    }
+
+    @Override
+    public final void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+    {
+        if (!(e.getMessage() instanceof HttpRequest))
+        {
+            ctx.sendUpstream(e);
+            return;
+        }
+
+        final HttpRequest request = (HttpRequest) e.getMessage();
+        if (!new QueryStringDecoder(request.getUri()).getPath().equals(LOAD_PATH))
+        {
+            ctx.sendUpstream(e);
+            return;
+        }
+
+        if (!HttpMethod.GET.equals(request.getMethod()))
+            throw new InvalidRequest("The load can only be read");
+
+        final ObjectNode body = admission.render(objectMapper);
+        body.put("indices", scheduler.render(objectMapper));
+        body.put("superseded", inFlight.render(objectMapper));
+
+        final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.setContent(ChannelBuffers.copiedBuffer(body.toString(), Charsets.UTF_8));
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "application/json; charset=UTF-8");
+        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, response.getContent().readableBytes());
+        HttpPipeliningHandler.write(ctx.getChannel(), HttpPipeliningHandler.sequence(ctx), response);
+    }
+}
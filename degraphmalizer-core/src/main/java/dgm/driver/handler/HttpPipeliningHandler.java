@@ -0,0 +1,238 @@
+package dgm.driver.handler;
+
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.timeout.IdleStateAwareChannelHandler;
+import org.jboss.netty.handler.timeout.IdleStateEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HTTP/1.1 persistent connections and pipelining.
+ * <p/>
+ * Requests are numbered as they arrive on a connection and passed on right away, so pipelined requests are worked on
+ * concurrently. Their responses are written in the order of the requests: a response that is ready before those of
+ * earlier requests waits here for its turn. Handlers take the number of a request when they receive it, with
+ * {@link #sequence(ChannelHandlerContext)}, and write its response with {@link #write(Channel, int, Object)}. A
+ * response written without a number is for the request being received, like an error while decoding it.
+ * <p/>
+ * After a response the connection stays open, unless the request asked to close it. Connections that have been idle
+ * for the idle timeout of the {@link dgm.driver.server.ServerModule} while no request is in progress are closed.
+ */
+public class HttpPipeliningHandler extends IdleStateAwareChannelHandler
+{
+    private static final Logger log = LoggerFactory.getLogger(HttpPipeliningHandler.class);
+
+    // number of requests received on this channel, only written on the I/O thread
+    private volatile int received = 0;
+
+    // the request whose response is written next, and whether its response has been started
+    private int next = 0;
+    private boolean started = false;
+
+    // keep alive of the requests that have not been answered, and the responses waiting for their turn
+    private final Map<Integer, Boolean> keepAlive = new HashMap<Integer, Boolean>();
+    private final Map<Integer, List<MessageEvent>> waiting = new HashMap<Integer, List<MessageEvent>>();
+
+    /**
+     * An exception while handling a request, after it was received.
+     */
+    public static class RequestFailedEvent extends DefaultExceptionEvent
+    {
+        final int sequence;
+
+        public RequestFailedEvent(Channel channel, int sequence, Throwable cause)
+        {
+            super(channel, cause);
+            this.sequence = sequence;
+        }
+    }
+
+    // the future of a response remembers its request, encoders pass it on
+    private static final class SequencedFuture extends DefaultChannelFuture
+    {
+        final int sequence;
+
+        SequencedFuture(Channel channel, int sequence)
+        {
+            super(channel, false);
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Number of the request that is being received on the channel of this context, {@code -1} if the pipeline
+     * doesn't do pipelining.
+     */
+    public static int sequence(ChannelHandlerContext ctx)
+    {
+        final HttpPipeliningHandler pipelining = ctx.getPipeline().get(HttpPipeliningHandler.class);
+        if (pipelining == null)
+            return -1;
+
+        return pipelining.received - 1;
+    }
+
+    /**
+     * Number of the request an exception is about, {@code -1} if it is about the request being received.
+     */
+    public static int sequence(ExceptionEvent e)
+    {
+        if (e instanceof RequestFailedEvent)
+            return ((RequestFailedEvent) e).sequence;
+
+        return -1;
+    }
+
+    /**
+     * Write (part of) the response to a request.
+     */
+    public static ChannelFuture write(Channel channel, int sequence, Object message)
+    {
+        if (sequence < 0)
+            return channel.write(message);
+
+        final ChannelFuture future = new SequencedFuture(channel, sequence);
+        channel.getPipeline().sendDownstream(new DownstreamMessageEvent(channel, future, message, null));
+        return future;
+    }
+
+    @Override
+    public final void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+    {
+        if (e.getMessage() instanceof HttpRequest)
+        {
+            final boolean keep = HttpHeaders.isKeepAlive((HttpRequest) e.getMessage());
+            synchronized (this)
+            {
+                keepAlive.put(received, keep);
+            }
+            received++;
+        }
+
+        ctx.sendUpstream(e);
+    }
+
+    @Override
+    public final void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+    {
+        final Object message = e.getMessage();
+        if (!(message instanceof HttpResponse) && !(message instanceof HttpChunk))
+        {
+            ctx.sendDownstream(e);
+            return;
+        }
+
+        final int sequence = e.getFuture() instanceof SequencedFuture ? ((SequencedFuture) e.getFuture()).sequence : received - 1;
+
+        synchronized (this)
+        {
+            if (sequence < next)
+            {
+                // nobody asked for this, the connection can't be trusted anymore
+                log.warn("Response for a request that has already been answered on {}, closing it", ctx.getChannel());
+                e.getFuture().setFailure(new IllegalStateException("Request " + sequence + " has already been answered"));
+                ctx.getChannel().close();
+                return;
+            }
+
+            if (sequence > next)
+            {
+                List<MessageEvent> events = waiting.get(sequence);
+                if (events == null)
+                {
+                    events = new ArrayList<MessageEvent>();
+                    waiting.put(sequence, events);
+                }
+                events.add(e);
+                return;
+            }
+
+            send(ctx, e);
+
+            // responses that were waiting for this one
+            List<MessageEvent> events;
+            while ((events = waiting.remove(next)) != null)
+            {
+                final int current = next;
+                for (MessageEvent event : events)
+                    send(ctx, event);
+
+                if (next == current)
+                    break;
+            }
+        }
+    }
+
+    // write a response or a chunk of the response to request next, while synchronized
+    private void send(ChannelHandlerContext ctx, MessageEvent e)
+    {
+        final Object message = e.getMessage();
+        final boolean last;
+
+        if (message instanceof HttpResponse)
+        {
+            final HttpResponse response = (HttpResponse) message;
+            if (started)
+            {
+                // an error in the middle of a streamed response, there is no way to tell the client
+                log.warn("Second response to request {} on {}, closing it", next, ctx.getChannel());
+                e.getFuture().setFailure(new IllegalStateException("Request " + next + " already has a response"));
+                ctx.getChannel().close();
+                return;
+            }
+
+            final Boolean keep = keepAlive.get(next);
+            response.setHeader(HttpHeaders.Names.CONNECTION, Boolean.TRUE.equals(keep) ? HttpHeaders.Values.KEEP_ALIVE : HttpHeaders.Values.CLOSE);
+
+            if (response.isChunked())
+            {
+                started = true;
+                last = false;
+            }
+            else
+            {
+                if (!response.containsHeader(HttpHeaders.Names.CONTENT_LENGTH))
+                    response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, response.getContent().readableBytes());
+                last = true;
+            }
+        }
+        else
+        {
+            last = ((HttpChunk) message).isLast();
+        }
+
+        ctx.sendDownstream(e);
+
+        if (last)
+        {
+            if (!Boolean.TRUE.equals(keepAlive.remove(next)))
+                e.getFuture().addListener(ChannelFutureListener.CLOSE);
+
+            next++;
+            started = false;
+        }
+    }
+
+    @Override
+    public final void channelIdle(ChannelHandlerContext ctx, IdleStateEvent e) throws Exception
+    {
+        synchronized (this)
+        {
+            // requests that are being worked on are not idle
+            if (next < received)
+                return;
+        }
+
+        log.debug("Closing idle connection {}", ctx.getChannel());
+        ctx.getChannel().close();
+    }
+}
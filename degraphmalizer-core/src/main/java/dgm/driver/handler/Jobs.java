@@ -0,0 +1,266 @@
+package dgm.driver.handler;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dgm.ID;
+import dgm.degraphmalizr.degraphmalize.DegraphmalizeCallback;
+import dgm.degraphmalizr.degraphmalize.DegraphmalizeRequest;
+import dgm.degraphmalizr.degraphmalize.DegraphmalizeResult;
+import dgm.degraphmalizr.degraphmalize.ScopedResult;
+import dgm.degraphmalizr.recompute.RecomputeResult;
+import dgm.exceptions.DegraphmalizerException;
+import org.elasticsearch.action.index.IndexResponse;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Degraphmalize requests that were answered as soon as they were queued, with a job ID to ask for their status later
+ * (the {@code async} parameter of a request).
+ * <p/>
+ * Jobs are kept while they are queued or running. Of the finished jobs only the last {@code retention} are kept, with
+ * a summary of their results instead of the results themselves.
+ */
+public class Jobs
+{
+    public static final int DEFAULT_RETENTION = 10000;
+
+    // more results than this are only counted
+    static final int MAX_LISTED_RESULTS = 100;
+
+    public enum Status { QUEUED, RUNNING, COMPLETE, FAILED }
+
+    private final int retention;
+
+    // ids are unique over restarts of the degraphmalizer
+    private final String prefix = Long.toString(System.currentTimeMillis(), 36) + "-";
+    private final AtomicLong count = new AtomicLong();
+
+    // only used for the summaries
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final ConcurrentMap<String, Job> active = new ConcurrentHashMap<String, Job>();
+    private final Map<String, Job> finished;
+
+    public Jobs(int retention)
+    {
+        this.retention = retention;
+        this.finished = new LinkedHashMap<String, Job>()
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Job> eldest)
+            {
+                return size() > Jobs.this.retention;
+            }
+        };
+    }
+
+    /**
+     * A job that has been accepted, and the callback to pass to the degraphmalizer for it.
+     */
+    public final class Job implements DegraphmalizeCallback
+    {
+        final String jobId;
+        final ID id;
+        final long submittedAt = System.currentTimeMillis();
+
+        volatile Status status = Status.QUEUED;
+        volatile long startedAt;
+        volatile long finishedAt;
+
+        // summary of the outcome, once finished
+        volatile ObjectNode outcome;
+
+        Job(String jobId, ID id)
+        {
+            this.jobId = jobId;
+            this.id = id;
+        }
+
+        public String id()
+        {
+            return jobId;
+        }
+
+        public Status status()
+        {
+            return status;
+        }
+
+        @Override
+        public void started(DegraphmalizeRequest request)
+        {
+            startedAt = System.currentTimeMillis();
+            status = Status.RUNNING;
+        }
+
+        @Override
+        public void complete(DegraphmalizeResult result)
+        {
+            final ObjectNode summary = objectMapper.createObjectNode();
+            if (result instanceof ScopedResult)
+            {
+                // a whole index or type only has numbers
+                final ScopedResult scoped = (ScopedResult) result;
+                summary.put("documents", scoped.documents());
+                summary.put("recomputed", scoped.recomputed());
+                summary.put("skipped", scoped.skipped());
+                summary.put("failed", scoped.failed());
+                outcome = summary;
+                finish(this, Status.COMPLETE);
+                return;
+            }
+
+            summary.put("count", result.results().size());
+
+            final ArrayNode list = summary.putArray("results");
+            for (Future<RecomputeResult> future : result.results())
+            {
+                if (list.size() >= MAX_LISTED_RESULTS)
+                    break;
+                list.add(summarize(future));
+            }
+
+            outcome = summary;
+            finish(this, Status.COMPLETE);
+        }
+
+        @Override
+        public void failed(DegraphmalizerException exception)
+        {
+            final ObjectNode error = objectMapper.createObjectNode();
+            error.put("severity", exception.severity().name().toLowerCase());
+            error.put("class", exception.getClass().getSimpleName());
+            error.put("message", exception.getMessage());
+
+            outcome = error;
+            finish(this, Status.FAILED);
+        }
+
+        /**
+         * Status of the job, as JSON.
+         */
+        public ObjectNode render(ObjectMapper om)
+        {
+            final ObjectNode job = om.createObjectNode();
+            job.put("job", jobId);
+            job.put("id", id.toString());
+            job.put("status", status.name().toLowerCase());
+            job.put("submitted", submittedAt);
+            if (startedAt > 0)
+                job.put("started", startedAt);
+            if (finishedAt > 0)
+                job.put("finished", finishedAt);
+
+            final ObjectNode summary = outcome;
+            if (summary != null)
+                job.put(status == Status.FAILED ? "error" : "results", summary);
+
+            return job;
+        }
+    }
+
+    /**
+     * Start tracking a job for the request of an ID. Pass the job as the callback of the request.
+     */
+    public Job accept(ID id)
+    {
+        final Job job = new Job(prefix + Long.toString(count.incrementAndGet(), 36), id);
+        active.put(job.jobId, job);
+        return job;
+    }
+
+    /**
+     * Forget a job that could not be queued after all.
+     */
+    public void reject(Job job)
+    {
+        active.remove(job.jobId);
+    }
+
+    /**
+     * The job with this ID, or {@code null} if it is unknown or has been forgotten.
+     */
+    public Job get(String jobId)
+    {
+        final Job job = active.get(jobId);
+        if (job != null)
+            return job;
+
+        synchronized (finished)
+        {
+            return finished.get(jobId);
+        }
+    }
+
+    /**
+     * Number of jobs per status, as JSON.
+     */
+    public ObjectNode render(ObjectMapper om)
+    {
+        int queued = 0;
+        int running = 0;
+        for (Job job : active.values())
+        {
+            if (job.status == Status.QUEUED)
+                queued++;
+            else
+                running++;
+        }
+
+        final ObjectNode jobs = om.createObjectNode();
+        jobs.put("queued", queued);
+        jobs.put("running", running);
+        synchronized (finished)
+        {
+            jobs.put("finished", finished.size());
+        }
+        jobs.put("retention", retention);
+        return jobs;
+    }
+
+    private void finish(Job job, Status status)
+    {
+        job.finishedAt = System.currentTimeMillis();
+        job.status = status;
+
+        synchronized (finished)
+        {
+            finished.put(job.jobId, job);
+        }
+        active.remove(job.jobId);
+    }
+
+    private ObjectNode summarize(Future<RecomputeResult> future)
+    {
+        final ObjectNode summary = objectMapper.createObjectNode();
+        try
+        {
+            final IndexResponse ir = future.get().indexResponse();
+            summary.put("status", "ok");
+            if (ir != null)
+                summary.put("id", new ID(ir.index(), ir.type(), ir.id(), ir.version()).toString());
+        }
+        catch (ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            summary.put("status", "error");
+            if (cause instanceof DegraphmalizerException)
+                summary.put("severity", ((DegraphmalizerException) cause).severity().name().toLowerCase());
+            summary.put("class", cause.getClass().getSimpleName());
+            summary.put("message", cause.getMessage());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            summary.put("status", "unknown");
+        }
+        return summary;
+    }
+}
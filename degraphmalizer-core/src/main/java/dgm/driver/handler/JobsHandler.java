@@ -0,0 +1,70 @@
+package dgm.driver.handler;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+import dgm.exceptions.InvalidRequest;
+import dgm.exceptions.UnknownJob;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.*;
+
+/**
+ * Answer {@code GET /_jobs/{job}} with the status of a job (see {@link Jobs}), and {@code GET /_jobs} with the number
+ * of jobs. Other requests are passed on.
+ */
+public class JobsHandler extends SimpleChannelUpstreamHandler
+{
+    public static final String PATH = "/_jobs";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Jobs jobs;
+
+    public JobsHandler(Jobs jobs)
+    {
+        this.jobs = jobs;
+    }
+
+    @Override
+    public final void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+    {
+        if (!(e.getMessage() instanceof HttpRequest))
+        {
+            ctx.sendUpstream(e);
+            return;
+        }
+
+        final HttpRequest request = (HttpRequest) e.getMessage();
+        final String path = new QueryStringDecoder(request.getUri()).getPath();
+        if (!path.equals(PATH) && !path.startsWith(PATH + "/"))
+        {
+            ctx.sendUpstream(e);
+            return;
+        }
+
+        if (!HttpMethod.GET.equals(request.getMethod()))
+            throw new InvalidRequest("Jobs can only be read");
+
+        final String jobId = path.length() > PATH.length() + 1 ? path.substring(PATH.length() + 1) : null;
+
+        final ObjectNode body;
+        if (jobId == null)
+            body = jobs.render(objectMapper);
+        else
+        {
+            final Jobs.Job job = jobs.get(jobId);
+            if (job == null)
+                throw new UnknownJob(jobId);
+            body = job.render(objectMapper);
+        }
+
+        final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.setContent(ChannelBuffers.copiedBuffer(body.toString(), Charsets.UTF_8));
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "application/json; charset=UTF-8");
+        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, response.getContent().readableBytes());
+        HttpPipeliningHandler.write(ctx.getChannel(), HttpPipeliningHandler.sequence(ctx), response);
+    }
+}
@@ -7,6 +7,7 @@ import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.util.Timer;
 
 import java.net.SocketAddress;
 
@@ -19,13 +20,15 @@ public class Server extends AbstractIdleService
     final SocketAddress address;
     final ServerBootstrap bootstrap;
     final ChannelFactory factory;
+    final Timer timer;
 
     @Inject
-    public Server(ServerBootstrap bootstrap, ChannelFactory factory, SocketAddress address)
+    public Server(ServerBootstrap bootstrap, ChannelFactory factory, SocketAddress address, Timer timer)
     {
         this.address = address;
         this.bootstrap = bootstrap;
         this.factory = factory;
+        this.timer = timer;
     }
 
     @Override
@@ -41,5 +44,6 @@ public class Server extends AbstractIdleService
     {
         allChannels.close().awaitUninterruptibly();
         factory.releaseExternalResources();
+        timer.stop();
     }
 }
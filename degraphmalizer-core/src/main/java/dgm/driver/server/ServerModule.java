@@ -7,6 +7,9 @@ import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -19,13 +22,29 @@ import java.util.concurrent.Executors;
  */
 public class ServerModule extends AbstractModule
 {
+    /**
+     * Connections are kept alive between requests, but not forever
+     */
+    public static final int DEFAULT_IDLE_TIMEOUT_IN_SECONDS = 300;
+
     final int port;
     final String host;
+    final int idleTimeoutInSeconds;
 
     public ServerModule(String host, int port)
+    {
+        this(host, port, DEFAULT_IDLE_TIMEOUT_IN_SECONDS);
+    }
+
+    /**
+     * @param idleTimeoutInSeconds close connections without requests in progress after this long without traffic,
+     *                             {@code 0} to keep them open
+     */
+    public ServerModule(String host, int port, int idleTimeoutInSeconds)
     {
         this.host = host;
         this.port = port;
+        this.idleTimeoutInSeconds = idleTimeoutInSeconds;
     }
 
     @Override
@@ -60,6 +79,19 @@ public class ServerModule extends AbstractModule
         return bootstrap;
     }
 
+    @Provides @Singleton
+    final Timer provideTimer()
+    {
+        return new HashedWheelTimer();
+    }
+
+    @Provides @Inject @Singleton
+    final IdleStateHandler provideIdleStateHandler(Timer timer)
+    {
+        // shared by all connections, it keeps its state per connection
+        return new IdleStateHandler(timer, 0, 0, idleTimeoutInSeconds);
+    }
+
     @Provides @Inject @Singleton
     final ChannelFactory provideChannelFactory()
     {
@@ -0,0 +1,12 @@
+package dgm.exceptions;
+
+/**
+ * The request was cancelled before it was done.
+ */
+public class Cancelled extends DegraphmalizerException
+{
+    public Cancelled(String message)
+    {
+        super(message, Severity.WARN);
+    }
+}
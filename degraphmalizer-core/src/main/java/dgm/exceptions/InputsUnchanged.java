@@ -0,0 +1,26 @@
+package dgm.exceptions;
+
+import dgm.ID;
+
+/**
+ * The inputs of a recompute (source version, versions of the walked documents and the configuration) are the same
+ * as those of the target document already in ES, so there is nothing to recompute.
+ */
+public class InputsUnchanged extends DegraphmalizerException
+{
+    final protected ID id;
+
+    public InputsUnchanged(ID id)
+    {
+        super("Inputs of " + id + " are unchanged: target document is up to date and not rewritten", Severity.INFO);
+        this.id = id;
+    }
+
+    /**
+     * Get the ID of the source document that was not recomputed.
+     */
+    public ID id()
+    {
+        return id;
+    }
+}
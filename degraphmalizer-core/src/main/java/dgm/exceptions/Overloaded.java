@@ -0,0 +1,35 @@
+package dgm.exceptions;
+
+import dgm.ID;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * The degraphmalizer has more work than it can handle, the request should be sent again after a while.
+ */
+public class Overloaded extends DegraphmalizerException
+{
+    final int retryAfterInSeconds;
+
+    public Overloaded(ID id, int retryAfterInSeconds)
+    {
+        super("Too busy to degraphmalize " + id + ", retry after " + retryAfterInSeconds + " seconds", Severity.WARN);
+        this.retryAfterInSeconds = retryAfterInSeconds;
+    }
+
+    public Overloaded(int retryAfterInSeconds)
+    {
+        super("Too busy, retry after " + retryAfterInSeconds + " seconds", Severity.WARN);
+        this.retryAfterInSeconds = retryAfterInSeconds;
+    }
+
+    public int retryAfterInSeconds()
+    {
+        return retryAfterInSeconds;
+    }
+
+    @Override
+    public HttpResponseStatus httpStatusCode()
+    {
+        return HttpResponseStatus.SERVICE_UNAVAILABLE;
+    }
+}
@@ -0,0 +1,23 @@
+package dgm.exceptions;
+
+import dgm.ID;
+
+/**
+ * A newer version of the document arrived while this one was in progress, so the work for this version was stopped:
+ * the newer version does it again.
+ */
+public class Superseded extends DegraphmalizerException
+{
+    final protected ID id;
+
+    public Superseded(ID id, long latest)
+    {
+        super("Stopped work on " + id + " because version " + latest + " arrived", Severity.INFO);
+        this.id = id;
+    }
+
+    public ID id()
+    {
+        return id;
+    }
+}
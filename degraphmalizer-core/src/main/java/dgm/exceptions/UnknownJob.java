@@ -0,0 +1,20 @@
+package dgm.exceptions;
+
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * There is no job with this ID, or it finished so long ago that it has been forgotten.
+ */
+public class UnknownJob extends DegraphmalizerException
+{
+    public UnknownJob(String jobId)
+    {
+        super("Unknown job " + jobId, Severity.INFO);
+    }
+
+    @Override
+    public HttpResponseStatus httpStatusCode()
+    {
+        return HttpResponseStatus.NOT_FOUND;
+    }
+}
@@ -3,6 +3,7 @@ package dgm.modules;
 import com.google.inject.AbstractModule;
 import dgm.Degraphmalizr;
 import dgm.degraphmalizr.Degraphmalizer;
+import dgm.degraphmalizr.InFlight;
 import dgm.degraphmalizr.recompute.*;
 
 public class DegraphmalizerModule extends AbstractModule
@@ -12,6 +13,8 @@ public class DegraphmalizerModule extends AbstractModule
     {
         bind(Degraphmalizr.class).to(Degraphmalizer.class).asEagerSingleton();
         bind(Recomputer.class).to(RecomputerFactoryImpl.class).asEagerSingleton();
+        bind(TargetIndices.class).asEagerSingleton();
+        bind(InFlight.class).asEagerSingleton();
         bind(ServiceRunner.class).asEagerSingleton();
     }
 }
@@ -4,12 +4,17 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
+import dgm.degraphmalizr.Admission;
+import dgm.degraphmalizr.FairScheduler;
+import dgm.degraphmalizr.ScopedRuns;
 import dgm.modules.bindingannotations.Degraphmalizes;
 import dgm.modules.bindingannotations.Fetches;
 import dgm.modules.bindingannotations.Recomputes;
 import dgm.modules.elasticsearch.DocumentProvider;
 import dgm.modules.elasticsearch.QueryFunction;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.*;
 
 public class ThreadpoolModule extends AbstractModule
@@ -18,12 +23,48 @@ public class ThreadpoolModule extends AbstractModule
     private static int MAXTHREADPOOLSIZE=64;
     private static int QUEUELIMIT=65536;
 
+    private final int maxQueued;
+    private final int maxInFlight;
+    private final int sliceSize;
+    private final int maxDocumentsPerSecond;
+    private final int scopedParallelism;
+    private final int maxInFlightPerIndex;
+    private final Map<String, Integer> weights;
+
+    public ThreadpoolModule()
+    {
+        this(Admission.DEFAULT_MAX_QUEUED, Admission.DEFAULT_MAX_IN_FLIGHT, ScopedRuns.DEFAULT_SLICE_SIZE, 0,
+                ScopedRuns.DEFAULT_PARALLELISM, FairScheduler.DEFAULT_MAX_IN_FLIGHT_PER_INDEX, Collections.<String, Integer>emptyMap());
+    }
+
+    /**
+     * @param maxQueued degraphmalize requests waiting in the queue before new ones are refused
+     * @param maxInFlight recomputes in progress before new requests are refused
+     * @param sliceSize documents a request for a whole index or type does before it lets other requests go first
+     * @param maxDocumentsPerSecond documents per second a request for a whole index or type does at most, 0 for no limit
+     * @param scopedParallelism documents a request for a whole index or type recomputes at the same time
+     * @param maxInFlightPerIndex degraphmalize tasks of one source index waiting or running before new ones are refused
+     * @param weights share of the degraphmalize thread of the source indices, {@code 1} if not given
+     */
+    public ThreadpoolModule(int maxQueued, int maxInFlight, int sliceSize, int maxDocumentsPerSecond, int scopedParallelism, int maxInFlightPerIndex, Map<String, Integer> weights)
+    {
+        this.maxQueued = maxQueued;
+        this.maxInFlight = maxInFlight;
+        this.sliceSize = sliceSize;
+        this.maxDocumentsPerSecond = maxDocumentsPerSecond;
+        this.scopedParallelism = scopedParallelism;
+        this.maxInFlightPerIndex = maxInFlightPerIndex;
+        this.weights = weights;
+    }
 
     @Override
     protected final void configure()
     {
         bind(DocumentProvider.class).asEagerSingleton();
         bind(QueryFunction.class);
+
+        // the limits of the degraphmalize queue
+        bind(Admission.class).toInstance(new Admission(maxQueued, maxInFlight));
     }
 
     @Provides
@@ -38,6 +79,22 @@ public class ThreadpoolModule extends AbstractModule
         return Executors.newSingleThreadExecutor(namedThreadFactory);
     }
 
+    @Provides
+    @Singleton
+    final FairScheduler provideFairScheduler(@Degraphmalizes ExecutorService degraphmalizeQueue)
+    {
+        // the source indices take turns on the single degraphmalize thread
+        return new FairScheduler(degraphmalizeQueue, maxInFlightPerIndex, weights);
+    }
+
+    @Provides
+    @Singleton
+    final ScopedRuns provideScopedRuns(FairScheduler scheduler, Admission admission)
+    {
+        // requests for a whole index or type share the degraphmalize thread a slice at a time, and recompute on workers of their own
+        return new ScopedRuns(scheduler, admission, sliceSize, maxDocumentsPerSecond, scopedParallelism);
+    }
+
     @Provides
     @Singleton
     @Recomputes
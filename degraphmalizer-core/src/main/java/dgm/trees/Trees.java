@@ -99,6 +99,19 @@ public final class Trees
 		}
 	}
 	
+	/**
+	 * Copy a tree into {@link ImmutableTree}s, so all lazily computed values (see {@link #map}) are computed exactly
+	 * once, instead of every time the children are iterated.
+	 */
+	public static <A> Tree<A> materialize(Tree<A> tree)
+	{
+		final ArrayList<Tree<A>> children = new ArrayList<Tree<A>>();
+		for (Tree<A> child : tree.children())
+			children.add(materialize(child));
+
+		return new ImmutableTree<A>(tree.value(), children);
+	}
+
 	/**
 	 * Turn a {@link Function} into an {@link Callable}
 	 * 
@@ -134,6 +147,26 @@ public final class Trees
 	 */
 	public static <A,B> Tree<B> pmap(final ExecutorService executor, final Function<A,B> fn, Tree<A> tree)
 	        throws InterruptedException, ExecutionException
+	{
+		return pmap(executor, fn, tree, false);
+	}
+
+	/**
+	 * Like {@link #pmap}, but the jobs for all nodes are submitted at once and this call returns when they are all
+	 * done, so the resulting tree is fully computed (see {@link #materialize}).
+	 *
+	 * @param executor Where to submit the jobs to
+	 * @param fn The function applied to every node in the tree
+	 * @param tree The tree to map
+	 */
+	public static <A,B> Tree<B> pmapStrict(final ExecutorService executor, final Function<A,B> fn, Tree<A> tree)
+	        throws InterruptedException, ExecutionException
+	{
+		return pmap(executor, fn, tree, true);
+	}
+
+	private static <A,B> Tree<B> pmap(final ExecutorService executor, final Function<A,B> fn, Tree<A> tree, boolean strict)
+	        throws InterruptedException, ExecutionException
 	{
         final class PmapException extends RuntimeException
         {
@@ -181,12 +214,12 @@ public final class Trees
 			};
 
         // for each node in the tree, start a job
-        final Tree<Future<B>> jobTree = map(toJob, tree);
+        final Tree<Future<B>> jobTree = strict ? materialize(map(toJob, tree)) : map(toJob, tree);
 
         try
         {
             // blocking wait for all jobs to finish
-            return map(waitDone, jobTree);
+            return strict ? materialize(map(waitDone, jobTree)) : map(waitDone, jobTree);
         }
         catch (final PmapException exception)
         {
@@ -0,0 +1,85 @@
+package dgm.configuration.declarative;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
+import dgm.ID;
+import dgm.Subgraph;
+import dgm.configuration.javascript.JavascriptConfiguration;
+import dgm.exceptions.ConfigurationException;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@Test
+public class DeclarativeTypeConfigTest
+{
+    final ObjectMapper om = new ObjectMapper();
+
+    final String definition = "{" +
+            "\"sourceIndex\": \"alice\", \"sourceType\": \"author\"," +
+            "\"filter\": [{\"field\": \"meta.published\", \"equals\": true}, {\"field\": \"deleted\", \"exists\": false}]," +
+            "\"extract\": [{\"field\": \"books\", \"label\": \"wrote_book\", \"index\": \"bob\", \"type\": \"books\", \"direction\": \"OUTWARDS\"}]," +
+            "\"walks\": {\"bookwalk\": {\"direction\": \"OUT\", \"properties\": {\"titles\": {\"pluck\": \"title\"}, \"count\": {\"reduce\": \"count\"}}}}" +
+            "}";
+
+    private DeclarativeTypeConfig config() throws IOException
+    {
+        return new DeclarativeTypeConfig(om, "author", om.readTree(definition), null, "hash");
+    }
+
+    public void testExtractAddsEdgePerValue() throws IOException
+    {
+        final JsonNode doc = om.readTree("{\"books\": [\"1\", \"2\"]}");
+        final Subgraph sg = config().extract(doc);
+
+        assertThat(Iterables.size(sg.edges())).isEqualTo(2);
+
+        final Subgraph.Edge edge = sg.edges().iterator().next();
+        assertThat(edge.label()).isEqualTo("wrote_book");
+        assertThat(edge.direction()).isEqualTo(Subgraph.Direction.OUTWARDS);
+        assertThat(edge.other()).isEqualTo(new ID("bob", "books", "1", 0));
+    }
+
+    public void testExtractWithoutField() throws IOException
+    {
+        final Subgraph sg = config().extract(om.readTree("{\"title\": \"x\"}"));
+
+        assertThat(Iterables.isEmpty(sg.edges())).isTrue();
+    }
+
+    public void testFilter() throws IOException
+    {
+        final DeclarativeTypeConfig config = config();
+
+        assertThat(config.filter(om.readTree("{\"meta\": {\"published\": true}}"))).isTrue();
+        assertThat(config.filter(om.readTree("{\"meta\": {\"published\": false}}"))).isFalse();
+        assertThat(config.filter(om.readTree("{\"meta\": {\"published\": true}, \"deleted\": 1}"))).isFalse();
+        assertThat(config.filter(om.readTree("{}"))).isFalse();
+    }
+
+    public void testWalks() throws IOException
+    {
+        final DeclarativeTypeConfig config = config();
+
+        assertThat(config.walks().keySet()).containsOnly("bookwalk");
+        assertThat(config.walks().get("bookwalk").properties().keySet()).containsOnly("titles", "count");
+    }
+
+    @Test(expectedExceptions = ConfigurationException.class)
+    public void testTypeConfiguredTwice() throws IOException
+    {
+        final File directory = Files.createTempDir();
+        final File index = new File(directory, "bob");
+        index.mkdir();
+        Files.write(definition, new File(index, "author.conf.json"), Charsets.UTF_8);
+        Files.write("({sourceIndex: \"alice\", sourceType: \"author\"})", new File(index, "author.conf.js"), Charsets.UTF_8);
+
+        new JavascriptConfiguration(om, directory);
+    }
+}
@@ -0,0 +1,213 @@
+package dgm.configuration.reducers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.io.Files;
+import com.tinkerpop.blueprints.Direction;
+import dgm.configuration.PropertyConfig;
+import dgm.configuration.TypeConfig;
+import dgm.configuration.WalkConfig;
+import dgm.configuration.javascript.JavascriptConfiguration;
+import dgm.exceptions.ConfigurationException;
+import dgm.modules.elasticsearch.ResolvedPathElement;
+import dgm.trees.ImmutableTree;
+import dgm.trees.Tree;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * The built-in reducers, over documents fetched from a local elasticsearch node.
+ */
+@Test
+public class NativeReducersTest
+{
+    final ObjectMapper om = new ObjectMapper();
+
+    final WalkConfig authors = new WalkConfig()
+    {
+        @Override
+        public Direction direction()
+        {
+            return Direction.OUT;
+        }
+
+        @Override
+        public TypeConfig type()
+        {
+            return null;
+        }
+
+        @Override
+        public Map<String, ? extends PropertyConfig> properties()
+        {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public String name()
+        {
+            return "authors";
+        }
+    };
+
+    Node node;
+    Client client;
+
+    @BeforeClass
+    public void startNode()
+    {
+        final String dir = Files.createTempDir().getAbsolutePath();
+        node = NodeBuilder.nodeBuilder().local(true).clusterName("native-reducers-test")
+                .settings(ImmutableSettings.settingsBuilder()
+                        .put("path.data", dir + "/data")
+                        .put("path.work", dir + "/work")
+                        .put("node.http.enabled", false)
+                        .put("gateway.type", "none")
+                        .put("index.store.type", "memory"))
+                .node();
+        client = node.client();
+
+        client.prepareIndex("books", "book", "root").setSource("{\"title\": \"Root\", \"genre\": \"none\"}").execute().actionGet();
+        client.prepareIndex("books", "book", "1").setSource("{\"title\": \"Dune\", \"genre\": \"sf\"}").execute().actionGet();
+        client.prepareIndex("books", "book", "2").setSource("{\"genre\": \"fantasy\"}").execute().actionGet();
+        client.prepareIndex("books", "book", "3").setSource("{\"title\": \"Hyperion\", \"genre\": \"sf\"}").execute().actionGet();
+    }
+
+    @AfterClass
+    public void stopNode()
+    {
+        node.close();
+    }
+
+    @Test
+    public void countSkipsRootAndMissingDocuments()
+    {
+        final JsonNode count = property("{\"reduce\": \"count\"}").reduce(walk());
+
+        assertThat(count.asInt()).isEqualTo(3);
+    }
+
+    @Test
+    public void collectLeavesOutMissingFields() throws IOException
+    {
+        final JsonNode collected = property("{\"collect\": [\"title\", \"_id\", \"_index\"]}").reduce(walk());
+
+        assertThat(collected).isEqualTo(om.readTree("[" +
+                "{\"title\": \"Dune\", \"_id\": \"1\", \"_index\": \"books\"}," +
+                "{\"_id\": \"2\", \"_index\": \"books\"}," +
+                "{\"title\": \"Hyperion\", \"_id\": \"3\", \"_index\": \"books\"}]"));
+    }
+
+    @Test
+    public void collectWithReduceAndFields() throws IOException
+    {
+        final JsonNode collected = property("{\"reduce\": \"collect\", \"fields\": \"_version\"}").reduce(walk());
+
+        assertThat(collected).isEqualTo(om.readTree("[{\"_version\": 1}, {\"_version\": 1}, {\"_version\": 1}]"));
+    }
+
+    @Test
+    public void pluckSkipsDocumentsWithoutTheField() throws IOException
+    {
+        final JsonNode titles = property("{\"pluck\": \"title\"}").reduce(walk());
+
+        assertThat(titles).isEqualTo(om.readTree("[\"Dune\", \"Hyperion\"]"));
+    }
+
+    @Test
+    public void distinctKeepsTheOrderOfTheWalk() throws IOException
+    {
+        final JsonNode genres = property("{\"distinct\": [\"genre\"]}").reduce(walk());
+
+        assertThat(genres).isEqualTo(om.readTree("[\"sf\", \"fantasy\"]"));
+    }
+
+    @Test(expectedExceptions = ConfigurationException.class)
+    public void unknownReducerFails()
+    {
+        property("{\"reduce\": \"sum\"}");
+    }
+
+    @Test(expectedExceptions = ConfigurationException.class)
+    public void collectWithoutFieldsFails()
+    {
+        property("{\"collect\": []}");
+    }
+
+    @Test(expectedExceptions = ConfigurationException.class)
+    public void pluckWithTwoFieldsFails()
+    {
+        property("{\"pluck\": [\"title\", \"genre\"]}");
+    }
+
+    @Test(expectedExceptions = ConfigurationException.class)
+    public void definitionWithoutReducerFails()
+    {
+        property("{\"nested\": true}");
+    }
+
+    @Test
+    public void javascriptPropertiesAreReadLikeJson() throws IOException
+    {
+        final File directory = Files.createTempDir();
+        final File index = new File(directory, "catalog");
+        index.mkdir();
+        Files.write("({sourceIndex: \"books\", sourceType: \"book\", walks: {authors: {direction: \"OUT\", properties: {" +
+                "count: {reduce: \"count\"}, titles: {pluck: \"title\"}, genres: {reduce: \"distinct\", fields: [\"genre\"]}}}}})",
+                new File(index, "book.conf.js"), Charsets.UTF_8);
+
+        final Map<String, ? extends PropertyConfig> properties = new JavascriptConfiguration(om, directory)
+                .indices().get("catalog").types().get("book").walks().get("authors").properties();
+
+        assertThat(properties.get("count").reduce(walk()).asInt()).isEqualTo(3);
+        assertThat(properties.get("titles").reduce(walk())).isEqualTo(om.readTree("[\"Dune\", \"Hyperion\"]"));
+        assertThat(properties.get("genres").reduce(walk())).isEqualTo(om.readTree("[\"sf\", \"fantasy\"]"));
+    }
+
+    private PropertyConfig property(String definition)
+    {
+        try
+        {
+            return NativeReducers.fromJson(om, "property", authors, om.readTree(definition));
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The root book, with the other books and one that doesn't exist below it.
+     */
+    @SuppressWarnings("unchecked")
+    private Tree<ResolvedPathElement> walk()
+    {
+        final List<Tree<ResolvedPathElement>> children = new ArrayList<Tree<ResolvedPathElement>>();
+        children.add(new ImmutableTree<ResolvedPathElement>(book("1"), new ImmutableTree<ResolvedPathElement>(book("3"))));
+        children.add(new ImmutableTree<ResolvedPathElement>(book("missing")));
+        children.add(new ImmutableTree<ResolvedPathElement>(book("2")));
+
+        return new ImmutableTree<ResolvedPathElement>(book("root"), children);
+    }
+
+    private ResolvedPathElement book(String id)
+    {
+        return new ResolvedPathElement(Optional.of(client.prepareGet("books", "book", id).execute().actionGet()), null, null);
+    }
+}
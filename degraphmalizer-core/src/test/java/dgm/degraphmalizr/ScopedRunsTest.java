@@ -0,0 +1,458 @@
+package dgm.degraphmalizr;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.tg.TinkerGraph;
+import dgm.GraphUtilities;
+import dgm.ID;
+import dgm.configuration.TypeConfig;
+import dgm.degraphmalizr.degraphmalize.*;
+import dgm.exceptions.Cancelled;
+import dgm.exceptions.DegraphmalizerException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Runs over the books in an in-memory graph, with slices that work like those of the {@link Degraphmalizer} and
+ * recomputes that wait for a gate.
+ */
+@Test
+public class ScopedRunsTest
+{
+    final ObjectMapper om = new ObjectMapper();
+    final TinkerGraph graph = new TinkerGraph();
+
+    // the books the runs find, in order; only changed on the degraphmalize thread once a run started
+    final List<Vertex> books = new ArrayList<Vertex>();
+    final Map<String, Vertex> vertices = new HashMap<String, Vertex>();
+
+    // the documents of the runs in the order the slices did them
+    final List<String> done = Collections.synchronizedList(new ArrayList<String>());
+
+    final AtomicInteger slicesDone = new AtomicInteger();
+
+    ExecutorService degraphmalizeQueue;
+    CountingAdmission admission;
+    ScopedRuns runs;
+
+    // the recomputes wait until it is opened
+    volatile CountDownLatch gate;
+
+    // a book added to the graph after this document is done, like a request for a single document would
+    volatile String addAfter = null;
+
+    static class CountingAdmission extends Admission
+    {
+        final AtomicInteger finished = new AtomicInteger();
+
+        CountingAdmission()
+        {
+            super(DEFAULT_MAX_QUEUED, DEFAULT_MAX_IN_FLIGHT);
+        }
+
+        @Override
+        public void finished()
+        {
+            finished.incrementAndGet();
+            super.finished();
+        }
+    }
+
+    static class Callback implements DegraphmalizeCallback
+    {
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger complete = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        @Override
+        public void started(DegraphmalizeRequest request)
+        {
+            started.incrementAndGet();
+        }
+
+        @Override
+        public void complete(DegraphmalizeResult result)
+        {
+            complete.incrementAndGet();
+        }
+
+        @Override
+        public void failed(DegraphmalizerException exception)
+        {
+            failed.incrementAndGet();
+        }
+    }
+
+    abstract static class Until
+    {
+        abstract boolean done();
+    }
+
+    final ScopedRuns.VertexFinder finder = new ScopedRuns.VertexFinder()
+    {
+        @Override
+        public Iterable<Vertex> find(DegraphmalizeRequest action)
+        {
+            return books;
+        }
+    };
+
+    final ScopedRuns.SliceFactory slices = new ScopedRuns.SliceFactory()
+    {
+        @Override
+        public Runnable sliceOf(final ScopedRuns.Run run)
+        {
+            return new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    final long start = System.currentTimeMillis();
+                    int documents = 0;
+                    runs.running(run);
+                    if (run.page.isEmpty())
+                        runs.readPage(run, finder, om);
+
+                    if (run.page.isEmpty())
+                        run.exhausted = true;
+
+                    while (documents < runs.sliceSize() && !run.page.isEmpty() && !run.stopped() && runs.acquire(run))
+                    {
+                        final ID id = run.page.removeFirst();
+                        documents++;
+                        run.position++;
+                        document(run, id);
+                    }
+                    runs.sliceDone(run, documents, start);
+                    slicesDone.incrementAndGet();
+                }
+            };
+        }
+    };
+
+    @BeforeMethod
+    public void clear()
+    {
+        books.clear();
+        vertices.clear();
+        done.clear();
+        slicesDone.set(0);
+        addAfter = null;
+        gate = new CountDownLatch(0);
+        degraphmalizeQueue = Executors.newSingleThreadExecutor();
+        admission = new CountingAdmission();
+    }
+
+    @AfterMethod
+    public void stop()
+    {
+        degraphmalizeQueue.shutdownNow();
+    }
+
+    @Test
+    public void runDoesEveryDocumentOnce() throws Exception
+    {
+        runs = runs(4, 0, 2);
+        addBooks(10);
+
+        final Callback callback = new Callback();
+        final ScopedResult result = (ScopedResult) start(DegraphmalizeRequestType.UPDATE, callback).future.get(10, TimeUnit.SECONDS);
+
+        assertThat(result.documents()).isEqualTo(10);
+        assertThat(result.recomputed()).isEqualTo(9);
+        assertThat(result.skipped()).isEqualTo(1);
+        assertThat(result.failed()).isEqualTo(0);
+        assertThat(done).isEqualTo(ids(0, 10));
+        assertThat(callback.started.get()).isEqualTo(1);
+        assertThat(callback.complete.get()).isEqualTo(1);
+        assertThat(callback.failed.get()).isEqualTo(0);
+        assertThat(admission.finished.get()).isEqualTo(1);
+        assertThat(runs.getActiveRuns()).isEqualTo(0);
+    }
+
+    @Test
+    public void pausedRunWaitsForResume() throws Exception
+    {
+        runs = runs(4, 0, 2);
+        addBooks(10);
+        gate = new CountDownLatch(1);
+
+        final Callback callback = new Callback();
+        final ScopedRuns.Run run = start(DegraphmalizeRequestType.UPDATE, callback);
+        waitForFirstSlice(run);
+
+        // the slice ended waiting for room, the worker that makes room pauses the run
+        assertThat(runs.pause(run.number)).isTrue();
+        gate.countDown();
+        waitUntil(new Until()
+        {
+            @Override
+            boolean done()
+            {
+                return run.state == ScopedRuns.State.PAUSED && run.recomputing() == 0;
+            }
+        });
+        assertThat(runs.pause(run.number)).isFalse();
+
+        final int slices = slicesDone.get();
+        Thread.sleep(200);
+        assertThat(slicesDone.get()).isEqualTo(slices);
+        assertThat(run.state).isEqualTo(ScopedRuns.State.PAUSED);
+        assertThat(run.future.isDone()).isFalse();
+        assertThat(admission.finished.get()).isEqualTo(0);
+
+        assertThat(runs.resume(run.number)).isTrue();
+        final ScopedResult result = (ScopedResult) run.future.get(10, TimeUnit.SECONDS);
+        assertThat(result.documents()).isEqualTo(10);
+        assertThat(done).isEqualTo(ids(0, 10));
+        assertThat(run.state).isEqualTo(ScopedRuns.State.COMPLETE);
+        assertThat(runs.resume(run.number)).isFalse();
+        assertThat(callback.complete.get()).isEqualTo(1);
+        assertThat(callback.failed.get()).isEqualTo(0);
+        assertThat(admission.finished.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void pauseIsTakenBackByResume() throws Exception
+    {
+        runs = runs(4, 0, 2);
+        addBooks(10);
+        gate = new CountDownLatch(1);
+
+        final Callback callback = new Callback();
+        final ScopedRuns.Run run = start(DegraphmalizeRequestType.UPDATE, callback);
+        waitForFirstSlice(run);
+
+        // resumed before the run got to pause, so it simply goes on
+        assertThat(runs.pause(run.number)).isTrue();
+        assertThat(runs.resume(run.number)).isTrue();
+        gate.countDown();
+
+        assertThat(((ScopedResult) run.future.get(10, TimeUnit.SECONDS)).documents()).isEqualTo(10);
+        assertThat(callback.complete.get()).isEqualTo(1);
+        assertThat(admission.finished.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void cancelWhileWaitingForRoom() throws Exception
+    {
+        runs = runs(4, 0, 2);
+        addBooks(10);
+        gate = new CountDownLatch(1);
+
+        final Callback callback = new Callback();
+        final ScopedRuns.Run run = start(DegraphmalizeRequestType.UPDATE, callback);
+        waitForFirstSlice(run);
+
+        assertThat(runs.cancel(run.number)).isTrue();
+        assertThat(runs.cancel(run.number)).isFalse();
+        gate.countDown();
+
+        assertCancelled(run, callback);
+
+        // the documents recomputing were finished, no others were started
+        assertThat(run.position).isEqualTo(2);
+        assertThat(run.recomputed.get()).isEqualTo(1);
+        assertThat(run.skipped.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void cancelWhilePaused() throws Exception
+    {
+        runs = runs(4, 0, 2);
+        addBooks(10);
+        gate = new CountDownLatch(1);
+
+        final Callback callback = new Callback();
+        final ScopedRuns.Run run = start(DegraphmalizeRequestType.UPDATE, callback);
+        waitForFirstSlice(run);
+
+        assertThat(runs.pause(run.number)).isTrue();
+        gate.countDown();
+        waitUntil(new Until()
+        {
+            @Override
+            boolean done()
+            {
+                return run.state == ScopedRuns.State.PAUSED;
+            }
+        });
+
+        assertThat(runs.cancel(run.number)).isTrue();
+        assertCancelled(run, callback);
+        assertThat(runs.resume(run.number)).isFalse();
+        assertThat(run.position).isEqualTo(2);
+    }
+
+    @Test
+    public void throttleSpreadsTheSlices() throws Exception
+    {
+        // two slices of 5 documents at 20 documents per second take half a second
+        runs = runs(5, 20, 5);
+        addBooks(10);
+
+        final long start = System.currentTimeMillis();
+        final Callback callback = new Callback();
+        final ScopedResult result = (ScopedResult) start(DegraphmalizeRequestType.UPDATE, callback).future.get(10, TimeUnit.SECONDS);
+
+        assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(450);
+        assertThat(result.documents()).isEqualTo(10);
+        assertThat(admission.finished.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void updateSkipsTheDocumentsReadWhenTheGraphChanged() throws Exception
+    {
+        runs = runs(4, 0, 2);
+        addBooks(8);
+        addAfter = "3";
+
+        final ScopedResult result = (ScopedResult) start(DegraphmalizeRequestType.UPDATE, new Callback()).future.get(10, TimeUnit.SECONDS);
+
+        final List<String> expected = ids(0, 8);
+        expected.add("new");
+        assertThat(done).isEqualTo(expected);
+        assertThat(result.documents()).isEqualTo(9);
+        assertThat(admission.finished.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void deleteStartsOverWhenTheGraphChanged() throws Exception
+    {
+        runs = runs(4, 0, 2);
+        addBooks(10);
+
+        final ScopedResult result = (ScopedResult) start(DegraphmalizeRequestType.DELETE, new Callback()).future.get(10, TimeUnit.SECONDS);
+
+        assertThat(done).isEqualTo(ids(0, 10));
+        assertThat(result.documents()).isEqualTo(10);
+        assertThat(books).isEmpty();
+        assertThat(admission.finished.get()).isEqualTo(1);
+    }
+
+    private ScopedRuns runs(int sliceSize, int maxDocumentsPerSecond, int parallelism)
+    {
+        final FairScheduler scheduler = new FairScheduler(degraphmalizeQueue, FairScheduler.DEFAULT_MAX_IN_FLIGHT_PER_INDEX,
+                Collections.<String, Integer>emptyMap());
+        return new ScopedRuns(scheduler, admission, sliceSize, maxDocumentsPerSecond, parallelism);
+    }
+
+    private ScopedRuns.Run start(DegraphmalizeRequestType type, DegraphmalizeCallback callback)
+    {
+        final DegraphmalizeRequest action = new DegraphmalizeRequest(type, DegraphmalizeRequestScope.INDEX,
+                new ID("books", null, null, 0), Collections.<TypeConfig>emptyList());
+        return runs.start(action, callback, slices);
+    }
+
+    private void addBooks(int n)
+    {
+        for (int i = 0; i < n; i++)
+            books.add(book(String.valueOf(i)));
+    }
+
+    private Vertex book(String id)
+    {
+        final Vertex vertex = GraphUtilities.createVertex(om, graph, new ID("books", "book", id, 1));
+        vertices.put(id, vertex);
+        return vertex;
+    }
+
+    private static List<String> ids(int from, int to)
+    {
+        final List<String> ids = new ArrayList<String>();
+        for (int i = from; i < to; i++)
+            ids.add(String.valueOf(i));
+        return ids;
+    }
+
+    // the graph is changed on the degraphmalize thread, the recompute is done by a worker
+    private void document(final ScopedRuns.Run run, final ID id)
+    {
+        done.add(id.id());
+        if (run.action.type() == DegraphmalizeRequestType.DELETE)
+            books.remove(vertices.get(id.id()));
+        if (id.id().equals(addAfter))
+            books.add(book("new"));
+
+        final Admission.Recomputes counted = admission.recomputing(1);
+        runs.recompute(run, counted, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    gate.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+
+                // every tenth document has nothing to recompute
+                if (id.id().endsWith("1"))
+                    run.skipped.incrementAndGet();
+                else
+                    run.recomputed.incrementAndGet();
+                counted.done();
+            }
+        });
+    }
+
+    // the first slice ended with all room taken by recomputes waiting for the gate
+    private void waitForFirstSlice(final ScopedRuns.Run run)
+    {
+        waitUntil(new Until()
+        {
+            @Override
+            boolean done()
+            {
+                return slicesDone.get() == 1;
+            }
+        });
+        assertThat(run.recomputing()).isEqualTo(2);
+        assertThat(run.state).isEqualTo(ScopedRuns.State.WAITING);
+    }
+
+    private void assertCancelled(ScopedRuns.Run run, Callback callback) throws Exception
+    {
+        try
+        {
+            run.future.get(10, TimeUnit.SECONDS);
+            throw new AssertionError("Cancelled run completed");
+        }
+        catch (ExecutionException e)
+        {
+            assertThat(e.getCause()).isInstanceOf(Cancelled.class);
+        }
+        assertThat(run.state).isEqualTo(ScopedRuns.State.CANCELLED);
+        assertThat(callback.complete.get()).isEqualTo(0);
+        assertThat(callback.failed.get()).isEqualTo(1);
+        assertThat(admission.finished.get()).isEqualTo(1);
+    }
+
+    private static void waitUntil(Until until)
+    {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!until.done())
+        {
+            if (System.currentTimeMillis() > deadline)
+                throw new AssertionError("Timed out");
+            try
+            {
+                Thread.sleep(5);
+            }
+            catch (InterruptedException e)
+            {
+                throw new AssertionError("Interrupted");
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package dgm.degraphmalizr.test;
+
+import dgm.ID;
+import dgm.degraphmalizr.Admission;
+import dgm.exceptions.Overloaded;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@Test
+public class AdmissionTest
+{
+    final ID id = new ID("books", "book", "1", 3);
+
+    @Test
+    public void refusesWhenQueueIsFull()
+    {
+        final Admission admission = new Admission(2, 10);
+        admission.admit(id);
+        admission.admit(id);
+        assertThat(admission.overloaded()).isTrue();
+
+        try
+        {
+            admission.admit(id);
+            throw new AssertionError("Admitted a request to a full queue");
+        }
+        catch (Overloaded e)
+        {
+            assertThat(e.retryAfterInSeconds()).isGreaterThanOrEqualTo(1);
+        }
+
+        // taking one from the queue makes room again
+        admission.started();
+        assertThat(admission.overloaded()).isFalse();
+        admission.admit(id);
+    }
+
+    @Test
+    public void refusesWhenTooManyRecomputes()
+    {
+        final Admission admission = new Admission(100, 4);
+        final Admission.Recomputes counted = admission.recomputing(4);
+        assertThat(admission.load()).isEqualTo(1.0);
+
+        try
+        {
+            admission.admit(id);
+            throw new AssertionError("Admitted a request while recomputing at the limit");
+        }
+        catch (Overloaded e)
+        {
+            // expected
+        }
+
+        counted.done();
+        admission.admit(id);
+    }
+
+    @Test
+    public void recomputesAreReleasedOnce()
+    {
+        final Admission admission = new Admission(100, 4);
+        final Admission.Recomputes counted = admission.recomputing(3);
+        counted.done();
+        assertThat(admission.load()).isEqualTo(0.5);
+
+        // the ones left are released, and nothing after that
+        counted.abandon();
+        counted.done();
+        counted.abandon();
+        assertThat(admission.load()).isEqualTo(0.0);
+    }
+
+    @Test
+    public void concurrentAdmissionsStayWithinLimit() throws InterruptedException
+    {
+        final Admission admission = new Admission(50, 10);
+        final AtomicInteger admitted = new AtomicInteger();
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < 100; j++)
+                    {
+                        try
+                        {
+                            admission.admit(id);
+                            admitted.incrementAndGet();
+                        }
+                        catch (Overloaded e)
+                        {
+                            // expected once the queue is full
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertThat(admitted.get()).isEqualTo(50);
+    }
+}
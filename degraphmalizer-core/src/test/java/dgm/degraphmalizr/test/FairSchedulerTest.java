@@ -0,0 +1,99 @@
+package dgm.degraphmalizr.test;
+
+import dgm.degraphmalizr.FairScheduler;
+import dgm.exceptions.Overloaded;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@Test
+public class FairSchedulerTest
+{
+    // runs its tasks only when asked to
+    static class ManualExecutor extends AbstractExecutorService
+    {
+        final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        @Override
+        public void execute(Runnable command)
+        {
+            tasks.add(command);
+        }
+
+        void runAll()
+        {
+            while (!tasks.isEmpty())
+                tasks.removeFirst().run();
+        }
+
+        @Override public void shutdown() {}
+        @Override public List<Runnable> shutdownNow() { return Collections.emptyList(); }
+        @Override public boolean isShutdown() { return false; }
+        @Override public boolean isTerminated() { return false; }
+        @Override public boolean awaitTermination(long timeout, TimeUnit unit) { return true; }
+    }
+
+    private static Runnable record(final List<String> order, final String name)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                order.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void indicesTakeTurnsByWeight()
+    {
+        final ManualExecutor executor = new ManualExecutor();
+        final Map<String, Integer> weights = new HashMap<String, Integer>();
+        weights.put("books", 2);
+        final FairScheduler scheduler = new FairScheduler(executor, 100, weights);
+
+        final List<String> order = new ArrayList<String>();
+        for (int i = 1; i <= 4; i++)
+            scheduler.execute("books", record(order, "b" + i));
+        for (int i = 1; i <= 2; i++)
+            scheduler.execute("news", record(order, "n" + i));
+
+        // only one task is handed out at a time
+        assertThat(executor.tasks).hasSize(1);
+
+        executor.runAll();
+        assertThat(order).containsExactly("b1", "b2", "b3", "n1", "b4", "n2");
+    }
+
+    @Test
+    public void refusesAboveMaxPerIndex()
+    {
+        final ManualExecutor executor = new ManualExecutor();
+        final FairScheduler scheduler = new FairScheduler(executor, 2, Collections.<String, Integer>emptyMap());
+
+        final List<String> order = new ArrayList<String>();
+        scheduler.execute("books", record(order, "b1"));
+        scheduler.execute("books", record(order, "b2"));
+        try
+        {
+            scheduler.execute("books", record(order, "b3"));
+            throw new AssertionError("Accepted more than the maximum for an index");
+        }
+        catch (Overloaded e)
+        {
+            // expected
+        }
+
+        // other indices and work that was accepted before still go on
+        scheduler.execute("news", record(order, "n1"));
+        scheduler.resume("books", record(order, "b2-next"));
+
+        executor.runAll();
+        assertThat(order).containsExactly("b1", "b2", "n1", "b2-next");
+    }
+}
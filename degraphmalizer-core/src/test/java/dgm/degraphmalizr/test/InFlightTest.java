@@ -0,0 +1,107 @@
+package dgm.degraphmalizr.test;
+
+import dgm.ID;
+import dgm.degraphmalizr.InFlight;
+import dgm.exceptions.Superseded;
+import org.testng.annotations.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@Test
+public class InFlightTest
+{
+    final ID v6 = new ID("books", "book", "1", 6);
+    final ID v7 = new ID("books", "book", "1", 7);
+
+    @Test
+    public void newerVersionStopsOlderWork()
+    {
+        final InFlight inFlight = new InFlight();
+        inFlight.started(v6);
+        inFlight.check(v6, InFlight.Stage.FETCHED);
+
+        inFlight.started(v7);
+        try
+        {
+            inFlight.check(v6, InFlight.Stage.WRITE);
+            throw new AssertionError("Version 6 went on after version 7 arrived");
+        }
+        catch (Superseded e)
+        {
+            assertThat(e.id()).isEqualTo(v6);
+        }
+        assertThat(inFlight.getCancelledBeforeWrite()).isEqualTo(1);
+
+        // the newest version itself goes on
+        inFlight.check(v7, InFlight.Stage.WRITE);
+        assertThat(inFlight.getDocuments()).isEqualTo(1);
+    }
+
+    @Test
+    public void forgetsDocumentsWhenDone()
+    {
+        final InFlight inFlight = new InFlight();
+        inFlight.started(v7);
+        inFlight.started(v6);
+        inFlight.finished(v7);
+        assertThat(inFlight.latest(v6)).isEqualTo(7);
+
+        inFlight.finished(v6);
+        assertThat(inFlight.getDocuments()).isEqualTo(0);
+        inFlight.check(v6, InFlight.Stage.QUEUED);
+    }
+
+    @Test
+    public void refusesOlderVersionsAtIntake()
+    {
+        final InFlight inFlight = new InFlight(10);
+        inFlight.intake(v7);
+
+        try
+        {
+            inFlight.intake(v6);
+            throw new AssertionError("Accepted version 6 after version 7");
+        }
+        catch (Superseded e)
+        {
+            assertThat(e.id()).isEqualTo(v6);
+        }
+        assertThat(inFlight.getRefusedAtIntake()).isEqualTo(1);
+
+        // a retry of the same version, and newer versions, are fine
+        inFlight.intake(v7);
+        inFlight.intake(v7.version(8));
+        assertThat(inFlight.getVersions()).isEqualTo(1);
+    }
+
+    @Test
+    public void ignoresRequestsWithoutVersion()
+    {
+        final InFlight inFlight = new InFlight();
+        inFlight.started(v7);
+        inFlight.started(v6.version(0));
+        inFlight.check(v6.version(0), InFlight.Stage.QUEUED);
+        assertThat(inFlight.getCancelledQueued()).isEqualTo(0);
+
+        inFlight.intake(v7);
+        inFlight.intake(v7.version(0));
+        assertThat(inFlight.getRefusedAtIntake()).isEqualTo(0);
+    }
+
+    @Test
+    public void deleteForgetsVersions()
+    {
+        final InFlight inFlight = new InFlight(10);
+        inFlight.intake(v7);
+
+        // deleted, and created again at version 1
+        inFlight.intake(v7.version(8));
+        inFlight.forget(v7.version(8));
+        assertThat(inFlight.getVersions()).isEqualTo(0);
+
+        final ID v1 = v7.version(1);
+        inFlight.intake(v1);
+        inFlight.intake(v1.version(2));
+        assertThat(inFlight.getRefusedAtIntake()).isEqualTo(0);
+    }
+}
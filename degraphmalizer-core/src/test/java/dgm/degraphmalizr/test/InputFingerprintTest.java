@@ -0,0 +1,104 @@
+package dgm.degraphmalizr.test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.tg.TinkerGraph;
+import dgm.EdgeID;
+import dgm.GraphUtilities;
+import dgm.ID;
+import dgm.degraphmalizr.recompute.InputFingerprint;
+import dgm.trees.Pair;
+import dgm.trees.Tree;
+import org.testng.annotations.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@Test
+public class InputFingerprintTest
+{
+    final ObjectMapper om = new ObjectMapper();
+
+    final ID book = new ID("books", "book", "1", 3);
+
+    // the book with an author of each version
+    Tree<Pair<Edge, Vertex>> authors(long... versions)
+    {
+        final TinkerGraph g = new TinkerGraph();
+        final Vertex root = GraphUtilities.createVertex(om, g, book);
+        for (int i = 0; i < versions.length; i++)
+        {
+            final ID author = new ID("authors", "author", String.valueOf(i), versions[i]);
+            GraphUtilities.createVertex(om, g, author);
+            GraphUtilities.createEdge(om, g, new EdgeID(book, "author", author));
+        }
+
+        return GraphUtilities.childrenFrom(root, Direction.OUT);
+    }
+
+    Map<String, Tree<Pair<Edge, Vertex>>> walks(Tree<Pair<Edge, Vertex>> authors)
+    {
+        final Map<String, Tree<Pair<Edge, Vertex>>> walks = new LinkedHashMap<String, Tree<Pair<Edge, Vertex>>>();
+        walks.put("authors", authors);
+        return walks;
+    }
+
+    @Test
+    public void sameInputsSameFingerprint()
+    {
+        final String fingerprint = InputFingerprint.compute(om, book, "config", walks(authors(1, 2)));
+
+        assertThat(InputFingerprint.compute(om, book, "config", walks(authors(1, 2)))).isEqualTo(fingerprint);
+    }
+
+    @Test
+    public void orderOfWalksDoesNotMatter()
+    {
+        final Map<String, Tree<Pair<Edge, Vertex>>> walks = walks(authors(1));
+        walks.put("books", authors());
+
+        final Map<String, Tree<Pair<Edge, Vertex>>> reversed = new LinkedHashMap<String, Tree<Pair<Edge, Vertex>>>();
+        reversed.put("books", authors());
+        reversed.put("authors", authors(1));
+
+        assertThat(InputFingerprint.compute(om, book, "config", reversed))
+                .isEqualTo(InputFingerprint.compute(om, book, "config", walks));
+    }
+
+    @Test
+    public void sourceVersionChangesFingerprint()
+    {
+        final String fingerprint = InputFingerprint.compute(om, book, "config", walks(authors(1)));
+
+        assertThat(InputFingerprint.compute(om, book.version(4), "config", walks(authors(1)))).isNotEqualTo(fingerprint);
+    }
+
+    @Test
+    public void configurationChangesFingerprint()
+    {
+        final String fingerprint = InputFingerprint.compute(om, book, "config", walks(authors(1)));
+
+        assertThat(InputFingerprint.compute(om, book, "changed config", walks(authors(1)))).isNotEqualTo(fingerprint);
+    }
+
+    @Test
+    public void walkedVersionChangesFingerprint()
+    {
+        final String fingerprint = InputFingerprint.compute(om, book, "config", walks(authors(1, 2)));
+
+        assertThat(InputFingerprint.compute(om, book, "config", walks(authors(1, 3)))).isNotEqualTo(fingerprint);
+    }
+
+    @Test
+    public void walkedDocumentChangesFingerprint()
+    {
+        final String fingerprint = InputFingerprint.compute(om, book, "config", walks(authors(1)));
+
+        assertThat(InputFingerprint.compute(om, book, "config", walks(authors(1, 1)))).isNotEqualTo(fingerprint);
+        assertThat(InputFingerprint.compute(om, book, "config", walks(authors()))).isNotEqualTo(fingerprint);
+    }
+}
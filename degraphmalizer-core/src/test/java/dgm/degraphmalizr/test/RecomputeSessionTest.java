@@ -0,0 +1,374 @@
+package dgm.degraphmalizr.test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.google.common.io.Files;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.impls.tg.TinkerGraph;
+import dgm.EdgeID;
+import dgm.GraphUtilities;
+import dgm.ID;
+import dgm.Subgraph;
+import dgm.configuration.IndexConfig;
+import dgm.configuration.PropertyConfig;
+import dgm.configuration.TypeConfig;
+import dgm.configuration.WalkConfig;
+import dgm.degraphmalizr.InFlight;
+import dgm.degraphmalizr.VID;
+import dgm.degraphmalizr.recompute.*;
+import dgm.exceptions.InputsUnchanged;
+import dgm.exceptions.WrappedException;
+import dgm.modules.bindingannotations.Fetches;
+import dgm.modules.bindingannotations.Recomputes;
+import dgm.modules.elasticsearch.ResolvedPathElement;
+import dgm.trees.Tree;
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.nnsoft.guice.sli4j.slf4j.Slf4jLoggingModule;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Recomputes of all configurations of a document in one session, against a local elasticsearch node.
+ */
+@Test
+public class RecomputeSessionTest
+{
+    final ObjectMapper om = new ObjectMapper();
+    final Graph graph = new TinkerGraph();
+
+    Node node;
+    Client client;
+    ExecutorService executor;
+
+    // client requests by method name
+    final ConcurrentMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+
+    @BeforeClass
+    public void startNode()
+    {
+        final String dir = Files.createTempDir().getAbsolutePath();
+        node = NodeBuilder.nodeBuilder().local(true).clusterName("recompute-session-test")
+                .settings(ImmutableSettings.settingsBuilder()
+                        .put("path.data", dir + "/data")
+                        .put("path.work", dir + "/work")
+                        .put("node.http.enabled", false)
+                        .put("gateway.type", "none")
+                        .put("index.store.type", "memory"))
+                .node();
+        client = counting(node.client());
+        executor = Executors.newCachedThreadPool();
+
+        // the title of this target can't be written
+        client.admin().indices().prepareCreate("broken")
+                .addMapping("book", "{\"book\": {\"properties\": {\"title\": {\"type\": \"integer\"}}}}")
+                .execute().actionGet();
+    }
+
+    @AfterClass
+    public void stopNode()
+    {
+        executor.shutdownNow();
+        node.close();
+    }
+
+    @Test
+    public void walksAreSharedAndWrittenInOneBulk() throws Exception
+    {
+        final Config reviews = new Config("reviews", "reviews");
+        final Config catalog = new Config("catalog", "catalog");
+        final RecomputeSession session = session(book("1"), reviews, catalog);
+
+        calls.clear();
+        final List<Future<RecomputeResult>> results = recomputer(new TargetIndices()).recompute(session, new RecomputeCallback() {});
+
+        // both configurations reduce the same documents, fetched once, and write with one bulk request
+        assertThat(reviews.reduced).hasSize(1);
+        assertThat(catalog.reduced).hasSize(1);
+        assertThat(catalog.reduced.get(0)).isSameAs(reviews.reduced.get(0));
+        assertThat(calls.get("prepareMultiGet").get()).isEqualTo(1);
+        assertThat(calls.get("prepareBulk").get()).isEqualTo(1);
+
+        assertThat(results.get(0).get().indexResponse().index()).isEqualTo("reviews");
+        assertThat(results.get(1).get().indexResponse().index()).isEqualTo("catalog");
+        assertThat(target("reviews", "1").get("authors").asText()).isEqualTo("reviews");
+        assertThat(target("catalog", "1").get("authors").asText()).isEqualTo("catalog");
+    }
+
+    @Test
+    public void failedItemsFailTheirOwnResult() throws Exception
+    {
+        final RecomputeSession session = session(book("2"), new Config("reviews", "reviews"), new Config("broken", "broken"), new Config("catalog", "catalog"));
+
+        final List<Future<RecomputeResult>> results = recomputer(new TargetIndices()).recompute(session, new RecomputeCallback() {});
+
+        assertThat(results.get(0).get().indexResponse().index()).isEqualTo("reviews");
+        try
+        {
+            results.get(1).get();
+            throw new AssertionError("The target with a conflicting mapping was written");
+        }
+        catch (ExecutionException e)
+        {
+            assertThat(e.getCause()).isInstanceOf(WrappedException.class);
+            assertThat(e.getCause().getCause()).isInstanceOf(ElasticSearchException.class);
+        }
+        assertThat(results.get(2).get().indexResponse().index()).isEqualTo("catalog");
+    }
+
+    @Test
+    public void sameTargetIsComputedByTheFirstConfiguration() throws Exception
+    {
+        final Config first = new Config("first", "shelf");
+        final Config second = new Config("second", "shelf");
+        final RecomputeSession session = session(book("3"), first, second);
+
+        final List<Future<RecomputeResult>> results = recomputer(new TargetIndices()).recompute(session, new RecomputeCallback() {});
+
+        assertThat(second.reduced).isEmpty();
+        assertThat(results.get(1)).isSameAs(results.get(0));
+        assertThat(target("shelf", "3").get("authors").asText()).isEqualTo("first");
+    }
+
+    @Test
+    public void unchangedInputsAreNotWrittenAgain() throws Exception
+    {
+        final Config reviews = new Config("reviews", "reviews");
+        final VID book = book("4");
+        recomputer(new TargetIndices()).recompute(session(book, reviews), new RecomputeCallback() {}).get(0).get();
+
+        final Future<RecomputeResult> again = recomputer(new TargetIndices()).recompute(session(book, reviews), new RecomputeCallback() {}).get(0);
+        try
+        {
+            again.get();
+            throw new AssertionError("A target with unchanged inputs was written");
+        }
+        catch (ExecutionException e)
+        {
+            assertThat(e.getCause()).isInstanceOf(InputsUnchanged.class);
+        }
+        assertThat(reviews.reduced).hasSize(1);
+
+        // an index created for a rebuild is written without looking
+        final TargetIndices rebuilding = new TargetIndices();
+        rebuilding.redirect("reviews", "reviews-rebuild");
+        calls.clear();
+        final RecomputeResult rebuilt = recomputer(rebuilding).recompute(session(book, reviews), new RecomputeCallback() {}).get(0).get();
+        assertThat(rebuilt.indexResponse().index()).isEqualTo("reviews-rebuild");
+        assertThat(calls.containsKey("prepareMultiGet")).isFalse();
+    }
+
+    private RecomputerFactoryImpl recomputer(final TargetIndices targetIndices)
+    {
+        return Guice.createInjector(new Slf4jLoggingModule(), new AbstractModule()
+        {
+            @Override
+            protected void configure()
+            {
+                bind(Client.class).toInstance(client);
+                bind(Graph.class).toInstance(graph);
+                bind(ObjectMapper.class).toInstance(om);
+                bind(ExecutorService.class).annotatedWith(Fetches.class).toInstance(executor);
+                bind(ExecutorService.class).annotatedWith(Recomputes.class).toInstance(executor);
+                bind(TargetIndices.class).toInstance(targetIndices);
+                bind(InFlight.class).toInstance(new InFlight());
+            }
+        }).getInstance(RecomputerFactoryImpl.class);
+    }
+
+    /**
+     * Index book {@code id} with an author, and put both in the graph.
+     */
+    private VID book(String id)
+    {
+        final long authorVersion = client.prepareIndex("authors", "author", id).setSource("{\"name\": \"Frank\"}")
+                .execute().actionGet().version();
+        final long bookVersion = client.prepareIndex("books", "book", id).setSource("{\"title\": \"Dune\"}")
+                .execute().actionGet().version();
+
+        final ID author = new ID("authors", "author", id, authorVersion);
+        final ID book = new ID("books", "book", id, bookVersion);
+        GraphUtilities.createVertex(om, graph, author);
+        GraphUtilities.createVertex(om, graph, book);
+        GraphUtilities.createEdge(om, graph, new EdgeID(book, "author", author));
+
+        return new VID(om, graph, book);
+    }
+
+    private static RecomputeSession session(VID root, Config... configs)
+    {
+        final RecomputeSession session = new RecomputeSession(root);
+        for (Config config : configs)
+            session.add(new RecomputeRequest(root, config));
+
+        return session;
+    }
+
+    private JsonNode target(String index, String id) throws Exception
+    {
+        final GetResponse response = client.prepareGet(index, "book", id).execute().actionGet();
+        assertThat(response.exists()).isTrue();
+        return om.readTree(response.sourceAsString());
+    }
+
+    // count the requests made through the client
+    private Client counting(final Client delegate)
+    {
+        return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class<?>[]{Client.class}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                calls.putIfAbsent(method.getName(), new AtomicInteger());
+                calls.get(method.getName()).incrementAndGet();
+                try
+                {
+                    return method.invoke(delegate, args);
+                }
+                catch (InvocationTargetException e)
+                {
+                    throw e.getCause();
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the books to its own target index, with an {@code authors} property holding its name.
+     */
+    static class Config implements TypeConfig, WalkConfig, PropertyConfig
+    {
+        final String name;
+        final String target;
+
+        // the trees this configuration reduced
+        final List<Tree<ResolvedPathElement>> reduced = Collections.synchronizedList(new ArrayList<Tree<ResolvedPathElement>>());
+
+        Config(String name, String target)
+        {
+            this.name = name;
+            this.target = target;
+        }
+
+        @Override
+        public String name()
+        {
+            return name;
+        }
+
+        @Override
+        public Subgraph extract(JsonNode document)
+        {
+            return null;
+        }
+
+        @Override
+        public JsonNode transform(JsonNode document)
+        {
+            return document;
+        }
+
+        @Override
+        public boolean filter(JsonNode document)
+        {
+            return true;
+        }
+
+        @Override
+        public IndexConfig index()
+        {
+            return null;
+        }
+
+        @Override
+        public String targetIndex()
+        {
+            return target;
+        }
+
+        @Override
+        public String targetType()
+        {
+            return "book";
+        }
+
+        @Override
+        public String sourceIndex()
+        {
+            return "books";
+        }
+
+        @Override
+        public String sourceType()
+        {
+            return "book";
+        }
+
+        @Override
+        public Map<String, WalkConfig> walks()
+        {
+            return Collections.<String, WalkConfig>singletonMap("authors", this);
+        }
+
+        @Override
+        public String configurationHash()
+        {
+            return name;
+        }
+
+        @Override
+        public Direction direction()
+        {
+            return Direction.OUT;
+        }
+
+        @Override
+        public TypeConfig type()
+        {
+            return this;
+        }
+
+        @Override
+        public Map<String, ? extends PropertyConfig> properties()
+        {
+            return Collections.singletonMap("authors", this);
+        }
+
+        @Override
+        public JsonNode reduce(Tree<ResolvedPathElement> tree)
+        {
+            reduced.add(tree);
+            return new TextNode(name);
+        }
+
+        @Override
+        public WalkConfig walk()
+        {
+            return this;
+        }
+    }
+}
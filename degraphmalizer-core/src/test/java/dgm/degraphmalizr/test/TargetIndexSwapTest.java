@@ -0,0 +1,184 @@
+package dgm.degraphmalizr.test;
+
+import com.google.common.io.Files;
+import com.google.inject.util.Providers;
+import dgm.configuration.Configuration;
+import dgm.configuration.FixtureConfiguration;
+import dgm.configuration.IndexConfig;
+import dgm.configuration.TypeConfig;
+import dgm.degraphmalizr.TargetIndexSwap;
+import dgm.degraphmalizr.recompute.TargetIndices;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@Test
+public class TargetIndexSwapTest
+{
+    Node node;
+    Client client;
+
+    @BeforeClass
+    public void startNode()
+    {
+        final String dir = Files.createTempDir().getAbsolutePath();
+        node = NodeBuilder.nodeBuilder().local(true).clusterName("target-index-swap-test")
+                .settings(ImmutableSettings.settingsBuilder()
+                        .put("path.data", dir + "/data")
+                        .put("path.work", dir + "/work")
+                        .put("node.http.enabled", false)
+                        .put("gateway.type", "none")
+                        .put("index.store.type", "memory"))
+                .node();
+        client = node.client();
+    }
+
+    @AfterClass
+    public void stopNode()
+    {
+        node.close();
+    }
+
+    @Test
+    public void swapKeepsSettingsAndMovesAlias() throws IOException
+    {
+        createAliased("books", ImmutableSettings.settingsBuilder()
+                .put("index.number_of_shards", 2)
+                .put("index.number_of_replicas", 1)
+                .put("index.refresh_interval", "5s")
+                .put("index.analysis.analyzer.folding.tokenizer", "standard")
+                .putArray("index.analysis.analyzer.folding.filter", "lowercase", "asciifolding"), "folding");
+
+        final TargetIndices targetIndices = new TargetIndices();
+        final TargetIndexSwap swap = new TargetIndexSwap(client, Providers.of(configuration("books")), targetIndices);
+        swap.prepare();
+
+        // the recomputes write to a new index, that looks like the old one but is set up for bulk writes; its mapping
+        // uses the analyzer of the old index
+        final String index = targetIndices.indexFor("books");
+        assertThat(index).startsWith("books-").isNotEqualTo("books-1");
+
+        IndexMetaData created = metaData().index(index);
+        assertThat(created.numberOfShards()).isEqualTo(2);
+        assertThat(created.numberOfReplicas()).isEqualTo(0);
+        assertThat(created.settings().get("index.refresh_interval")).isEqualTo("-1");
+        assertThat(created.settings().get("index.analysis.analyzer.folding.tokenizer")).isEqualTo("standard");
+        assertThat(created.mappings().containsKey("book")).isTrue();
+
+        swap.swap();
+
+        // the alias moved, the settings are back and the old index is kept
+        final MetaData metaData = metaData();
+        assertThat(aliased(metaData, "books")).isEqualTo(Collections.singleton(index));
+        created = metaData.index(index);
+        assertThat(created.numberOfReplicas()).isEqualTo(1);
+        assertThat(created.settings().get("index.refresh_interval")).isEqualTo("5s");
+        assertThat(metaData.index("books-1")).isNotNull();
+        assertThat(targetIndices.indexFor("books")).isEqualTo("books");
+    }
+
+    @Test
+    public void abandonKeepsAlias() throws IOException
+    {
+        createAliased("films", ImmutableSettings.settingsBuilder().put("index.number_of_shards", 1), "standard");
+
+        final TargetIndices targetIndices = new TargetIndices();
+        final TargetIndexSwap swap = new TargetIndexSwap(client, Providers.of(configuration("films")), targetIndices);
+        swap.prepare();
+        final String index = targetIndices.indexFor("films");
+        swap.abandon();
+
+        final MetaData metaData = metaData();
+        assertThat(aliased(metaData, "films")).isEqualTo(Collections.singleton("films-1"));
+        assertThat(metaData.index(index)).isNotNull();
+        assertThat(targetIndices.indexFor("films")).isEqualTo("films");
+    }
+
+    @Test
+    public void refusesTargetThatIsAnIndex() throws IOException
+    {
+        client.admin().indices().prepareCreate("plays").execute().actionGet();
+
+        final TargetIndices targetIndices = new TargetIndices();
+        final TargetIndexSwap swap = new TargetIndexSwap(client, Providers.of(configuration("plays")), targetIndices);
+        try
+        {
+            swap.prepare();
+            throw new AssertionError("Prepared to swap a target that is an index");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+        assertThat(targetIndices.indexFor("plays")).isEqualTo("plays");
+    }
+
+    private void createAliased(String alias, ImmutableSettings.Builder settings, String analyzer)
+    {
+        client.admin().indices().prepareCreate(alias + "-1")
+                .setSettings(settings)
+                .addMapping("book", "{\"book\": {\"properties\": {\"title\": {\"type\": \"string\", \"analyzer\": \"" + analyzer + "\"}}}}")
+                .execute().actionGet();
+        client.admin().indices().prepareAliases().addAlias(alias + "-1", alias).execute().actionGet();
+    }
+
+    private MetaData metaData()
+    {
+        return client.admin().cluster().prepareState().execute().actionGet().state().metaData();
+    }
+
+    private static Set<String> aliased(MetaData metaData, String alias)
+    {
+        final Map<String, AliasMetaData> indices = metaData.aliases().get(alias);
+        return indices == null ? Collections.<String>emptySet() : indices.keySet();
+    }
+
+    private static Configuration configuration(final String target)
+    {
+        final Map<String, IndexConfig> indices = new HashMap<String, IndexConfig>();
+        indices.put(target, new IndexConfig()
+        {
+            @Override
+            public String name()
+            {
+                return target;
+            }
+
+            @Override
+            public Map<String, ? extends TypeConfig> types()
+            {
+                return Collections.emptyMap();
+            }
+        });
+
+        return new Configuration()
+        {
+            @Override
+            public Map<String, ? extends IndexConfig> indices()
+            {
+                return indices;
+            }
+
+            @Override
+            public FixtureConfiguration getFixtureConfiguration()
+            {
+                return null;
+            }
+        };
+    }
+}
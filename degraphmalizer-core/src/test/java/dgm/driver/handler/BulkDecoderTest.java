@@ -0,0 +1,78 @@
+package dgm.driver.handler;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import dgm.exceptions.InvalidRequest;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.http.*;
+import org.testng.annotations.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@Test
+public class BulkDecoderTest
+{
+    static final String CHANGE = "{\"index\": \"books\", \"type\": \"book\", \"id\": \"1\", \"version\": 3}\n";
+
+    @Test
+    public void tooLongLineIsAnErrorItem()
+    {
+        final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(new BulkDecoder());
+        final HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, BulkDecoder.PATH);
+        request.setChunked(true);
+        embedder.offer(request);
+
+        // a line that is too long arrives in two chunks, between two good ones
+        final String tooLong = Strings.repeat("x", BulkDecoder.MAX_LINE_LENGTH);
+        embedder.offer(chunk(CHANGE + tooLong));
+        embedder.offer(chunk(tooLong + "\n" + CHANGE));
+        embedder.offer(HttpChunk.LAST_CHUNK);
+
+        assertThat(embedder.poll()).isInstanceOf(BulkDecoder.Start.class);
+        assertThat(((BulkDecoder.Item) embedder.poll()).request).isNotNull();
+
+        final BulkDecoder.Item error = (BulkDecoder.Item) embedder.poll();
+        assertThat(error.line).isEqualTo(2);
+        assertThat(error.error).isInstanceOf(InvalidRequest.class);
+
+        final BulkDecoder.Item last = (BulkDecoder.Item) embedder.poll();
+        assertThat(last.line).isEqualTo(3);
+        assertThat(last.request).isNotNull();
+
+        assertThat(((BulkDecoder.End) embedder.poll()).items).isEqualTo(3);
+        assertThat(embedder.poll()).isNull();
+    }
+
+    @Test
+    public void nextBulkStartsClean()
+    {
+        final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(new BulkDecoder());
+        final HttpRequest first = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, BulkDecoder.PATH);
+        first.setChunked(true);
+        embedder.offer(first);
+
+        // the request ends while the rest of a line is skipped
+        embedder.offer(chunk(Strings.repeat("x", BulkDecoder.MAX_LINE_LENGTH + 1)));
+        embedder.offer(HttpChunk.LAST_CHUNK);
+
+        final HttpRequest second = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, BulkDecoder.PATH);
+        second.setContent(ChannelBuffers.copiedBuffer(CHANGE, Charsets.UTF_8));
+        embedder.offer(second);
+
+        assertThat(embedder.poll()).isInstanceOf(BulkDecoder.Start.class);
+        assertThat(((BulkDecoder.Item) embedder.poll()).error).isNotNull();
+        assertThat(((BulkDecoder.End) embedder.poll()).items).isEqualTo(1);
+
+        assertThat(embedder.poll()).isInstanceOf(BulkDecoder.Start.class);
+        final BulkDecoder.Item item = (BulkDecoder.Item) embedder.poll();
+        assertThat(item.line).isEqualTo(1);
+        assertThat(item.request).isNotNull();
+        assertThat(((BulkDecoder.End) embedder.poll()).items).isEqualTo(1);
+    }
+
+    private static HttpChunk chunk(String content)
+    {
+        return new DefaultHttpChunk(ChannelBuffers.copiedBuffer(content, Charsets.UTF_8));
+    }
+}
@@ -0,0 +1,129 @@
+package dgm.driver.handler;
+
+import com.google.common.base.Charsets;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.http.*;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@Test
+public class HttpPipeliningHandlerTest
+{
+    // keeps the number of every request instead of answering it
+    static class Requests extends SimpleChannelUpstreamHandler
+    {
+        Channel channel;
+        final List<Integer> sequences = new ArrayList<Integer>();
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+        {
+            channel = ctx.getChannel();
+            sequences.add(HttpPipeliningHandler.sequence(ctx));
+        }
+    }
+
+    @Test
+    public void responsesFollowTheRequests()
+    {
+        final Requests requests = new Requests();
+        final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(new HttpPipeliningHandler(), requests);
+        embedder.offer(request(HttpVersion.HTTP_1_1, "/a"));
+        embedder.offer(request(HttpVersion.HTTP_1_1, "/b"));
+        embedder.offer(request(HttpVersion.HTTP_1_1, "/c"));
+        assertThat(requests.sequences).containsExactly(0, 1, 2);
+
+        // the later requests are done first, they wait for the first one
+        HttpPipeliningHandler.write(requests.channel, 2, response("ccc"));
+        HttpPipeliningHandler.write(requests.channel, 1, response("bb"));
+        assertThat(embedder.poll()).isNull();
+
+        HttpPipeliningHandler.write(requests.channel, 0, response("a"));
+        for (String content : new String[]{"a", "bb", "ccc"})
+        {
+            final HttpResponse response = (HttpResponse) embedder.poll();
+            assertThat(response.getContent().toString(Charsets.UTF_8)).isEqualTo(content);
+            assertThat(response.getHeader(HttpHeaders.Names.CONTENT_LENGTH)).isEqualTo(String.valueOf(content.length()));
+            assertThat(response.getHeader(HttpHeaders.Names.CONNECTION)).isEqualTo(HttpHeaders.Values.KEEP_ALIVE);
+        }
+        assertThat(embedder.poll()).isNull();
+    }
+
+    @Test
+    public void connectionIsClosedForTheRequestsThatAsked()
+    {
+        final Requests requests = new Requests();
+        final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(new HttpPipeliningHandler(), requests);
+        embedder.offer(request(HttpVersion.HTTP_1_1, "/a"));
+        final HttpRequest close = request(HttpVersion.HTTP_1_1, "/b");
+        close.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+        embedder.offer(close);
+        embedder.offer(request(HttpVersion.HTTP_1_0, "/c"));
+
+        HttpPipeliningHandler.write(requests.channel, 1, response("b"));
+        HttpPipeliningHandler.write(requests.channel, 2, response("c"));
+        HttpPipeliningHandler.write(requests.channel, 0, response("a"));
+
+        assertThat(((HttpResponse) embedder.poll()).getHeader(HttpHeaders.Names.CONNECTION)).isEqualTo(HttpHeaders.Values.KEEP_ALIVE);
+        assertThat(((HttpResponse) embedder.poll()).getHeader(HttpHeaders.Names.CONNECTION)).isEqualTo(HttpHeaders.Values.CLOSE);
+        assertThat(((HttpResponse) embedder.poll()).getHeader(HttpHeaders.Names.CONNECTION)).isEqualTo(HttpHeaders.Values.CLOSE);
+    }
+
+    @Test
+    public void chunkedResponseHoldsBackLaterResponses()
+    {
+        final Requests requests = new Requests();
+        final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(new HttpPipeliningHandler(), requests);
+        embedder.offer(request(HttpVersion.HTTP_1_1, "/a"));
+        embedder.offer(request(HttpVersion.HTTP_1_1, "/b"));
+
+        final HttpResponse chunked = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        chunked.setChunked(true);
+        HttpPipeliningHandler.write(requests.channel, 0, chunked);
+        HttpPipeliningHandler.write(requests.channel, 1, response("b"));
+        HttpPipeliningHandler.write(requests.channel, 0, new DefaultHttpChunk(ChannelBuffers.copiedBuffer("a", Charsets.UTF_8)));
+
+        // the chunked response has no length, and the second response waits for its last chunk
+        final HttpResponse first = (HttpResponse) embedder.poll();
+        assertThat(first.containsHeader(HttpHeaders.Names.CONTENT_LENGTH)).isFalse();
+        assertThat(embedder.poll()).isInstanceOf(HttpChunk.class);
+        assertThat(embedder.poll()).isNull();
+
+        HttpPipeliningHandler.write(requests.channel, 0, HttpChunk.LAST_CHUNK);
+        assertThat(((HttpChunk) embedder.poll()).isLast()).isTrue();
+        assertThat(((HttpResponse) embedder.poll()).getContent().toString(Charsets.UTF_8)).isEqualTo("b");
+    }
+
+    @Test
+    public void secondResponseToARequestFails()
+    {
+        final Requests requests = new Requests();
+        final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(new HttpPipeliningHandler(), requests);
+        embedder.offer(request(HttpVersion.HTTP_1_1, "/a"));
+
+        HttpPipeliningHandler.write(requests.channel, 0, response("a"));
+        final ChannelFuture again = HttpPipeliningHandler.write(requests.channel, 0, response("a"));
+
+        assertThat(embedder.poll()).isInstanceOf(HttpResponse.class);
+        assertThat(embedder.poll()).isNull();
+        assertThat(again.getCause()).isInstanceOf(IllegalStateException.class);
+    }
+
+    private static HttpRequest request(HttpVersion version, String uri)
+    {
+        return new DefaultHttpRequest(version, HttpMethod.GET, uri);
+    }
+
+    private static HttpResponse response(String content)
+    {
+        final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.setContent(ChannelBuffers.copiedBuffer(content, Charsets.UTF_8));
+        return response;
+    }
+}
@@ -2,16 +2,21 @@ package org.elasticsearch.plugin.degraphmalizer;
 
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.engine.Engine;
 import org.elasticsearch.index.indexing.IndexingOperationListener;
-import org.elasticsearch.plugin.degraphmalizer.updater.Change;
+import org.elasticsearch.plugin.degraphmalizer.updater.Action;
 import org.elasticsearch.plugin.degraphmalizer.updater.UpdaterManager;
 
+import java.util.Arrays;
+
 import static org.elasticsearch.index.engine.Engine.Operation.Origin.PRIMARY;
 
 /**
- * This class listens for updates to an indexshard and sends Change objects to the Updater if the indexshard is primary for processing by the
- * Degraphmalizer.
+ * This class listens for updates to an indexshard and sends changes to the Updater if the indexshard is primary for processing by the
+ * Degraphmalizer. It runs on the indexing threads, so it doesn't allocate or lock, unless it has to copy the source of
+ * the document to send along (see {@link UpdaterManager#maxSourceSize()}).
  */
 public class DegraphmalizerIndexShardListener extends IndexingOperationListener
 {
@@ -33,9 +38,11 @@ public class DegraphmalizerIndexShardListener extends IndexingOperationListener
         final String id = createOperation.id();
         final long version = createOperation.version();
 
-        LOG.trace("Origin {} of create to id {} ", createOperation.origin(), id);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Origin {} of create to id {} ", createOperation.origin(), id);
+        }
         if (isFromPrimary(createOperation)) {
-            graphUpdaterManager.add(index, Change.update(type, id, version));
+            graphUpdaterManager.add(index, Action.UPDATE, type, id, version, source(createOperation.source(), createOperation.sourceOffset(), createOperation.sourceLength()));
         }
     }
 
@@ -46,10 +53,12 @@ public class DegraphmalizerIndexShardListener extends IndexingOperationListener
         final String id = indexOperation.id();
         final long version = indexOperation.version();
 
-        LOG.trace("Origin {} of index to id {} ", indexOperation.origin(), id);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Origin {} of index to id {} ", indexOperation.origin(), id);
+        }
         if (isFromPrimary(indexOperation))
         {
-            graphUpdaterManager.add(index, Change.update(type, id, version));
+            graphUpdaterManager.add(index, Action.UPDATE, type, id, version, source(indexOperation.source(), indexOperation.sourceOffset(), indexOperation.sourceLength()));
         }
     }
 
@@ -60,13 +69,31 @@ public class DegraphmalizerIndexShardListener extends IndexingOperationListener
         final String id = deleteOperation.id();
         final long version = deleteOperation.version();
 
-        LOG.trace("Origin {} of index to id {} ", deleteOperation.origin(), id);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Origin {} of index to id {} ", deleteOperation.origin(), id);
+        }
         if (isFromPrimary(deleteOperation))
         {
-            graphUpdaterManager.add(index, Change.delete(type, id, version));
+            graphUpdaterManager.add(index, Action.DELETE, type, id, version, null);
         }
     }
 
+    /**
+     * Copy of the source to send along, if it is small enough and JSON. The Degraphmalizer only reads JSON, a
+     * document indexed as SMILE or YAML is fetched by the Degraphmalizer instead. The array of the operation may be
+     * reused by Elasticsearch once we return.
+     */
+    private byte[] source(final byte[] source, final int offset, final int length)
+    {
+        if (source == null || length > graphUpdaterManager.maxSourceSize())
+            return null;
+
+        if (XContentFactory.xContentType(source, offset, length) != XContentType.JSON)
+            return null;
+
+        return Arrays.copyOfRange(source, offset, offset + length);
+    }
+
     private boolean isFromPrimary(final Engine.Operation operation)
     {
         return PRIMARY.equals(operation.origin());
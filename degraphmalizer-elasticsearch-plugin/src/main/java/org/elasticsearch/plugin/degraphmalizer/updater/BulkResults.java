@@ -0,0 +1,86 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The response to a bulk request: a JSON object per line, matched to the changes of the request by its {@code line}
+ * number. A change without a result line, because the response ended early, keeps {@link Result#NONE}.
+ */
+final class BulkResults {
+    private static final ESLogger LOG = Loggers.getLogger(BulkResults.class);
+
+    enum Result {
+        /** no result, the change is sent again */
+        NONE,
+        /** performed, or not performed without it being an error */
+        DONE,
+        /** a newer version of the document was sent already, nothing to retry */
+        SUPERSEDED,
+        /** refused because the Degraphmalizer is too busy, not a failure of the change */
+        OVERLOADED,
+        /** an error, like the status code of a single request */
+        FAILED
+    }
+
+    private final Result[] results;
+    private final long[] retryAfterInMillis;
+    private final String[] messages;
+
+    BulkResults(final int changes) {
+        results = new Result[changes];
+        Arrays.fill(results, Result.NONE);
+        retryAfterInMillis = new long[changes];
+        messages = new String[changes];
+    }
+
+    /**
+     * Read the result lines until the end of the response. When the response is cut off the results read so far are
+     * kept, and the exception is thrown.
+     */
+    void read(final BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+
+            final Map<String, Object> result = JsonXContent.jsonXContent.createParser(line).mapAndClose();
+            final int n = result.get("line") instanceof Number ? ((Number) result.get("line")).intValue() - 1 : -1;
+            if (n < 0 || n >= results.length) {
+                LOG.warn("Bulk result for unknown line: {}", line);
+                continue;
+            }
+
+            messages[n] = result.get("message") == null ? null : result.get("message").toString();
+            if (result.get("retryAfter") instanceof Number) {
+                results[n] = Result.OVERLOADED;
+                retryAfterInMillis[n] = ((Number) result.get("retryAfter")).longValue() * 1000;
+            } else if ("superseded".equals(result.get("status"))) {
+                results[n] = Result.SUPERSEDED;
+            } else if ("error".equals(result.get("status")) && "error".equals(result.get("severity"))) {
+                results[n] = Result.FAILED;
+            } else {
+                results[n] = Result.DONE;
+            }
+        }
+    }
+
+    Result result(final int n) {
+        return results[n];
+    }
+
+    long retryAfterInMillis(final int n) {
+        return retryAfterInMillis[n];
+    }
+
+    String message(final int n) {
+        return messages[n];
+    }
+}
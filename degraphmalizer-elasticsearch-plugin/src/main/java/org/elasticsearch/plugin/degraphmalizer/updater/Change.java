@@ -8,6 +8,9 @@ public class Change implements StringSerialization<Change> {
 
     private int retries;
 
+    // the source document of this version, only kept in memory
+    private final byte[] source;
+
     public Change() {
         this(Action.UPDATE,"","",0,0);
     }
@@ -17,11 +20,16 @@ public class Change implements StringSerialization<Change> {
     }
 
     public Change(final Action action, final String type, final String id, long version, int retries) {
+        this(action, type, id, version, retries, null);
+    }
+
+    public Change(final Action action, final String type, final String id, long version, int retries, byte[] source) {
         this.action = action;
         this.type = type;
         this.id = id;
         this.version = version;
         this.retries = retries;
+        this.source = source;
     }
 
     public Action action() {
@@ -44,6 +52,15 @@ public class Change implements StringSerialization<Change> {
         return retries;
     }
 
+    /**
+     * The JSON source of this version of the document, or {@code null} if the Degraphmalizer has to fetch it. It is not
+     * part of the string serialization or the records of the {@link UpdaterOverflowJournal}, so changes from the
+     * journal have no source.
+     */
+    public byte[] source() {
+        return source;
+    }
+
     public void retried() {
         retries++;
     }
@@ -63,6 +80,13 @@ public class Change implements StringSerialization<Change> {
         return new Change(action, type, id, version, retries);
     }
 
+    /**
+     * Identifies the document, regardless of action and version. Changes with the same key can be merged.
+     */
+    public String key() {
+        return type + "/" + id;
+    }
+
     public static Change update(final String type, final String id, final long version) {
         return new Change(Action.UPDATE, type, id, version);
     }
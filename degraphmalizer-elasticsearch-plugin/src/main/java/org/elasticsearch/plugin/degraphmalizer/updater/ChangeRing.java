@@ -0,0 +1,148 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded ring of pre-allocated change slots, with many producers and a single consumer.
+ * <p/>
+ * Producers claim a sequence number with a compare-and-set, fill the slot and publish it by writing the sequence
+ * number into the slot. The consumer reads the slots in sequence order and frees them by moving its cursor. Nothing
+ * blocks and nothing is allocated when offering a change: when the ring is full {@link #offer} says so and the caller
+ * decides what to do with the change. The consumer only needs to be woken up for a change it may be waiting for, the
+ * ones published behind it are read in the same run.
+ */
+final class ChangeRing {
+
+    private static final class Slot {
+        // sequence number of the change in this slot, written last when publishing
+        volatile long sequence = -1;
+
+        Action action;
+        String type;
+        String id;
+        long version;
+        int retries;
+        long delayInMillis;
+        long baseMillis;
+        byte[] source;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+
+    // next sequence number to claim by a producer
+    private final AtomicLong claimed = new AtomicLong();
+
+    // next sequence number to read, only written by the consumer
+    private volatile long consumed = 0;
+
+    ChangeRing(final int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        mask = size - 1;
+    }
+
+    enum Offered {
+        // the ring is full, the change was not taken
+        FULL,
+        // published behind changes the consumer has yet to read
+        QUEUED,
+        // published as the next change to read, the consumer may be waiting for it
+        NEXT
+    }
+
+    /**
+     * Publish a change, unless the ring is full.
+     */
+    Offered offer(final Action action, final String type, final String id, final long version, final int retries, final long delayInMillis, final long baseMillis, final byte[] source) {
+        final long sequence = claim();
+        if (sequence < 0) {
+            return Offered.FULL;
+        }
+        return publish(sequence, action, type, id, version, retries, delayInMillis, baseMillis, source);
+    }
+
+    /**
+     * Claim the next slot, the consumer stops there until it is published.
+     *
+     * @return the sequence number of the slot, or {@code -1} if the ring is full
+     */
+    long claim() {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= slots.length) {
+                return -1;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        return sequence;
+    }
+
+    /**
+     * Fill a claimed slot and hand it to the consumer.
+     */
+    Offered publish(final long sequence, final Action action, final String type, final String id, final long version, final int retries, final long delayInMillis, final long baseMillis, final byte[] source) {
+        final Slot slot = slots[(int) sequence & mask];
+        slot.action = action;
+        slot.type = type;
+        slot.id = id;
+        slot.version = version;
+        slot.retries = retries;
+        slot.delayInMillis = delayInMillis;
+        slot.baseMillis = baseMillis;
+        slot.source = source;
+        slot.sequence = sequence;
+
+        // read after publishing: either the consumer moves its cursor here and then sees the change, or it stopped
+        // here before and we see its cursor
+        return consumed == sequence ? Offered.NEXT : Offered.QUEUED;
+    }
+
+    /**
+     * Whether the next change has been published. Only for the consumer.
+     */
+    boolean hasNext() {
+        final long sequence = consumed;
+        return slots[(int) sequence & mask].sequence == sequence;
+    }
+
+    /**
+     * The next change, or {@code null} if it hasn't been published yet. Only for the consumer.
+     */
+    DelayedImpl<Change> poll() {
+        final long sequence = consumed;
+        final Slot slot = slots[(int) sequence & mask];
+        if (slot.sequence != sequence) {
+            return null;
+        }
+
+        final Change change = new Change(slot.action, slot.type, slot.id, slot.version, slot.retries, slot.source);
+        final DelayedImpl<Change> delayed = new DelayedImpl<Change>(change, slot.delayInMillis, slot.baseMillis);
+
+        // don't keep the strings and sources of consumed changes alive
+        slot.type = null;
+        slot.id = null;
+        slot.source = null;
+
+        consumed = sequence + 1;
+        return delayed;
+    }
+
+    /**
+     * Number of claimed slots, published or not.
+     */
+    int size() {
+        return (int) (claimed.get() - consumed);
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+}
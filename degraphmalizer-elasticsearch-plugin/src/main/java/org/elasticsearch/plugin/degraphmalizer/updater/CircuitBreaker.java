@@ -0,0 +1,94 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+/**
+ * Circuit breaker for the requests of one index.
+ * <p/>
+ * After {@code failureThreshold} failures in a row the breaker opens, and no requests should be sent for
+ * {@code openInMillis}. After that it is half open: a single request may be sent to probe the Degraphmalizer. If it
+ * succeeds the breaker closes, otherwise it opens again.
+ */
+final class CircuitBreaker {
+
+    enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private final int failureThreshold;
+    private final long openInMillis;
+
+    // changed while synchronized, read without locking
+    private volatile State state = State.CLOSED;
+    private volatile long openedAt = 0;
+    private volatile long openCount = 0;
+    private int failures = 0;
+
+    CircuitBreaker(final int failureThreshold, final long openInMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openInMillis = openInMillis;
+    }
+
+    State state() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openInMillis) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * Requests that may be in progress at the same time: none while open, the single probe while half open and
+     * {@code max} while closed.
+     */
+    int allowed(final int max) {
+        switch (state()) {
+            case OPEN:
+                return 0;
+            case HALF_OPEN:
+                return 1;
+            default:
+                return max;
+        }
+    }
+
+    /**
+     * Milliseconds until an open breaker allows a probe, {@code 0} if requests may be sent.
+     */
+    long remainingInMillis() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, openedAt + openInMillis - System.currentTimeMillis());
+    }
+
+    /**
+     * @return whether this success closed the breaker
+     */
+    synchronized boolean success() {
+        failures = 0;
+        if (state == State.CLOSED) {
+            return false;
+        }
+        state = State.CLOSED;
+        return true;
+    }
+
+    /**
+     * @return whether this failure opened the breaker
+     */
+    synchronized boolean failure() {
+        failures++;
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt < openInMillis) {
+            return false;
+        }
+        if (state == State.CLOSED && (failureThreshold <= 0 || failures < failureThreshold)) {
+            return false;
+        }
+
+        // tripped, or the probe of a half open breaker failed
+        openedAt = System.currentTimeMillis();
+        openCount++;
+        state = State.OPEN;
+        return true;
+    }
+
+    long openCount() {
+        return openCount;
+    }
+}
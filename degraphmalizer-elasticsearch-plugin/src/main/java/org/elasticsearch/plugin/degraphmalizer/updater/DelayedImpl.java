@@ -29,6 +29,14 @@ public class DelayedImpl<T extends StringSerialization<T>> implements Delayed, S
         return thing;
     }
 
+    public long delayInMillis() {
+        return delayInMillis;
+    }
+
+    public long baseMillis() {
+        return baseMillis;
+    }
+
     @Override
     public long getDelay(final TimeUnit timeUnit) {
         return timeUnit.convert(delayInMillis - (System.currentTimeMillis() - baseMillis), TimeUnit.MILLISECONDS);
@@ -61,6 +69,13 @@ public class DelayedImpl<T extends StringSerialization<T>> implements Delayed, S
         return result;
     }
 
+    /**
+     * The same delay for another thing.
+     */
+    public DelayedImpl<T> withThing(final T otherThing) {
+        return new DelayedImpl<T>(otherThing, delayInMillis, baseMillis);
+    }
+
     public static <T extends StringSerialization<T>> DelayedImpl<T> immediate(final T thing) {
         return new DelayedImpl<T>(thing, 0);
     }
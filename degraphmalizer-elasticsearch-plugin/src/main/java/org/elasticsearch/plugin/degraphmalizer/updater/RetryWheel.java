@@ -0,0 +1,152 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.util.Collection;
+
+/**
+ * Hashed timing wheel for changes that are not due yet.
+ * <p/>
+ * Time is cut into ticks of {@code tickInMillis}, and the wheel has a bucket for each tick of one rotation. A change
+ * goes into the bucket of the tick it is due, remembering that tick, so adding is constant time however many changes
+ * are waiting. Expiring walks the buckets of the ticks that have passed and takes the changes that are due from them;
+ * changes that are due in a later rotation stay where they are.
+ * <p/>
+ * The wheel is not thread safe; the {@link UpdaterQueue} only uses it while synchronized.
+ */
+final class RetryWheel {
+
+    private static final class Entry {
+        final DelayedImpl<Change> delayed;
+        final long tick;
+        Entry next;
+
+        Entry(final DelayedImpl<Change> delayed, final long tick, final Entry next) {
+            this.delayed = delayed;
+            this.tick = tick;
+            this.next = next;
+        }
+    }
+
+    private final long tickInMillis;
+    private final Entry[] buckets;
+    private final int mask;
+
+    // the next tick to expire
+    private long current;
+    private int size = 0;
+
+    RetryWheel(final long tickInMillis, final int ticksPerRotation) {
+        int length = 1;
+        while (length < ticksPerRotation) {
+            length <<= 1;
+        }
+
+        this.tickInMillis = tickInMillis;
+        this.buckets = new Entry[length];
+        this.mask = length - 1;
+        this.current = System.currentTimeMillis() / tickInMillis;
+    }
+
+    /**
+     * Add a change, to expire on the first tick at or after it is due.
+     */
+    void add(final DelayedImpl<Change> delayed) {
+        final long due = delayed.baseMillis() + delayed.delayInMillis();
+        final long tick = Math.max(current, (due + tickInMillis - 1) / tickInMillis);
+
+        final int bucket = (int) tick & mask;
+        buckets[bucket] = new Entry(delayed, tick, buckets[bucket]);
+        size++;
+    }
+
+    /**
+     * Move the changes that are due to a collection, in the order they were added per tick.
+     *
+     * @return the number of changes moved
+     */
+    int expire(final long nowInMillis, final Collection<DelayedImpl<Change>> due) {
+        final long now = nowInMillis / tickInMillis;
+        if (size == 0 || now < current) {
+            current = Math.max(current, now);
+            return 0;
+        }
+
+        // after a long pause every bucket is visited once
+        final long last = Math.min(now, current + buckets.length - 1);
+
+        int moved = 0;
+        for (long tick = current; tick <= last; tick++) {
+            moved += expire((int) tick & mask, now, due);
+        }
+        current = now + 1;
+        size -= moved;
+        return moved;
+    }
+
+    private int expire(final int bucket, final long now, final Collection<DelayedImpl<Change>> due) {
+        // entries are pushed on the front, so collect them in reverse to keep the order they were added
+        Entry kept = null;
+        Entry expired = null;
+        for (Entry entry = buckets[bucket]; entry != null; ) {
+            final Entry next = entry.next;
+            if (entry.tick <= now) {
+                entry.next = expired;
+                expired = entry;
+            } else {
+                entry.next = kept;
+                kept = entry;
+            }
+            entry = next;
+        }
+
+        // kept entries are reversed again, so the next expiry sees them in the original order
+        Entry remaining = null;
+        for (Entry entry = kept; entry != null; ) {
+            final Entry next = entry.next;
+            entry.next = remaining;
+            remaining = entry;
+            entry = next;
+        }
+        buckets[bucket] = remaining;
+
+        int moved = 0;
+        for (Entry entry = expired; entry != null; entry = entry.next) {
+            due.add(entry.delayed);
+            moved++;
+        }
+        return moved;
+    }
+
+    /**
+     * Milliseconds until the wheel should be expired again, {@code -1} if it is empty.
+     */
+    long nextTickInMillis(final long nowInMillis) {
+        if (size == 0) {
+            return -1;
+        }
+        return Math.max(0, current * tickInMillis - nowInMillis);
+    }
+
+    /**
+     * Take all changes out of the wheel, due or not.
+     */
+    void drainTo(final Collection<DelayedImpl<Change>> all) {
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            for (Entry entry = buckets[bucket]; entry != null; entry = entry.next) {
+                all.add(entry.delayed);
+            }
+            buckets[bucket] = null;
+        }
+        size = 0;
+    }
+
+    void clear() {
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            buckets[bucket] = null;
+        }
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+}
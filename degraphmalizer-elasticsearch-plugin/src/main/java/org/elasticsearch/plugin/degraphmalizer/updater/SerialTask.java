@@ -0,0 +1,110 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Work on the {@link UpdaterPool} that never runs concurrently with itself.
+ * <p/>
+ * {@link #schedule()} can be called from any thread, as often as needed: if the task is already waiting for a worker it
+ * does nothing, and if it is running it makes the task run once more afterwards. Each run does one unit of work
+ * ({@link #runOnce()}), after which the task goes to the back of the line if it has more to do.
+ */
+abstract class SerialTask implements Runnable {
+    private static final ESLogger LOG = Loggers.getLogger(SerialTask.class);
+
+    private static final int IDLE = 0;
+    private static final int SCHEDULED = 1;
+    private static final int RUNNING = 2;
+    private static final int RUNNING_AND_SCHEDULED = 3;
+
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+
+    private final UpdaterPool pool;
+
+    // when the timer will schedule this task
+    private volatile long wakeUpAt = 0;
+
+    SerialTask(final UpdaterPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Do some work.
+     *
+     * @return whether there is more work to do right away
+     */
+    protected abstract boolean runOnce();
+
+    final void schedule() {
+        while (true) {
+            final int current = state.get();
+            if (current == IDLE) {
+                if (state.compareAndSet(IDLE, SCHEDULED)) {
+                    submit();
+                    return;
+                }
+            } else if (current == RUNNING) {
+                if (state.compareAndSet(RUNNING, RUNNING_AND_SCHEDULED)) {
+                    return;
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Schedule the task after a delay. Only the earliest of pending delays is kept.
+     */
+    final void scheduleAfter(final long delayInMillis) {
+        final long now = System.currentTimeMillis();
+        final long at = now + delayInMillis;
+        final long pending = wakeUpAt;
+        if (pending > now && pending <= at) {
+            return;
+        }
+
+        wakeUpAt = at;
+        try {
+            pool.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    schedule();
+                }
+            }, delayInMillis);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Updater pool is shut down, not scheduling {}", this);
+        }
+    }
+
+    @Override
+    public final void run() {
+        state.set(RUNNING);
+
+        boolean more = false;
+        try {
+            more = runOnce();
+        } catch (Exception e) {
+            LOG.error("{} got exception: {}", this, e);
+        }
+
+        // go to the back of the line, so the other indices get their turn
+        if (more || !state.compareAndSet(RUNNING, IDLE)) {
+            state.set(SCHEDULED);
+            submit();
+        }
+    }
+
+    private void submit() {
+        try {
+            pool.execute(this);
+        } catch (RejectedExecutionException e) {
+            state.set(IDLE);
+            LOG.debug("Updater pool is shut down, not running {}", this);
+        }
+    }
+}
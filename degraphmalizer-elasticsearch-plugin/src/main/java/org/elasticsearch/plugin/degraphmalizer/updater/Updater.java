@@ -1,64 +1,159 @@
 package org.elasticsearch.plugin.degraphmalizer.updater;
 
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
 
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class handles Change instances. The class can be configured via elasticsearch.yml (see README.md for
  * more information). The Updater manages a queue of Change objects, executes HTTP requests for these
  * changes and retries changes when HTTP requests fail.
+ * <p/>
+ * An updater has no threads of its own, its work is done on the shared {@link UpdaterPool}: a feeder task moves the
+ * changes through the queue and hands them to the lanes, and each lane task sends its changes.
+ * <p/>
+ * Failed changes are retried with exponential backoff and jitter, so changes that failed together don't all come back
+ * at the same moment. When requests keep failing the {@link CircuitBreaker} opens: nothing is sent until it is time to
+ * probe the Degraphmalizer with a single change, and meanwhile the queue spills new changes to the overflow journal.
+ * <p/>
+ * A Degraphmalizer that is too busy answers {@code 503} with a {@code Retry-After}: nothing is sent until then, and the
+ * refused changes come back without counting as a retry. To slow down before that happens, the {@link LoadProbe}
+ * reads the load of the Degraphmalizer now and then; while it is busy a single request is sent at a time.
  */
-public final class Updater implements Runnable {
+public final class Updater {
     private static final ESLogger LOG = Loggers.getLogger(Updater.class);
-    private static final int NAPTIME = 5 * 1000;
-    private final HttpClient httpClient = new DefaultHttpClient();
+    private static final String BULK_PATH = "/_bulk";
+    private static final String LOAD_PATH = "/_health/load";
+    private static final int SERVICE_UNAVAILABLE = 503;
+    private final HttpClient httpClient;
+    private final UpdaterSettings settings;
 
-    private final String uriScheme;
-    private final String uriHost;
-    private final int uriPort;
-    private final long retryDelayOnFailureInMillis;
-    private final int maxRetries;
+    private final UpdaterPool pool;
+    private final Feeder feeder;
+    private final LoadProbe probe;
+    private final CircuitBreaker breaker;
+    private final Random random = new Random();
+
+    // changes of the same document always go through the same lane, so they are sent in order
+    private final Lane[] lanes;
+
+    // changes handed to the lanes that haven't been sent yet, at most maxPending
+    private final AtomicInteger pending = new AtomicInteger();
+    private final int maxPending;
 
     private final String index;
 
     private File errorFile;
 
     private UpdaterQueue queue;
-    private boolean shutdownInProgress = false;
-    private boolean sending = false;
+    private volatile boolean shutdownInProgress = false;
+    private volatile boolean sending = false;
+    private final AtomicBoolean closing = new AtomicBoolean();
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    // nothing is sent before this time, because the Degraphmalizer is overloaded
+    private volatile long throttledUntil = 0;
+    // the Degraphmalizer is close to its limits
+    private volatile boolean busy = false;
 
 
-    public Updater(final String index, final String uriScheme, final String uriHost, final int uriPort, final long retryDelayOnFailureInMillis, final String logPath, final int queueLimit, final int maxRetries) {
+    public Updater(final UpdaterPool pool, final String index, final UpdaterSettings settings) {
+        this.pool = pool;
         this.index = index;
-        this.uriScheme = uriScheme;
-        this.uriHost = uriHost;
-        this.uriPort = uriPort;
-        this.retryDelayOnFailureInMillis = retryDelayOnFailureInMillis;
-        this.maxRetries = maxRetries;
+        this.settings = settings;
+
+        final PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
+        connectionManager.setMaxTotal(settings.maxConcurrentRequests);
+        connectionManager.setDefaultMaxPerRoute(settings.maxConcurrentRequests);
+        httpClient = new DefaultHttpClient(connectionManager);
+
+        feeder = new Feeder();
+        probe = new LoadProbe();
+        breaker = new CircuitBreaker(settings.circuitBreakerFailures, settings.circuitBreakerOpenInMillis);
+        lanes = new Lane[settings.maxConcurrentRequests];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(i);
+        }
+        maxPending = 2 * settings.maxConcurrentRequests * Math.max(1, settings.batchSize);
 
-        queue = new UpdaterQueue(logPath, index, queueLimit);
-        new Thread(queue,"updaterqueue-"+index).start();
+        queue = new UpdaterQueue(settings.logPath, index, settings.queueLimit, settings.ringSize, breaker, new Runnable() {
+            @Override
+            public void run() {
+                feeder.schedule();
+            }
+        });
 
-        errorFile = new File(logPath, index + "-error.log");
+        errorFile = new File(settings.logPath, index + "-error.log");
 
-        LOG.info("Updater instantiated for index {}. Updates will be sent to {}://{}:{}. Retry delay on failure is {} milliseconds.", index, uriScheme, uriHost, uriPort, retryDelayOnFailureInMillis);
-        LOG.info("Updater will overflow in {} after limit of {} has been reached, messages will be retried {} times ", logPath, queueLimit, maxRetries);
+        LOG.info("Updater instantiated for index {}. Updates will be sent to {}://{}:{}. Retry delay on failure is {} milliseconds.", index, settings.uriScheme, settings.uriHost, settings.uriPort, settings.retryDelayOnFailureInMillis);
+        LOG.info("Updater will overflow in {} after limit of {} has been reached, messages will be retried {} times ", settings.logPath, settings.queueLimit, settings.maxRetries);
+        LOG.info("Updater will send at most {} requests at the same time", settings.maxConcurrentRequests);
+        if (settings.circuitBreakerFailures > 0) {
+            LOG.info("Updater will stop sending for {} milliseconds after {} failed requests in a row", settings.circuitBreakerOpenInMillis, settings.circuitBreakerFailures);
+        }
+        if (settings.loadCheckIntervalInMillis > 0) {
+            LOG.info("Updater will check the load of the Degraphmalizer every {} milliseconds", settings.loadCheckIntervalInMillis);
+        }
+        if (settings.batchSize > 1) {
+            LOG.info("Updater will send batches of at most {} changes, waiting at most {} milliseconds to fill a batch", settings.batchSize, settings.batchTimeoutInMillis);
+        }
     }
 
+    /**
+     * Stop taking changes from the queue. Once the changes handed to the lanes have been sent, the queue is written to
+     * the overflow journal.
+     */
     public void shutdown() {
         shutdownInProgress = true;
+
+        // lanes waiting to fill a batch send it right away
+        for (Lane lane : lanes) {
+            lane.schedule();
+        }
+        closeWhenDone();
+    }
+
+    /**
+     * Wait until the updater has shut down.
+     */
+    public boolean awaitShutdown(final long timeoutInMillis) throws InterruptedException {
+        return closed.await(timeoutInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeWhenDone() {
+        if (!shutdownInProgress || pending.get() > 0 || !closing.compareAndSet(false, true)) {
+            return;
+        }
+
+        httpClient.getConnectionManager().shutdown();
+        queue.shutdown();
+        closed.countDown();
+        LOG.info("Updater stopped for index {}.", index);
     }
 
     public int getQueueSize() {
@@ -75,42 +170,14 @@ public final class Updater implements Runnable {
 
     public void startSending() {
         sending = true;
+        feeder.schedule();
     }
 
-    public void run() {
-        boolean done = false;
-        while (!done)
-        {
-            Change change = null;
-            try
-            {
-                if (sending)
-                {
-                    change = queue.take().thing();
-                    perform(change);
-                } else
-                {
-                    Thread.sleep(NAPTIME);
-                }
-                if (shutdownInProgress)
-                {
-                    queue.shutdown();
-                    done = true;
-                }
-            } catch (Exception e)
-            {
-                LOG.error("Updater for index {} got exception: {} for the change {}", new Object[]{index, e, change});
-            }
-        }
-        httpClient.getConnectionManager().shutdown();
-        queue.shutdown();
-        LOG.info("Updater stopped for index {}.", index);
-
-    }
-
-    public void add(final Change change) {
-        queue.add(DelayedImpl.immediate(change));
-        LOG.trace("Received {}", change);
+    /**
+     * Called on the indexing threads of Elasticsearch, so this doesn't block or allocate.
+     */
+    public void add(final Action action, final String type, final String id, final long version, final byte[] source) {
+        queue.add(action, type, id, version, source);
     }
 
     private void perform(final Change change) {
@@ -118,27 +185,271 @@ public final class Updater implements Runnable {
         try {
             final HttpResponse response = httpClient.execute(request);
 
-            if (!isSuccessful(response)) {
+            if (isOverloaded(response)) {
+                final long delay = throttle(response);
+                LOG.debug("Degraphmalizer too busy for change {} on index {}, sending it again in {} milliseconds", change, index, delay);
+                queue.add(new DelayedImpl<Change>(change, delay));
+            } else if (!isSuccessful(response)) {
                 LOG.warn("Request {} {} was not successful. Response status code: {}.", request.getMethod(), request.getURI(), response.getStatusLine().getStatusCode());
+                failed();
                 retry(change);
             } else {
                 LOG.debug("Change performed: {} : {}", index, change);
+                succeeded();
             }
 
             EntityUtils.consume(response.getEntity());
         } catch (IOException e) {
             LOG.warn("Error executing request {} {}: {}", request.getMethod(), request.getURI(), e.getMessage());
+            failed();
             retry(change);
         }
     }
 
+    private int laneOf(final Change change) {
+        final int hash = (change.type() + "/" + change.id()).hashCode();
+        return (hash & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    /**
+     * Moves the changes through the queue, and hands the changes that are due to the lanes while they have room.
+     */
+    private final class Feeder extends SerialTask {
+        Feeder() {
+            super(pool);
+        }
+
+        @Override
+        protected boolean runOnce() {
+            queue.process();
+            if (!sending || shutdownInProgress) {
+                return false;
+            }
+
+            final long wait = waitInMillis();
+            if (wait > 0) {
+                scheduleAfter(wait);
+                return false;
+            }
+            probe.checkIfDue();
+
+            // a half open breaker lets a single change through, to see if the Degraphmalizer is back
+            final int max = breaker.allowed(busy ? Math.max(1, settings.batchSize) : maxPending);
+
+            int handed = 0;
+            while (pending.get() < max) {
+                final DelayedImpl<Change> delayed = queue.poll();
+                if (delayed == null) {
+                    break;
+                }
+                pending.incrementAndGet();
+                lanes[laneOf(delayed.thing())].add(delayed.thing());
+                handed++;
+            }
+            if (handed > 0) {
+                return true;
+            }
+
+            // the lanes ask for more when they have room, but nobody tells when a retry is due
+            final long delay = queue.nextDelayInMillis();
+            if (delay >= 0 && pending.get() < max) {
+                scheduleAfter(Math.max(1, delay));
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "Feeder for index " + index;
+        }
+    }
+
+    /**
+     * Sends the changes handed to it, in order, a single change or a batch at a time.
+     */
+    private final class Lane extends SerialTask {
+        private final int number;
+        private final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<Change>();
+
+        // when the oldest change in this lane arrived
+        private volatile long since;
+
+        Lane(final int number) {
+            super(pool);
+            this.number = number;
+        }
+
+        void add(final Change change) {
+            if (changes.isEmpty()) {
+                since = System.currentTimeMillis();
+            }
+            changes.add(change);
+            schedule();
+        }
+
+        @Override
+        protected boolean runOnce() {
+            if (changes.isEmpty()) {
+                return false;
+            }
+
+            // wait a while for the batch to fill up
+            if (settings.batchSize > 1 && !shutdownInProgress && changes.size() < settings.batchSize) {
+                final long wait = since + settings.batchTimeoutInMillis - System.currentTimeMillis();
+                if (wait > 0) {
+                    scheduleAfter(wait);
+                    return false;
+                }
+            }
+
+            final List<Change> batch = new ArrayList<Change>(settings.batchSize);
+            for (Change change = changes.poll(); change != null; change = changes.poll()) {
+                batch.add(change);
+                if (batch.size() >= settings.batchSize) {
+                    break;
+                }
+            }
+            since = System.currentTimeMillis();
+
+            try {
+                final long wait = waitInMillis();
+                if (wait > 0) {
+                    // the breaker opened or the Degraphmalizer got too busy after these were handed out, they wait
+                    // instead of failing too
+                    for (Change change : batch) {
+                        queue.add(new DelayedImpl<Change>(change, wait));
+                    }
+                } else if (settings.batchSize > 1) {
+                    perform(batch);
+                } else {
+                    for (Change change : batch) {
+                        perform(change);
+                    }
+                }
+            } finally {
+                pending.addAndGet(-batch.size());
+                feeder.schedule();
+                closeWhenDone();
+            }
+            return !changes.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "Lane " + number + " for index " + index;
+        }
+    }
+
+    /**
+     * Send a batch of changes in one request to the bulk endpoint of the Degraphmalizer. The response has a line with
+     * the result for each change, changes that failed or for which there is no result are retried.
+     */
+    private void perform(final List<Change> changes) {
+        final boolean[] done = new boolean[changes.size()];
+        final HttpPost request = new HttpPost(buildURI(BULK_PATH));
+        try {
+            request.setEntity(new StringEntity(toBulkBody(changes), "UTF-8"));
+            final HttpResponse response = httpClient.execute(request);
+
+            if (isOverloaded(response)) {
+                final long delay = throttle(response);
+                EntityUtils.consume(response.getEntity());
+                LOG.debug("Degraphmalizer too busy for a bulk request of {} changes on index {}, sending them again in {} milliseconds", changes.size(), index, delay);
+                for (int i = 0; i < changes.size(); i++) {
+                    queue.add(new DelayedImpl<Change>(changes.get(i), delay));
+                    done[i] = true;
+                }
+            } else if (!isSuccessful(response)) {
+                LOG.warn("Bulk request of {} changes was not successful. Response status code: {}.", changes.size(), response.getStatusLine().getStatusCode());
+                EntityUtils.consume(response.getEntity());
+                failed();
+            } else {
+                // failures of single changes are about the documents, not about the Degraphmalizer
+                readBulkResults(response, changes, done);
+                succeeded();
+            }
+        } catch (IOException e) {
+            LOG.warn("Error executing bulk request {} {}: {}", request.getMethod(), request.getURI(), e.getMessage());
+            failed();
+        } finally {
+            for (int i = 0; i < changes.size(); i++) {
+                if (!done[i]) {
+                    retry(changes.get(i));
+                }
+            }
+        }
+    }
+
+    private String toBulkBody(final List<Change> changes) throws IOException {
+        final StringBuilder body = new StringBuilder();
+        for (Change change : changes) {
+            final XContentBuilder line = XContentFactory.jsonBuilder().startObject()
+                    .field("index", index)
+                    .field("type", change.type())
+                    .field("id", change.id())
+                    .field("version", change.version())
+                    .field("action", change.action().name().toLowerCase());
+            if (change.source() != null) {
+                line.rawField("source", change.source());
+            }
+            line.endObject();
+            body.append(line.string()).append('\n');
+        }
+        return body.toString();
+    }
+
+    private void readBulkResults(final HttpResponse response, final List<Change> changes, final boolean[] done) throws IOException {
+        final BulkResults results = new BulkResults(changes.size());
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent(), "UTF-8"));
+        try {
+            results.read(reader);
+        } finally {
+            // the changes without a result are retried by perform
+            for (int n = 0; n < changes.size(); n++) {
+                done[n] = handleBulkResult(changes.get(n), results, n);
+            }
+            reader.close();
+        }
+    }
+
+    private boolean handleBulkResult(final Change change, final BulkResults results, final int n) {
+        switch (results.result(n)) {
+            case OVERLOADED:
+                final long delay = throttle(results.retryAfterInMillis(n));
+                LOG.debug("Degraphmalizer too busy for change {} on index {}, sending it again in {} milliseconds", change, index, delay);
+                queue.add(new DelayedImpl<Change>(change, delay));
+                return true;
+            case SUPERSEDED:
+                LOG.debug("Change {} on index {} was superseded by a newer version", change, index);
+                return true;
+            case FAILED:
+                LOG.warn("Change {} on index {} was not successful: {}", change, index, results.message(n));
+                retry(change);
+                return true;
+            case DONE:
+                LOG.debug("Change performed: {} : {}", index, change);
+                return true;
+            default:
+                return false;
+        }
+    }
+
     private HttpRequestBase toRequest(final Change change) {
         final HttpRequestBase request;
 
         final Action action = change.action();
         switch (action) {
             case UPDATE:
-                request = new HttpGet(buildURI(change));
+                if (change.source() != null) {
+                    // the Degraphmalizer doesn't have to fetch this version
+                    final HttpPost post = new HttpPost(buildURI(change));
+                    final ByteArrayEntity entity = new ByteArrayEntity(change.source());
+                    entity.setContentType("application/json");
+                    post.setEntity(entity);
+                    request = post;
+                } else {
+                    request = new HttpGet(buildURI(change));
+                }
                 break;
             case DELETE:
                 request = new HttpDelete(buildURI(change));
@@ -156,16 +467,19 @@ public final class Updater implements Runnable {
         final long version = change.version();
 
         final String path = String.format("/%s/%s/%s/%d", index, type, id, version);
+        return buildURI(path);
+    }
 
+    private URI buildURI(final String path) {
         try {
             return new URIBuilder()
-                    .setScheme(uriScheme)
-                    .setHost(uriHost)
-                    .setPort(uriPort)
+                    .setScheme(settings.uriScheme)
+                    .setHost(settings.uriHost)
+                    .setPort(settings.uriPort)
                     .setPath(path)
                     .build();
         } catch (URISyntaxException e) {
-            throw new RuntimeException("Unexpected error building uri for change " + change + " on index " + index, e);
+            throw new RuntimeException("Unexpected error building uri for path " + path + " on index " + index, e);
         }
     }
 
@@ -174,18 +488,126 @@ public final class Updater implements Runnable {
         return statusCode == 200;
     }
 
+    private boolean isOverloaded(final HttpResponse response) {
+        return response.getStatusLine().getStatusCode() == SERVICE_UNAVAILABLE;
+    }
+
+    /**
+     * Milliseconds until changes may be sent again, {@code 0} if they may be sent now.
+     */
+    private long waitInMillis() {
+        return Math.max(breaker.remainingInMillis(), throttledUntil - System.currentTimeMillis());
+    }
+
+    /**
+     * Stop sending for the {@code Retry-After} of a response, or the retry delay if it has none.
+     */
+    private long throttle(final HttpResponse response) {
+        long delay = settings.retryDelayOnFailureInMillis;
+        final Header retryAfter = response.getFirstHeader("Retry-After");
+        if (retryAfter != null) {
+            try {
+                delay = Long.parseLong(retryAfter.getValue().trim()) * 1000;
+            } catch (NumberFormatException e) {
+                LOG.debug("Ignoring Retry-After {} from the Degraphmalizer", retryAfter.getValue());
+            }
+        }
+        return throttle(delay);
+    }
+
+    private long throttle(final long delayInMillis) {
+        final long delay = Math.max(1, delayInMillis);
+        final long until = System.currentTimeMillis() + delay;
+        if (until > throttledUntil) {
+            throttledUntil = until;
+            LOG.info("Degraphmalizer is too busy, not sending changes for index {} for {} milliseconds", index, delay);
+        }
+        return delay;
+    }
+
+    /**
+     * Reads the load of the Degraphmalizer, at most once every {@code loadCheckIntervalInMillis} while changes are
+     * being sent.
+     */
+    private final class LoadProbe extends SerialTask {
+        private volatile long checkedAt = 0;
+
+        LoadProbe() {
+            super(pool);
+        }
+
+        void checkIfDue() {
+            if (settings.loadCheckIntervalInMillis > 0 && System.currentTimeMillis() - checkedAt >= settings.loadCheckIntervalInMillis) {
+                schedule();
+            }
+        }
+
+        @Override
+        protected boolean runOnce() {
+            if (System.currentTimeMillis() - checkedAt < settings.loadCheckIntervalInMillis || shutdownInProgress) {
+                return false;
+            }
+            checkedAt = System.currentTimeMillis();
+
+            final HttpGet request = new HttpGet(buildURI(LOAD_PATH));
+            try {
+                final HttpResponse response = httpClient.execute(request);
+                if (!isSuccessful(response)) {
+                    // an older Degraphmalizer, or it is down and the requests will notice
+                    EntityUtils.consume(response.getEntity());
+                    busy = false;
+                    return false;
+                }
+
+                final Map<String, Object> load = JsonXContent.jsonXContent.createParser(EntityUtils.toString(response.getEntity(), "UTF-8")).mapAndClose();
+                final Object status = load.get("status");
+                if ("overloaded".equals(status) && load.get("retryAfter") instanceof Number) {
+                    throttle(((Number) load.get("retryAfter")).longValue() * 1000);
+                }
+
+                final boolean wasBusy = busy;
+                busy = "busy".equals(status) || "overloaded".equals(status);
+                if (busy != wasBusy) {
+                    LOG.info("Degraphmalizer is {}, sending {} for index {}", status, busy ? "a single request at a time" : "at full speed", index);
+                    feeder.schedule();
+                }
+            } catch (IOException e) {
+                LOG.debug("Could not read the load of the Degraphmalizer: {}", e.getMessage());
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "Load probe for index " + index;
+        }
+    }
+
+    private void succeeded() {
+        if (breaker.success()) {
+            LOG.info("Degraphmalizer is back for index {}, sending changes again", index);
+            feeder.schedule();
+        }
+    }
+
+    private void failed() {
+        if (breaker.failure()) {
+            LOG.warn("Requests for index {} keep failing, not sending changes for a while", index);
+        }
+    }
+
     private void retry(final Change change) {
-        if (change.retries() < maxRetries) {
+        if (change.retries() < settings.maxRetries) {
             change.retried();
-            final DelayedImpl<Change> delayedChange = new DelayedImpl<Change>(change, change.retries() * retryDelayOnFailureInMillis);
-            queue.add(delayedChange);
-            LOG.debug("Retrying change {} on index {} in {} milliseconds", change, index, retryDelayOnFailureInMillis);
+            final long delay = settings.backoffInMillis(change.retries(), random);
+            queue.add(new DelayedImpl<Change>(change, delay));
+            LOG.debug("Retrying change {} on index {} in {} milliseconds", change, index, delay);
         } else {
             logError(change);
         }
     }
 
-    public void logError(Change change) {
+    public synchronized void logError(Change change) {
         try {
             LOG.warn("Writing failed change {} to error log {}", change, errorFile.getCanonicalPath());
             final PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(errorFile, true), "UTF-8")));
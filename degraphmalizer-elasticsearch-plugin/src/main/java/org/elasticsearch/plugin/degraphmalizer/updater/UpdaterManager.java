@@ -17,6 +17,8 @@ import javax.management.ObjectName;
 import java.lang.management.ManagementFactory;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * User: rico
@@ -24,34 +26,21 @@ import java.util.Map;
  */
 public class UpdaterManager extends AbstractLifecycleComponent<UpdaterManager> implements UpdaterManagerMBean {
     private static final ESLogger LOG = Loggers.getLogger(UpdaterManager.class);
+    private static final long SHUTDOWN_TIMEOUT_IN_MILLIS = 30 * 1000;
 
-    private Map<String, Updater> updaters = new HashMap<String, Updater>();
+    // read without locking on the indexing threads, changed while synchronized
+    private final ConcurrentMap<String, Updater> updaters = new ConcurrentHashMap<String, Updater>();
 
-    private final String uriScheme;
-    private final String uriHost;
-    private final int uriPort;
-    private final long retryDelayOnFailureInMillis;
-
-    private int queueLimit;
-    private String logPath;
-    private int maxRetries;
+    private final UpdaterSettings updaterSettings;
+    private final UpdaterPool pool;
     private boolean sending = false;
 
     @Inject
     public UpdaterManager(final Settings settings) {
         super(settings);
 
-        final Settings pluginSettings = settings.getComponentSettings(DegraphmalizerPlugin.class);
-
-        // Please keep this in sync with the documentation in README.md
-        this.uriScheme = pluginSettings.get("DegraphmalizerPlugin.degraphmalizerScheme", "http");
-        this.uriHost = pluginSettings.get("DegraphmalizerPlugin.degraphmalizerHost", "localhost");
-        this.uriPort = pluginSettings.getAsInt("DegraphmalizerPlugin.degraphmalizerPort", 9821);
-        this.retryDelayOnFailureInMillis = pluginSettings.getAsLong("DegraphmalizerPlugin.retryDelayOnFailureInMillis", 10000l);
-
-        this.queueLimit = pluginSettings.getAsInt("DegraphmalizerPlugin.queueLimit", 100000);
-        this.logPath = pluginSettings.get("DegraphmalizerPlugin.logPath", "/export/elasticsearch/degraphmalizer");
-        this.maxRetries = pluginSettings.getAsInt("DegraphmalizerPlugin.maxRetries", 10);
+        this.updaterSettings = new UpdaterSettings(settings.getComponentSettings(DegraphmalizerPlugin.class));
+        this.pool = new UpdaterPool(updaterSettings.workers);
     }
 
     @Override
@@ -65,6 +54,19 @@ public class UpdaterManager extends AbstractLifecycleComponent<UpdaterManager> i
             LOG.info("Shutting down updater for index " + entry.getKey());
             entry.getValue().shutdown();
         }
+
+        // the updaters need the pool to finish their work
+        final long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_IN_MILLIS;
+        try {
+            for (Map.Entry<String, Updater> entry : updaters.entrySet()) {
+                if (!entry.getValue().awaitShutdown(Math.max(0, deadline - System.currentTimeMillis()))) {
+                    LOG.warn("Updater for index {} stopped before all requests were sent", entry.getKey());
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while waiting for the updaters to stop");
+        }
+        pool.shutdown();
     }
 
     @Override
@@ -92,9 +94,8 @@ public class UpdaterManager extends AbstractLifecycleComponent<UpdaterManager> i
             LOG.warn("Updater for index {} already exists", index);
             return;
         }
-        final Updater updater = new Updater(index, uriScheme, uriHost, uriPort, retryDelayOnFailureInMillis, logPath, queueLimit, maxRetries);
+        final Updater updater = new Updater(pool, index, updaterSettings);
         updaters.put(index, updater);
-        new Thread(updater,"updater-"+index).start();
         if (sending) updater.startSending();
         LOG.info("Updater started for index {}", index);
     }
@@ -110,12 +111,19 @@ public class UpdaterManager extends AbstractLifecycleComponent<UpdaterManager> i
         }
     }
 
-    public void add(final String index, final Change change) {
+    /**
+     * Largest source document that is sent along with a change, {@code 0} if sources are never sent.
+     */
+    public int maxSourceSize() {
+        return updaterSettings.maxSourceSize;
+    }
+
+    public void add(final String index, final Action action, final String type, final String id, final long version, final byte[] source) {
         final Updater updater = updaters.get(index);
         if (updater != null) {
-            updater.add(change);
+            updater.add(action, type, id, version, source);
         } else {
-            LOG.error("There is no updater for index {}, dropping change {}", index, change);
+            LOG.error("There is no updater for index {}, dropping change {}", index, new Change(action, type, id, version));
         }
     }
 
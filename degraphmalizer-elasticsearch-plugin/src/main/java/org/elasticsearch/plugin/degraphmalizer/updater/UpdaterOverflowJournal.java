@@ -0,0 +1,388 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Append-only journal for the changes that don't fit in memory.
+ * <p/>
+ * The journal lives in {@code [logPath]/[index]-journal/} and consists of memory mapped segments of
+ * {@link #SEGMENT_SIZE} bytes, {@code segment-[number]}, and a small {@code position} file holding the head (next
+ * record to load), the tail (where the next record is appended) and the number of records in between. Changes are
+ * appended at the tail and loaded from the head; a segment is deleted once the head moves past it. Records in a
+ * segment are
+ * <pre>
+ * int length, long delay, long base, byte action, int retries, long version, short n, n bytes type, short m, m bytes id
+ * </pre>
+ * where a length of {@code 0} marks the end of the records in the segment. The source sent along with an update is not
+ * kept, so a change loaded from the journal has none and the Degraphmalizer gets the document from Elasticsearch.
+ * <p/>
+ * The positions are written after the records are forced to disk, so after a restart the journal continues exactly
+ * where it stopped. Records are checked when they are read: when a record is damaged anyway, the rest of its segment
+ * is skipped.
+ * Overflow files of earlier versions, {@code [index]-overflow-[millis]}, are moved into the journal when it is opened.
+ */
+public class UpdaterOverflowJournal {
+
+    private static final ESLogger LOG = Loggers.getLogger(UpdaterOverflowJournal.class);
+
+    static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Action[] ACTIONS = Action.values();
+
+    // headSegment, headOffset, tailSegment, tailOffset, size
+    private static final int POSITION_SIZE = 8 + 4 + 8 + 4 + 8;
+
+    // a record without type and id
+    private static final int MIN_RECORD_LENGTH = 8 + 8 + 1 + 4 + 8 + 2 + 2;
+
+    private final File directory;
+    private final int limit;
+
+    private final MappedByteBuffer position;
+
+    private long headSegment;
+    private ByteBuffer head;
+    private long tailSegment;
+    private ByteBuffer tail;
+
+    // the mapping of the tail segment, forced to disk before the positions are written
+    private MappedByteBuffer tailMapping;
+
+    private volatile long size;
+
+    public UpdaterOverflowJournal(final String logPath, final String index, final int limit) {
+        this.directory = new File(logPath, index + "-journal");
+        this.limit = limit;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Can not create overflow journal " + directory);
+        }
+
+        try {
+            position = map(new File(directory, "position"), POSITION_SIZE);
+
+            headSegment = position.getLong(0);
+            tailSegment = position.getLong(12);
+            size = position.getLong(24);
+
+            tailMapping = segment(tailSegment);
+            tail = tailMapping.duplicate();
+            tail.position(position.getInt(20));
+            head = headSegment == tailSegment ? tailMapping.duplicate() : segment(headSegment);
+            head.position(position.getInt(8));
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not open overflow journal " + directory, e);
+        }
+
+        importOverflowFiles(logPath, index);
+
+        if (size > 0) {
+            LOG.info("Overflow journal {} contains {} changes", directory, size);
+        }
+    }
+
+    private void importOverflowFiles(final String logPath, final String index) {
+        final File[] files = new File(logPath).listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.matches(index + "-overflow-\\d+");
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+
+        final DelayedImpl<Change> delayedFactory = new DelayedImpl<Change>(new Change(), 0);
+        for (File file : files) {
+            final BlockingQueue<DelayedImpl<Change>> changes = new LinkedBlockingQueue<DelayedImpl<Change>>();
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    try {
+                        changes.add(delayedFactory.fromValue(line));
+                    } catch (Exception e) {
+                        LOG.error("Unparsable overflow line " + line);
+                    }
+                }
+            } catch (IOException e) {
+                LOG.error("Error importing overflow file {}: {}", file, e.getMessage());
+                continue;
+            } finally {
+                closeQuietly(reader);
+            }
+
+            while (!changes.isEmpty()) {
+                if (save(changes) == 0) {
+                    break;
+                }
+            }
+            if (!changes.isEmpty()) {
+                LOG.error("Can not move overflow file {} into the journal, keeping it", file);
+                return;
+            }
+            if (!file.delete()) {
+                LOG.error("Can not remove file {}", file);
+            }
+        }
+    }
+
+    /**
+     * Number of changes in the journal.
+     */
+    public int size() {
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Remove all changes, and the segments holding them.
+     */
+    public synchronized void clear() {
+        for (long segment = headSegment; segment <= tailSegment; segment++) {
+            delete(segment);
+        }
+
+        try {
+            headSegment = tailSegment + 1;
+            tailSegment = headSegment;
+            tailMapping = segment(headSegment);
+            head = tailMapping.duplicate();
+            tail = tailMapping.duplicate();
+            size = 0;
+            writePosition();
+        } catch (IOException e) {
+            LOG.error("Error clearing overflow journal {}: {}", directory, e.getMessage());
+        }
+    }
+
+    /**
+     * Append the changes of a queue to the journal, at most {@code limit} of them. A change is only taken from the
+     * queue when it is written.
+     *
+     * @return the number of changes taken from the queue, {@code 0} when the journal can't be written
+     */
+    public synchronized int save(final BlockingQueue<DelayedImpl<Change>> queue) {
+        int count = 0;
+        try {
+            DelayedImpl<Change> delayed;
+            while (count < limit && (delayed = queue.peek()) != null) {
+                append(delayed);
+                queue.poll();
+                count++;
+            }
+        } catch (IOException e) {
+            LOG.error("Error saving to overflow journal {}: {}", directory, e.getMessage());
+        } finally {
+            writePosition();
+        }
+        return count;
+    }
+
+    /**
+     * Move the first changes in the journal to the queue, at most {@code limit} of them.
+     */
+    public synchronized void load(final BlockingQueue<DelayedImpl<Change>> queue) {
+        int count = 0;
+        try {
+            while (count < limit && size > 0) {
+                final DelayedImpl<Change> delayed = next();
+                if (delayed == null) {
+                    break;
+                }
+                queue.add(delayed);
+                count++;
+            }
+        } catch (IOException e) {
+            LOG.error("Error loading from overflow journal {}: {}", directory, e.getMessage());
+        } finally {
+            writePosition();
+        }
+    }
+
+    private void append(final DelayedImpl<Change> delayed) throws IOException {
+        final Change change = delayed.thing();
+        final byte[] type = change.type().getBytes(UTF8);
+        final byte[] id = change.id().getBytes(UTF8);
+        if (type.length > Short.MAX_VALUE || id.length > Short.MAX_VALUE) {
+            LOG.error("Change too large for the overflow journal, dropping it: {}", change);
+            return;
+        }
+
+        final int length = 8 + 8 + 1 + 4 + 8 + 2 + type.length + 2 + id.length;
+
+        // room for the record and the end marker after it
+        if (tail.remaining() < 4 + length + 4) {
+            // map the next segment first, so nothing changes when that fails
+            final MappedByteBuffer next = segment(tailSegment + 1);
+            tail.putInt(0);
+            tailMapping.force();
+            tailSegment++;
+            tailMapping = next;
+            tail = next.duplicate();
+        }
+
+        tail.putInt(length);
+        tail.putLong(delayed.delayInMillis());
+        tail.putLong(delayed.baseMillis());
+        tail.put((byte) change.action().ordinal());
+        tail.putInt(change.retries());
+        tail.putLong(change.version());
+        tail.putShort((short) type.length);
+        tail.put(type);
+        tail.putShort((short) id.length);
+        tail.put(id);
+
+        size++;
+    }
+
+    private DelayedImpl<Change> next() throws IOException {
+        while (true) {
+            final int length = head.remaining() < 4 ? 0 : head.getInt(head.position());
+
+            // end of this segment, continue in the next one
+            if (length == 0) {
+                if (!nextSegment()) {
+                    return null;
+                }
+                continue;
+            }
+
+            final int start = head.position();
+            final DelayedImpl<Change> delayed = record(length);
+            if (delayed != null) {
+                size--;
+                return delayed;
+            }
+
+            LOG.error("Overflow journal {} has a damaged record at {} of segment {}, skipping the rest of the segment",
+                    directory, start, headSegment);
+            if (headSegment >= tailSegment) {
+                head.position(tail.position());
+                size = 0;
+                return null;
+            }
+            if (!nextSegment()) {
+                return null;
+            }
+        }
+    }
+
+    private boolean nextSegment() throws IOException {
+        if (headSegment >= tailSegment) {
+            LOG.error("Overflow journal {} has {} changes, but no more records", directory, size);
+            size = 0;
+            return false;
+        }
+        delete(headSegment);
+        headSegment++;
+        head = headSegment == tailSegment ? tailMapping.duplicate() : segment(headSegment);
+        head.position(0);
+        return true;
+    }
+
+    /**
+     * Read the record at the head, or {@code null} if it is damaged.
+     */
+    private DelayedImpl<Change> record(final int length) {
+        if (length < MIN_RECORD_LENGTH || length > head.remaining() - 4) {
+            return null;
+        }
+        final int end = head.position() + 4 + length;
+
+        head.getInt();
+        final long delay = head.getLong();
+        final long base = head.getLong();
+        final int action = head.get();
+        final int retries = head.getInt();
+        final long version = head.getLong();
+        if (action < 0 || action >= ACTIONS.length || retries < 0) {
+            return null;
+        }
+
+        final String type = string(head, end);
+        final String id = type == null ? null : string(head, end);
+        if (id == null || head.position() != end) {
+            return null;
+        }
+
+        return new DelayedImpl<Change>(new Change(ACTIONS[action], type, id, version, retries), delay, base);
+    }
+
+    // a string that ends before end, or null
+    private static String string(final ByteBuffer buffer, final int end) {
+        if (end - buffer.position() < 2) {
+            return null;
+        }
+        final int length = buffer.getShort();
+        if (length < 0 || length > end - buffer.position()) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private void writePosition() {
+        position.putLong(0, headSegment);
+        position.putInt(8, head.position());
+        position.putLong(12, tailSegment);
+        position.putInt(20, tail.position());
+        position.putLong(24, size);
+
+        // the records before the positions that point past them
+        tailMapping.force();
+        position.force();
+    }
+
+    private MappedByteBuffer segment(final long segment) throws IOException {
+        return map(segmentFile(segment), SEGMENT_SIZE);
+    }
+
+    private File segmentFile(final long segment) {
+        return new File(directory, String.format("segment-%016d", segment));
+    }
+
+    private void delete(final long segment) {
+        final File file = segmentFile(segment);
+        if (file.exists() && !file.delete()) {
+            LOG.error("Can not remove overflow segment {}", file);
+        }
+    }
+
+    private static void closeQuietly(final Reader input) {
+        if (input == null) {
+            return;
+        }
+        try {
+            input.close();
+        } catch (IOException ioe) {
+        }
+    }
+
+    private static MappedByteBuffer map(final File file, final int size) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads doing the work of all updaters: a fixed number of workers, and a timer for work that has to wait.
+ * <p/>
+ * Work is handed to the workers as {@link SerialTask}s, which do a bit of work for one index and then go to the back of
+ * the line, so the workers go round-robin over the indices.
+ */
+public class UpdaterPool {
+    private static final ESLogger LOG = Loggers.getLogger(UpdaterPool.class);
+
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+
+    public UpdaterPool(final int size) {
+        workers = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), namedThreadFactory("degraphmalizer-updater"));
+        timer = Executors.newSingleThreadScheduledExecutor(namedThreadFactory("degraphmalizer-updater-timer"));
+        LOG.info("Updaters share {} worker threads", size);
+    }
+
+    void execute(final Runnable task) {
+        workers.execute(task);
+    }
+
+    void schedule(final Runnable task, final long delayInMillis) {
+        timer.schedule(task, delayInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+        workers.shutdown();
+    }
+
+    private static ThreadFactory namedThreadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -6,116 +6,368 @@ import org.elasticsearch.common.logging.Loggers;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import java.lang.management.ManagementFactory;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class UpdaterQueue implements Runnable, UpdaterQueueMBean
+/**
+ * Queue of changes for one index. Changes of the same document are coalesced: while a change of a document is
+ * queued, a newer change of it doesn't get a place of its own but replaces the queued one when that is taken, so the
+ * document keeps its place in line and is only sent once, with its latest version. Only a retry waiting for its backoff
+ * doesn't keep its place: a change that is due takes over from it right away, and the retry is dropped when it is due.
+ * <p/>
+ * Changes come in through a {@link ChangeRing}, so adding a change doesn't lock or allocate; this is on the indexing
+ * threads of Elasticsearch. When the ring is full, changes are spilled to the overflow journal instead of blocking.
+ * {@link #process()} is the only consumer of the ring. It coalesces the changes and moves them to the output queue,
+ * or to the input queue while the output queue is full. Changes that are not due yet, like retries, wait in a
+ * {@link RetryWheel} until they are. The queue doesn't have a thread of its own: a change that is added to an empty
+ * ring, or spilled, calls the listener given to the constructor, which should make sure {@link #process()} and
+ * {@link #poll()} get called.
+ * <p/>
+ * While the {@link CircuitBreaker} of the index is open, changes are not kept in memory at all but spilled to the
+ * overflow journal right away.
+ */
+public class UpdaterQueue implements UpdaterQueueMBean
 {
 
     private static final ESLogger LOG = Loggers.getLogger(UpdaterQueue.class);
 
+    private static final long RETRY_TICK_IN_MILLIS = 100;
+    private static final int RETRY_TICKS_PER_ROTATION = 512;
+
     private final BlockingQueue<DelayedImpl<Change>> inputQueue = new LinkedBlockingQueue<DelayedImpl<Change>>();
-    private final BlockingQueue<DelayedImpl<Change>> outputQueue = new DelayQueue<DelayedImpl<Change>>();
+    private final BlockingQueue<DelayedImpl<Change>> outputQueue = new LinkedBlockingQueue<DelayedImpl<Change>>();
+
+    // changes that are not due yet
+    private final RetryWheel wheel = new RetryWheel(RETRY_TICK_IN_MILLIS, RETRY_TICKS_PER_ROTATION);
+
+    private final UpdaterOverflowJournal overflowJournal;
+
+    private final ChangeRing ring;
+
+    // changes that didn't fit in the ring, on their way to the overflow journal
+    private final Queue<DelayedImpl<Change>> spilled = new ConcurrentLinkedQueue<DelayedImpl<Change>>();
+    private final AtomicLong spillCount = new AtomicLong();
+
+    // called when a change is added
+    private final Runnable listener;
+
+    private final CircuitBreaker breaker;
+
+    // the newest change of every document that has a place in the in-memory queues
+    private final Map<String, Change> latest = new HashMap<String, Change>();
+    private final AtomicLong merged = new AtomicLong();
 
-    private final UpdaterOverflowFileManager overflowFileManager;
+    // the documents whose place is in the wheel, and the change holding it; only used while synchronized
+    private final Map<String, DelayedImpl<Change>> waiting = new HashMap<String, DelayedImpl<Change>>();
 
     private int limit;
 
     private String index;
 
-    private boolean shuttingDown = false;
+    private boolean closed = false;
 
-    public UpdaterQueue(final String logPath, final String index, final int limit)
+    public UpdaterQueue(final String logPath, final String index, final int limit, final int ringSize, final CircuitBreaker breaker, final Runnable listener)
     {
         this.limit = limit / 2;
         this.index = index;
-        this.overflowFileManager = new UpdaterOverflowFileManager(logPath, index, limit);
+        this.overflowJournal = new UpdaterOverflowJournal(logPath, index, limit);
+        this.ring = new ChangeRing(ringSize);
+        this.breaker = breaker;
+        this.listener = listener;
         registerMBean();
     }
 
-    @Override
-    public void run()
+    /**
+     * Move the changes along: spill, coalesce the changes in the ring, take the changes that are due from the wheel,
+     * and fill up the output queue.
+     *
+     * @return whether any change was moved
+     */
+    public synchronized boolean process()
+    {
+        if (closed)
+            return false;
+
+        boolean moved = spill();
+        moved |= drainRing();
+        moved |= expireRetries();
+
+        if (inputQueue.size() >= limit)
+        {
+            saveOverflow(inputQueue);
+        }
+
+        moved |= moveToOutput();
+        return moved;
+    }
+
+    /**
+     * Write the spilled changes to the overflow journal. They are coalesced when they are loaded again.
+     */
+    private boolean spill()
+    {
+        if (spilled.isEmpty())
+            return false;
+
+        final BlockingQueue<DelayedImpl<Change>> changes = new LinkedBlockingQueue<DelayedImpl<Change>>();
+        for (DelayedImpl<Change> delayed = spilled.poll(); delayed != null; delayed = spilled.poll())
+            changes.add(delayed);
+
+        save(changes);
+        return true;
+    }
+
+    /**
+     * Write changes to the overflow journal. When the journal can't be written, the changes that are left stay in
+     * memory instead, or are dropped when the queue is shut down.
+     */
+    private void save(final BlockingQueue<DelayedImpl<Change>> changes)
     {
-        // TODO should be using wait/notify
-        while (!shuttingDown)
+        while (!changes.isEmpty())
         {
-            if (outputQueue.size() < limit)
+            if (overflowJournal.save(changes) > 0)
+                continue;
+
+            if (closed)
             {
-                if (overflowFileManager.isEmpty())
-                {
-                    copyInputToOutput();
-                } else
-                {
-                    if (outputQueue.isEmpty())
-                    {
-                        overflowFileManager.load(outputQueue);
-                    }
-                    if (inputQueue.size() >= limit)
-                    {
-                        overflowFileManager.save(inputQueue);
-                    }
-                    nap();
-                }
-            } else
+                LOG.error("Can not write {} changes of index {} to the overflow journal, dropping them", changes.size(), index);
+            }
+            else
             {
-                if (inputQueue.size() >= limit)
+                LOG.error("Can not write {} changes of index {} to the overflow journal, keeping them in memory", changes.size(), index);
+                for (DelayedImpl<Change> delayed : changes)
                 {
-                    overflowFileManager.save(inputQueue);
+                    final DelayedImpl<Change> placed = register(delayed);
+                    if (placed != null)
+                        queue(placed);
                 }
-                nap();
             }
+            changes.clear();
         }
-        flushInMemoryQueuesToDisk();
     }
 
-    private void copyInputToOutput()
+    /**
+     * Coalesce the changes in the ring, and queue the ones that need a place.
+     */
+    private boolean drainRing()
     {
-        try
+        boolean moved = false;
+        for (DelayedImpl<Change> delayed = ring.poll(); delayed != null; delayed = ring.poll())
         {
-            final DelayedImpl<Change> delayedChange = inputQueue.poll(1, TimeUnit.SECONDS); // Use poll() instead of take() to not miss the shutdown flag getting flipped to true.
-            if (delayedChange != null)
+            moved = true;
+            final DelayedImpl<Change> placed = register(delayed);
+            if (placed != null)
+                queue(placed);
+        }
+        return moved;
+    }
+
+    /**
+     * Queue the changes in the wheel that are due.
+     */
+    private boolean expireRetries()
+    {
+        final List<DelayedImpl<Change>> due = new ArrayList<DelayedImpl<Change>>();
+        if (wheel.expire(System.currentTimeMillis(), due) == 0)
+            return false;
+
+        for (DelayedImpl<Change> delayed : due)
+            if (holdsPlace(delayed))
             {
-                outputQueue.add(delayedChange);
+                waiting.remove(delayed.thing().key());
+                queue(delayed);
             }
-        } catch (InterruptedException e)
+        return true;
+    }
+
+    // whether a change in the wheel still holds the place of its document, or a change that was due took over
+    private boolean holdsPlace(final DelayedImpl<Change> delayed)
+    {
+        return waiting.get(delayed.thing().key()) == delayed;
+    }
+
+    private void park(final DelayedImpl<Change> delayed)
+    {
+        wheel.add(delayed);
+        waiting.put(delayed.thing().key(), delayed);
+    }
+
+    /**
+     * Put a registered change in the wheel if it is not due yet, otherwise in the output queue if there is room and
+     * nothing is waiting before it, or else in the input queue.
+     */
+    private void queue(final DelayedImpl<Change> delayed)
+    {
+        if (delayed.getDelay(TimeUnit.MILLISECONDS) > 0)
+            park(delayed);
+        else if (outputQueue.size() < limit && overflowJournal.isEmpty() && inputQueue.isEmpty())
+            outputQueue.add(delayed);
+        else
+            inputQueue.add(delayed);
+    }
+
+    /**
+     * Fill up the output queue, from the overflow journal if it has changes, otherwise from the input queue.
+     */
+    private boolean moveToOutput()
+    {
+        if (overflowJournal.isEmpty())
         {
-            LOG.warn("Getting change from input queue interrupted: " + e.getMessage());
+            boolean moved = false;
+            while (outputQueue.size() < limit && !inputQueue.isEmpty())
+            {
+                outputQueue.add(inputQueue.poll());
+                moved = true;
+            }
+            return moved;
         }
+
+        // the changes that are loaded but not due wait in the wheel, they shouldn't pile up there either
+        if (outputQueue.isEmpty() && wheel.size() < limit)
+        {
+            loadOverflow();
+            return true;
+        }
+        return false;
     }
 
-    private void nap()
+    /**
+     * Add a change of a document, without allocating anything unless the ring is full or the circuit breaker is open.
+     */
+    public void add(final Action action, final String type, final String id, final long version, final byte[] source)
     {
-        try
-        {
-            Thread.sleep(250);
+        add(action, type, id, version, 0, 0, System.currentTimeMillis(), source);
+    }
 
-        } catch (InterruptedException e)
+    public void add(final DelayedImpl<Change> delayed)
+    {
+        final Change change = delayed.thing();
+        add(change.action(), change.type(), change.id(), change.version(), change.retries(), delayed.delayInMillis(), delayed.baseMillis(), change.source());
+    }
+
+    private void add(final Action action, final String type, final String id, final long version, final int retries, final long delayInMillis, final long baseMillis, final byte[] source)
+    {
+        if (breaker.state() != CircuitBreaker.State.OPEN)
         {
+            final ChangeRing.Offered offered = ring.offer(action, type, id, version, retries, delayInMillis, baseMillis, source);
 
+            // the consumer reads on by itself, it only has to be woken up when the ring was empty up to this change
+            if (offered == ChangeRing.Offered.NEXT)
+                listener.run();
+            if (offered != ChangeRing.Offered.FULL)
+                return;
         }
+
+        spilled.add(new DelayedImpl<Change>(new Change(action, type, id, version, retries, source), delayInMillis, baseMillis));
+        spillCount.incrementAndGet();
+        listener.run();
     }
 
-    public void add(final DelayedImpl<Change> change)
+    /**
+     * The next change that is due, or {@code null} if there is none.
+     */
+    public DelayedImpl<Change> poll()
     {
-        inputQueue.add(change);
+        final DelayedImpl<Change> delayed = outputQueue.poll();
+        if (delayed == null)
+            return null;
+
+        return newest(delayed);
     }
 
-    public DelayedImpl<Change> take() throws InterruptedException
+    /**
+     * Milliseconds until {@link #process()} may have a change that is due, or {@code -1} if there are no changes.
+     */
+    public synchronized long nextDelayInMillis()
     {
-        return outputQueue.take();
+        if (!outputQueue.isEmpty())
+            return 0;
+
+        return wheel.nextTickInMillis(System.currentTimeMillis());
+    }
+
+    /**
+     * Make a change the newest of its document. A change that is due takes over the place of its document when that is
+     * a retry in the wheel, with the newest version of the two.
+     *
+     * @return the change to queue, or {@code null} if the document already has a place in the queue and the change was
+     * merged into it
+     */
+    private DelayedImpl<Change> register(final DelayedImpl<Change> delayed)
+    {
+        final Change change = delayed.thing();
+        synchronized (latest)
+        {
+            final Change queued = latest.get(change.key());
+            if (queued == null)
+            {
+                latest.put(change.key(), change);
+                return delayed;
+            }
+
+            merged.incrementAndGet();
+            final Change newest = change.version() > queued.version() ? change : queued;
+            if (newest == change)
+                latest.put(change.key(), change);
+
+            // don't wait for the backoff of an older change
+            if (delayed.getDelay(TimeUnit.MILLISECONDS) <= 0 && waiting.remove(change.key()) != null)
+                return newest == change ? delayed : delayed.withThing(newest);
+
+            return null;
+        }
+    }
+
+    /**
+     * The newest change of the document of a change that leaves the in-memory queues, in the same place.
+     */
+    private DelayedImpl<Change> newest(final DelayedImpl<Change> delayed)
+    {
+        final Change change;
+        synchronized (latest)
+        {
+            change = latest.remove(delayed.thing().key());
+        }
+
+        if (change == null || change == delayed.thing())
+            return delayed;
+
+        return delayed.withThing(change);
     }
 
     public boolean isEmpty()
     {
-        return inputQueue.isEmpty() && outputQueue.isEmpty() && overflowFileManager.isEmpty();
+        return ring.size() == 0 && spilled.isEmpty() && inputQueue.isEmpty() && outputQueue.isEmpty() && wheel.size() == 0 && overflowJournal.isEmpty();
     }
 
     @Override
     public int size()
     {
-        return inputQueue.size() + outputQueue.size() + overflowFileManager.size();
+        return ring.size() + spilled.size() + inputQueue.size() + outputQueue.size() + wheel.size() + overflowJournal.size();
+    }
+
+    @Override
+    public int getRingSize()
+    {
+        return ring.size();
+    }
+
+    @Override
+    public int getRingCapacity()
+    {
+        return ring.capacity();
+    }
+
+    @Override
+    public long getSpillCount()
+    {
+        return spillCount.get();
     }
 
     @Override
@@ -130,10 +382,34 @@ public class UpdaterQueue implements Runnable, UpdaterQueueMBean
         return outputQueue.size();
     }
 
+    @Override
+    public int getRetrySize()
+    {
+        return wheel.size();
+    }
+
+    @Override
+    public String getCircuitBreakerState()
+    {
+        return breaker.state().name();
+    }
+
+    @Override
+    public long getCircuitBreakerOpenCount()
+    {
+        return breaker.openCount();
+    }
+
     @Override
     public int getOverflowSize()
     {
-        return overflowFileManager.size();
+        return overflowJournal.size();
+    }
+
+    @Override
+    public long getMergeCount()
+    {
+        return merged.get();
     }
 
     @Override
@@ -142,32 +418,83 @@ public class UpdaterQueue implements Runnable, UpdaterQueueMBean
         return index;
     }
 
-    public void shutdown()
+    /**
+     * Write all changes in memory to the overflow journal.
+     */
+    public synchronized void shutdown()
     {
-        shuttingDown = true; // Flag for thread to shut down
+        closed = true;
+        drainRing();
+        spill();
+        flushInMemoryQueuesToDisk();
     }
 
     @Override
-    public void clear()
+    public synchronized void clear()
     {
         inputQueue.clear();
         outputQueue.clear();
-        overflowFileManager.clear();
+        wheel.clear();
+        waiting.clear();
+        overflowJournal.clear();
+        synchronized (latest)
+        {
+            latest.clear();
+        }
     }
 
-    private void flushInMemoryQueuesToDisk()
+    /**
+     * Move the changes in a queue to an overflow file, with their newest versions. They no longer have a place in
+     * memory, so loading them again coalesces them with the changes queued by then.
+     */
+    private void saveOverflow(final BlockingQueue<DelayedImpl<Change>> queue)
     {
-        while (!outputQueue.isEmpty())
-        {
-            overflowFileManager.save(outputQueue);
-        }
+        final List<DelayedImpl<Change>> drained = new ArrayList<DelayedImpl<Change>>();
+        queue.drainTo(drained);
+        saveOverflow(drained);
+    }
+
+    private void saveOverflow(final List<DelayedImpl<Change>> drained)
+    {
+        final BlockingQueue<DelayedImpl<Change>> overflow = new LinkedBlockingQueue<DelayedImpl<Change>>();
+        for (DelayedImpl<Change> delayed : drained)
+            overflow.add(newest(delayed));
+
+        save(overflow);
+    }
 
-        while (!inputQueue.isEmpty())
+    private void loadOverflow()
+    {
+        final BlockingQueue<DelayedImpl<Change>> loaded = new LinkedBlockingQueue<DelayedImpl<Change>>();
+        overflowJournal.load(loaded);
+
+        for (DelayedImpl<Change> delayed : loaded)
         {
-            overflowFileManager.save(inputQueue);
+            final DelayedImpl<Change> placed = register(delayed);
+            if (placed == null)
+                continue;
+
+            if (placed.getDelay(TimeUnit.MILLISECONDS) > 0)
+                park(placed);
+            else
+                outputQueue.add(placed);
         }
     }
 
+    private void flushInMemoryQueuesToDisk()
+    {
+        saveOverflow(outputQueue);
+        saveOverflow(inputQueue);
+
+        final List<DelayedImpl<Change>> retries = new ArrayList<DelayedImpl<Change>>();
+        wheel.drainTo(retries);
+        for (Iterator<DelayedImpl<Change>> it = retries.iterator(); it.hasNext(); )
+            if (!holdsPlace(it.next()))
+                it.remove();
+        waiting.clear();
+        saveOverflow(retries);
+    }
+
 
     private void registerMBean()
     {
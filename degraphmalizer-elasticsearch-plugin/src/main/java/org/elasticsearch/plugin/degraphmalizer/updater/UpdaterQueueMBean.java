@@ -12,6 +12,13 @@ public interface UpdaterQueueMBean {
     int getInputQueueSize();
     int getOutputQueueSize();
     int getOverflowSize();
+    int getRetrySize();
+    String getCircuitBreakerState();
+    long getCircuitBreakerOpenCount();
+    int getRingSize();
+    int getRingCapacity();
+    long getSpillCount();
+    long getMergeCount();
     String getIndex();
     void clear();
 }
@@ -0,0 +1,76 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.Random;
+
+/**
+ * The settings of the plugin that the updaters of all indices share, read from the {@code DegraphmalizerPlugin}
+ * component settings in elasticsearch.yml. Please keep this in sync with the documentation in README.md.
+ */
+final class UpdaterSettings {
+    private static final ESLogger LOG = Loggers.getLogger(UpdaterSettings.class);
+
+    // the Degraphmalizer accepts bodies and bulk lines of up to 64KB, a bulk line holds the rest of the change as well
+    static final int MAX_SOURCE_SIZE = 60 * 1024;
+
+    final String uriScheme;
+    final String uriHost;
+    final int uriPort;
+    final long retryDelayOnFailureInMillis;
+    final long maxRetryDelayInMillis;
+    final int queueLimit;
+    final String logPath;
+    final int maxRetries;
+    final int batchSize;
+    final long batchTimeoutInMillis;
+    final int maxConcurrentRequests;
+    final int ringSize;
+    final int maxSourceSize;
+    final int circuitBreakerFailures;
+    final long circuitBreakerOpenInMillis;
+    final long loadCheckIntervalInMillis;
+    final int workers;
+
+    UpdaterSettings(final Settings pluginSettings) {
+        this.uriScheme = pluginSettings.get("DegraphmalizerPlugin.degraphmalizerScheme", "http");
+        this.uriHost = pluginSettings.get("DegraphmalizerPlugin.degraphmalizerHost", "localhost");
+        this.uriPort = pluginSettings.getAsInt("DegraphmalizerPlugin.degraphmalizerPort", 9821);
+        this.retryDelayOnFailureInMillis = pluginSettings.getAsLong("DegraphmalizerPlugin.retryDelayOnFailureInMillis", 10000l);
+        this.maxRetryDelayInMillis = Math.max(retryDelayOnFailureInMillis, pluginSettings.getAsLong("DegraphmalizerPlugin.maxRetryDelayInMillis", 600000l));
+
+        this.queueLimit = pluginSettings.getAsInt("DegraphmalizerPlugin.queueLimit", 100000);
+        this.logPath = pluginSettings.get("DegraphmalizerPlugin.logPath", "/export/elasticsearch/degraphmalizer");
+        this.maxRetries = pluginSettings.getAsInt("DegraphmalizerPlugin.maxRetries", 10);
+        this.batchSize = pluginSettings.getAsInt("DegraphmalizerPlugin.batchSize", 1);
+        this.batchTimeoutInMillis = pluginSettings.getAsLong("DegraphmalizerPlugin.batchTimeoutInMillis", 100l);
+        this.maxConcurrentRequests = Math.max(1, pluginSettings.getAsInt("DegraphmalizerPlugin.maxConcurrentRequests", 1));
+        this.ringSize = pluginSettings.getAsInt("DegraphmalizerPlugin.ringSize", 16384);
+        this.maxSourceSize = maxSourceSize(pluginSettings.getAsInt("DegraphmalizerPlugin.maxSourceSize", 0));
+        this.circuitBreakerFailures = pluginSettings.getAsInt("DegraphmalizerPlugin.circuitBreakerFailures", 10);
+        this.circuitBreakerOpenInMillis = pluginSettings.getAsLong("DegraphmalizerPlugin.circuitBreakerOpenInMillis", 30000l);
+        this.loadCheckIntervalInMillis = pluginSettings.getAsLong("DegraphmalizerPlugin.loadCheckIntervalInMillis", 1000l);
+        this.workers = Math.max(1, pluginSettings.getAsInt("DegraphmalizerPlugin.workers", 4));
+    }
+
+    static int maxSourceSize(final int configured) {
+        if (configured > MAX_SOURCE_SIZE) {
+            LOG.warn("maxSourceSize {} is larger than the Degraphmalizer accepts, using {}", configured, MAX_SOURCE_SIZE);
+            return MAX_SOURCE_SIZE;
+        }
+        return configured;
+    }
+
+    /**
+     * Delay before a retry: doubling with every retry up to {@code maxRetryDelayInMillis}, of which a random part
+     * of up to half is taken off.
+     */
+    long backoffInMillis(final int retries, final Random random) {
+        final int doublings = Math.min(Math.max(0, retries - 1), 30);
+        final long delay = Math.min(maxRetryDelayInMillis, retryDelayOnFailureInMillis << doublings);
+        final long jitter = delay / 2;
+        return delay - (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+    }
+}
@@ -0,0 +1,124 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+@Test
+public class BulkResultsTest
+{
+    private static final String OK = "{\"line\": 1, \"id\": \"/books/book/1/3\", \"status\": \"ok\", \"results\": 2}\n";
+    private static final String SUPERSEDED = "{\"line\": 2, \"id\": \"/books/book/2/4\", \"status\": \"superseded\", \"severity\": \"info\", \"class\": \"Superseded\", \"message\": \"newer\"}\n";
+    private static final String OVERLOADED = "{\"line\": 3, \"id\": \"/books/book/3/1\", \"status\": \"error\", \"severity\": \"warn\", \"class\": \"Overloaded\", \"message\": \"busy\", \"retryAfter\": 5}\n";
+    private static final String ERROR = "{\"line\": 4, \"id\": \"/books/book/4/1\", \"status\": \"error\", \"severity\": \"error\", \"class\": \"WrappedException\", \"message\": \"broken\"}\n";
+    private static final String WARNING = "{\"line\": 5, \"id\": \"/books/book/5/1\", \"status\": \"error\", \"severity\": \"warn\", \"class\": \"NotFoundInGraphException\", \"message\": \"gone\"}\n";
+    private static final String ACCEPTED = "{\"line\": 6, \"id\": \"/books/book/6/1\", \"status\": \"accepted\", \"job\": 17}\n";
+
+    @Test
+    public void resultsAreMatchedByLine() throws IOException
+    {
+        // the lines don't have to come in order
+        final BulkResults results = read(7, ACCEPTED + WARNING + "\n" + ERROR + OVERLOADED + SUPERSEDED + OK);
+
+        assertThat(results.result(0), equalTo(BulkResults.Result.DONE));
+        assertThat(results.result(1), equalTo(BulkResults.Result.SUPERSEDED));
+        assertThat(results.result(2), equalTo(BulkResults.Result.OVERLOADED));
+        assertThat(results.retryAfterInMillis(2), equalTo(5000L));
+        assertThat(results.result(3), equalTo(BulkResults.Result.FAILED));
+        assertThat(results.message(3), equalTo("broken"));
+        assertThat(results.result(4), equalTo(BulkResults.Result.DONE));
+        assertThat(results.result(5), equalTo(BulkResults.Result.DONE));
+
+        // no line for the last change
+        assertThat(results.result(6), equalTo(BulkResults.Result.NONE));
+    }
+
+    @Test
+    public void unknownLinesAreIgnored() throws IOException
+    {
+        final BulkResults results = read(1, "{\"line\": 0, \"status\": \"ok\"}\n{\"line\": 2, \"status\": \"ok\"}\n{\"status\": \"ok\"}\n");
+
+        assertThat(results.result(0), equalTo(BulkResults.Result.NONE));
+        assertThat(results.message(0), nullValue());
+    }
+
+    @Test
+    public void cutOffLineKeepsTheResultsBefore()
+    {
+        final BulkResults results = new BulkResults(3);
+        try
+        {
+            results.read(new BufferedReader(new StringReader(OK + SUPERSEDED + "{\"line\": 3, \"stat")));
+            throw new AssertionError("A cut off line was read");
+        }
+        catch (IOException e)
+        {
+            // the changes without a result are sent again
+        }
+
+        assertThat(results.result(0), equalTo(BulkResults.Result.DONE));
+        assertThat(results.result(1), equalTo(BulkResults.Result.SUPERSEDED));
+        assertThat(results.result(2), equalTo(BulkResults.Result.NONE));
+    }
+
+    @Test
+    public void connectionResetKeepsTheResultsBefore()
+    {
+        final BulkResults results = new BulkResults(3);
+        try
+        {
+            results.read(new BufferedReader(new ResetAfter(OK), 1));
+            throw new AssertionError("A reset connection was read");
+        }
+        catch (IOException e)
+        {
+            assertThat(e.getMessage(), equalTo("Connection reset"));
+        }
+
+        assertThat(results.result(0), equalTo(BulkResults.Result.DONE));
+        assertThat(results.result(1), equalTo(BulkResults.Result.NONE));
+        assertThat(results.result(2), equalTo(BulkResults.Result.NONE));
+    }
+
+    private static BulkResults read(int changes, String response) throws IOException
+    {
+        final BulkResults results = new BulkResults(changes);
+        results.read(new BufferedReader(new StringReader(response)));
+        return results;
+    }
+
+    // a response of which the connection is reset after some text
+    private static class ResetAfter extends Reader
+    {
+        private final StringReader text;
+
+        ResetAfter(String text)
+        {
+            this.text = new StringReader(text);
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException
+        {
+            final int n = text.read(buffer, offset, length);
+            if (n < 0)
+            {
+                throw new IOException("Connection reset");
+            }
+            return n;
+        }
+
+        @Override
+        public void close()
+        {
+            text.close();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+@Test
+public class ChangeRingTest
+{
+    private static ChangeRing.Offered offer(ChangeRing ring, String type, long version)
+    {
+        return ring.offer(Action.UPDATE, type, String.valueOf(version), version, 0, 0, 0, null);
+    }
+
+    private static ChangeRing.Offered publish(ChangeRing ring, long sequence, long version)
+    {
+        return ring.publish(sequence, Action.UPDATE, "book", String.valueOf(version), version, 0, 0, 0, null);
+    }
+
+    @Test
+    public void capacityIsAPowerOfTwo()
+    {
+        assertThat(new ChangeRing(3).capacity(), equalTo(4));
+        assertThat(new ChangeRing(4).capacity(), equalTo(4));
+        assertThat(new ChangeRing(1000).capacity(), equalTo(1024));
+    }
+
+    @Test
+    public void changesWrapAroundInOrder()
+    {
+        final ChangeRing ring = new ChangeRing(4);
+
+        long version = 0;
+        for (int round = 0; round < 10; round++)
+        {
+            for (int i = 0; i < 3; i++)
+                offer(ring, "book", version + i);
+            assertThat(ring.size(), equalTo(3));
+
+            for (int i = 0; i < 3; i++)
+                assertThat(ring.poll().thing().version(), equalTo(version++));
+            assertThat(ring.hasNext(), equalTo(false));
+            assertThat(ring.poll(), nullValue());
+            assertThat(ring.size(), equalTo(0));
+        }
+    }
+
+    @Test
+    public void fullRingRefusesChanges()
+    {
+        final ChangeRing ring = new ChangeRing(4);
+        for (int i = 0; i < 4; i++)
+            assertThat(offer(ring, "book", i) == ChangeRing.Offered.FULL, equalTo(false));
+
+        assertThat(offer(ring, "book", 4), equalTo(ChangeRing.Offered.FULL));
+        assertThat(ring.size(), equalTo(4));
+
+        // a slot is free again once the consumer read it
+        assertThat(ring.poll().thing().version(), equalTo(0L));
+        assertThat(offer(ring, "book", 5), equalTo(ChangeRing.Offered.QUEUED));
+        for (long version : new long[]{1, 2, 3, 5})
+            assertThat(ring.poll().thing().version(), equalTo(version));
+    }
+
+    @Test
+    public void onlyTheNextChangeWakesTheConsumer()
+    {
+        final ChangeRing ring = new ChangeRing(4);
+        assertThat(offer(ring, "book", 1), equalTo(ChangeRing.Offered.NEXT));
+        assertThat(offer(ring, "book", 2), equalTo(ChangeRing.Offered.QUEUED));
+
+        ring.poll();
+        assertThat(offer(ring, "book", 3), equalTo(ChangeRing.Offered.QUEUED));
+        ring.poll();
+        ring.poll();
+        assertThat(offer(ring, "book", 4), equalTo(ChangeRing.Offered.NEXT));
+    }
+
+    @Test
+    public void unpublishedSlotBlocksTheConsumer()
+    {
+        final ChangeRing ring = new ChangeRing(4);
+        final long first = ring.claim();
+        final long second = ring.claim();
+
+        // the second change is there, but the consumer has to wait for the first
+        assertThat(publish(ring, second, 2), equalTo(ChangeRing.Offered.QUEUED));
+        assertThat(ring.hasNext(), equalTo(false));
+        assertThat(ring.poll(), nullValue());
+        assertThat(ring.size(), equalTo(2));
+
+        // the consumer stopped at the first, so publishing it wakes the consumer
+        assertThat(publish(ring, first, 1), equalTo(ChangeRing.Offered.NEXT));
+        assertThat(ring.poll().thing().version(), equalTo(1L));
+        assertThat(ring.poll().thing().version(), equalTo(2L));
+        assertThat(ring.size(), equalTo(0));
+    }
+
+    @Test
+    public void concurrentProducersLoseNothing() throws Exception
+    {
+        final int producers = 4;
+        final int changes = 50000;
+        final ChangeRing ring = new ChangeRing(64);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(producers);
+        try
+        {
+            final Future<?>[] produced = new Future<?>[producers];
+            for (int p = 0; p < producers; p++)
+            {
+                final String type = "producer-" + p;
+                produced[p] = executor.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            start.await();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            throw new RuntimeException(e);
+                        }
+
+                        for (long version = 1; version <= changes; version++)
+                            while (offer(ring, type, version) == ChangeRing.Offered.FULL)
+                                Thread.yield();
+                    }
+                });
+            }
+            start.countDown();
+
+            // every change arrives once, and the changes of each producer in order
+            final long[] last = new long[producers];
+            int read = 0;
+            final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+            while (read < producers * changes)
+            {
+                final DelayedImpl<Change> delayed = ring.poll();
+                if (delayed == null)
+                {
+                    assertThat(System.currentTimeMillis() < deadline, equalTo(true));
+                    Thread.yield();
+                    continue;
+                }
+
+                final int p = Integer.parseInt(delayed.thing().type().substring("producer-".length()));
+                assertThat(delayed.thing().version(), equalTo(last[p] + 1));
+                last[p] = delayed.thing().version();
+                read++;
+            }
+
+            for (Future<?> future : produced)
+                future.get();
+            assertThat(ring.poll(), nullValue());
+            assertThat(ring.size(), equalTo(0));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
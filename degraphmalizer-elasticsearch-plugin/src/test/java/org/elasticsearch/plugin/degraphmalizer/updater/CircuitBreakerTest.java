@@ -0,0 +1,69 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+@Test
+public class CircuitBreakerTest
+{
+    @Test
+    public void opensAfterFailuresInARow()
+    {
+        final CircuitBreaker breaker = new CircuitBreaker(3, 10000);
+        assertThat(breaker.failure(), equalTo(false));
+        assertThat(breaker.failure(), equalTo(false));
+
+        // a success starts counting again
+        assertThat(breaker.success(), equalTo(false));
+        assertThat(breaker.failure(), equalTo(false));
+        assertThat(breaker.failure(), equalTo(false));
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.CLOSED));
+        assertThat(breaker.allowed(8), equalTo(8));
+
+        assertThat(breaker.failure(), equalTo(true));
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.OPEN));
+        assertThat(breaker.allowed(8), equalTo(0));
+        assertThat(breaker.remainingInMillis() > 0, equalTo(true));
+        assertThat(breaker.openCount(), equalTo(1L));
+
+        // the requests that were still under way don't open it again
+        assertThat(breaker.failure(), equalTo(false));
+        assertThat(breaker.openCount(), equalTo(1L));
+    }
+
+    @Test
+    public void halfOpenAllowsASingleProbe() throws InterruptedException
+    {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 50);
+        assertThat(breaker.failure(), equalTo(true));
+
+        Thread.sleep(60);
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.HALF_OPEN));
+        assertThat(breaker.remainingInMillis(), equalTo(0L));
+        assertThat(breaker.allowed(8), equalTo(1));
+
+        // the probe failed, wait again
+        assertThat(breaker.failure(), equalTo(true));
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.OPEN));
+        assertThat(breaker.allowed(8), equalTo(0));
+        assertThat(breaker.openCount(), equalTo(2L));
+
+        // the probe succeeded, send everything again
+        Thread.sleep(60);
+        assertThat(breaker.allowed(8), equalTo(1));
+        assertThat(breaker.success(), equalTo(true));
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.CLOSED));
+        assertThat(breaker.allowed(8), equalTo(8));
+    }
+
+    @Test
+    public void neverOpensWithoutThreshold()
+    {
+        final CircuitBreaker breaker = new CircuitBreaker(0, 10000);
+        for (int i = 0; i < 100; i++)
+            assertThat(breaker.failure(), equalTo(false));
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.CLOSED));
+    }
+}
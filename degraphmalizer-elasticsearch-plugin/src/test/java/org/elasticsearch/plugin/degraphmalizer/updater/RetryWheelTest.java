@@ -0,0 +1,75 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+@Test
+public class RetryWheelTest
+{
+    private static DelayedImpl<Change> due(long version, long at)
+    {
+        return new DelayedImpl<Change>(Change.update("book", String.valueOf(version), version), at, 0);
+    }
+
+    @Test
+    public void changesExpireWhenDueInOrder()
+    {
+        final long now = System.currentTimeMillis();
+        final RetryWheel wheel = new RetryWheel(10, 8);
+        wheel.add(due(1, now + 25));
+        wheel.add(due(2, now + 5));
+        wheel.add(due(3, now + 25));
+
+        final List<DelayedImpl<Change>> expired = new ArrayList<DelayedImpl<Change>>();
+        assertThat(wheel.expire(now + 10, expired), equalTo(1));
+        assertThat(expired.get(0).thing().version(), equalTo(2L));
+
+        expired.clear();
+        assertThat(wheel.expire(now + 40, expired), equalTo(2));
+        assertThat(expired.get(0).thing().version(), equalTo(1L));
+        assertThat(expired.get(1).thing().version(), equalTo(3L));
+        assertThat(wheel.size(), equalTo(0));
+    }
+
+    @Test
+    public void changesInLaterRotationsWait()
+    {
+        final long now = System.currentTimeMillis();
+        final RetryWheel wheel = new RetryWheel(10, 8);
+
+        // one rotation is 80 milliseconds, so these share a bucket
+        wheel.add(due(1, now + 15));
+        wheel.add(due(2, now + 95));
+        wheel.add(due(3, now + 1000));
+
+        final List<DelayedImpl<Change>> expired = new ArrayList<DelayedImpl<Change>>();
+        assertThat(wheel.expire(now + 30, expired), equalTo(1));
+        assertThat(wheel.expire(now + 90, expired), equalTo(0));
+        assertThat(wheel.expire(now + 110, expired), equalTo(1));
+        assertThat(expired.get(1).thing().version(), equalTo(2L));
+
+        // after a long pause everything that is due is found
+        assertThat(wheel.expire(now + 5000, expired), equalTo(1));
+        assertThat(wheel.size(), equalTo(0));
+    }
+
+    @Test
+    public void drainTakesEverything()
+    {
+        final long now = System.currentTimeMillis();
+        final RetryWheel wheel = new RetryWheel(10, 8);
+        for (int i = 0; i < 100; i++)
+            wheel.add(due(i, now + i * 7));
+
+        final List<DelayedImpl<Change>> all = new ArrayList<DelayedImpl<Change>>();
+        wheel.drainTo(all);
+        assertThat(all.size(), equalTo(100));
+        assertThat(wheel.size(), equalTo(0));
+        assertThat(wheel.nextTickInMillis(now), equalTo(-1L));
+    }
+}
@@ -0,0 +1,150 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+@Test
+public class UpdaterOverflowJournalTest
+{
+    private final String logPath = "target/journal-test";
+
+    @BeforeMethod
+    public void removeJournal()
+    {
+        final File directory = new File(logPath, "test-journal");
+        final File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+    }
+
+    @Test
+    public void changesAreLoadedInOrderAfterReopening()
+    {
+        final BlockingQueue<DelayedImpl<Change>> queue = new LinkedBlockingQueue<DelayedImpl<Change>>();
+        queue.add(new DelayedImpl<Change>(Change.update("book", "1", 3), 1000, 42));
+        queue.add(DelayedImpl.immediate(Change.delete("book", "2,3", 4)));
+
+        new UpdaterOverflowJournal(logPath, "test", 10).save(queue);
+
+        final UpdaterOverflowJournal journal = new UpdaterOverflowJournal(logPath, "test", 10);
+        assertThat(journal.size(), equalTo(2));
+
+        journal.load(queue);
+        assertThat(journal.isEmpty(), is(true));
+
+        final DelayedImpl<Change> first = queue.poll();
+        assertThat(first.thing(), equalTo(Change.update("book", "1", 3)));
+        assertThat(first.delayInMillis(), equalTo(1000L));
+        assertThat(first.baseMillis(), equalTo(42L));
+        assertThat(queue.poll().thing(), equalTo(Change.delete("book", "2,3", 4)));
+    }
+
+    @Test
+    public void changesSpanningSegments()
+    {
+        final UpdaterOverflowJournal journal = new UpdaterOverflowJournal(logPath, "test", 1000);
+        final int count = UpdaterOverflowJournal.SEGMENT_SIZE / 40;
+
+        final BlockingQueue<DelayedImpl<Change>> queue = new LinkedBlockingQueue<DelayedImpl<Change>>();
+        for (int i = 0; i < count; i++)
+            queue.add(DelayedImpl.immediate(Change.update("book", String.valueOf(i), i)));
+        while (!queue.isEmpty())
+            journal.save(queue);
+
+        assertThat(journal.size(), equalTo(count));
+
+        long expected = 0;
+        while (!journal.isEmpty())
+        {
+            journal.load(queue);
+            for (DelayedImpl<Change> delayed = queue.poll(); delayed != null; delayed = queue.poll())
+                assertThat(delayed.thing().version(), equalTo(expected++));
+        }
+        assertThat(expected, equalTo((long) count));
+    }
+
+    @Test
+    public void damagedRecordSkipsRestOfSegment() throws IOException
+    {
+        final UpdaterOverflowJournal journal = new UpdaterOverflowJournal(logPath, "test", 1000);
+        final int count = UpdaterOverflowJournal.SEGMENT_SIZE / 40;
+
+        final BlockingQueue<DelayedImpl<Change>> queue = new LinkedBlockingQueue<DelayedImpl<Change>>();
+        for (int i = 0; i < count; i++)
+            queue.add(DelayedImpl.immediate(Change.update("book", String.valueOf(i % 10), i)));
+        while (!queue.isEmpty())
+            assertThat(journal.save(queue) > 0, is(true));
+
+        // the action of the second record, records of "book" and a one digit id are 4 + 38 bytes
+        damage(0, 42 + 4 + 8 + 8, (byte) 99);
+
+        final UpdaterOverflowJournal reopened = new UpdaterOverflowJournal(logPath, "test", 1000);
+        final long[] versions = loadVersions(reopened);
+        assertThat(versions[0], equalTo(0L));
+
+        // the rest of the first segment is skipped, the next segment is read in order
+        assertThat(versions[1] > 1, is(true));
+        for (int i = 2; i < versions.length; i++)
+            assertThat(versions[i], equalTo(versions[i - 1] + 1));
+        assertThat(versions[versions.length - 1], equalTo((long) count - 1));
+        assertThat(reopened.isEmpty(), is(true));
+    }
+
+    @Test
+    public void damagedRecordInLastSegment() throws IOException
+    {
+        final BlockingQueue<DelayedImpl<Change>> queue = new LinkedBlockingQueue<DelayedImpl<Change>>();
+        for (int i = 0; i < 3; i++)
+            queue.add(DelayedImpl.immediate(Change.update("book", String.valueOf(i), i)));
+        new UpdaterOverflowJournal(logPath, "test", 10).save(queue);
+
+        // a negative length of the type of the second record
+        damage(0, 42 + 4 + 8 + 8 + 1 + 4 + 8, (byte) 0xff);
+
+        final UpdaterOverflowJournal journal = new UpdaterOverflowJournal(logPath, "test", 10);
+        assertThat(loadVersions(journal), equalTo(new long[]{0}));
+        assertThat(journal.isEmpty(), is(true));
+
+        // and the journal goes on after it
+        queue.add(DelayedImpl.immediate(Change.update("book", "4", 4)));
+        assertThat(journal.save(queue), equalTo(1));
+        assertThat(loadVersions(journal), equalTo(new long[]{4}));
+    }
+
+    private long[] loadVersions(UpdaterOverflowJournal journal)
+    {
+        final BlockingQueue<DelayedImpl<Change>> queue = new LinkedBlockingQueue<DelayedImpl<Change>>();
+        while (!journal.isEmpty())
+            journal.load(queue);
+
+        final long[] versions = new long[queue.size()];
+        for (int i = 0; i < versions.length; i++)
+            versions[i] = queue.poll().thing().version();
+        return versions;
+    }
+
+    private void damage(long segment, long offset, byte value) throws IOException
+    {
+        final RandomAccessFile file = new RandomAccessFile(new File(new File(logPath, "test-journal"), String.format("segment-%016d", segment)), "rw");
+        try
+        {
+            file.seek(offset);
+            file.write(value);
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+@Test
+public class UpdaterQueueTest
+{
+    private final String logPath = "target/queue-test";
+
+    private static final Runnable NOTHING = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+        }
+    };
+
+    @BeforeMethod
+    public void removeJournal()
+    {
+        final File directory = new File(logPath, "test-journal");
+        final File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+    }
+
+    private UpdaterQueue queue()
+    {
+        return new UpdaterQueue(logPath, "test", 100, 16, new CircuitBreaker(10, 1000), NOTHING);
+    }
+
+    private static List<Change> drain(UpdaterQueue queue)
+    {
+        final List<Change> changes = new ArrayList<Change>();
+        while (queue.process() || queue.nextDelayInMillis() == 0)
+            for (DelayedImpl<Change> delayed = queue.poll(); delayed != null; delayed = queue.poll())
+                changes.add(delayed.thing());
+        return changes;
+    }
+
+    @Test
+    public void newerChangeTakesThePlaceOfOlder()
+    {
+        final UpdaterQueue queue = queue();
+        queue.add(Action.UPDATE, "book", "1", 1, null);
+        queue.add(Action.UPDATE, "book", "2", 1, null);
+        queue.add(Action.DELETE, "book", "1", 2, null);
+
+        final List<Change> changes = drain(queue);
+        assertThat(changes.size(), equalTo(2));
+        assertThat(changes.get(0), equalTo(Change.delete("book", "1", 2)));
+        assertThat(changes.get(1), equalTo(Change.update("book", "2", 1)));
+        assertThat(queue.getMergeCount(), equalTo(1L));
+    }
+
+    @Test
+    public void olderChangeIsDropped()
+    {
+        final UpdaterQueue queue = queue();
+        queue.add(Action.UPDATE, "book", "1", 3, null);
+        queue.add(Action.UPDATE, "book", "1", 2, null);
+
+        final List<Change> changes = drain(queue);
+        assertThat(changes.size(), equalTo(1));
+        assertThat(changes.get(0), equalTo(Change.update("book", "1", 3)));
+    }
+
+    @Test
+    public void changeDoesNotWaitForRetry() throws InterruptedException
+    {
+        final UpdaterQueue queue = queue();
+        queue.add(new DelayedImpl<Change>(new Change(Action.UPDATE, "book", "1", 1, 1), 300));
+        queue.process();
+        assertThat(queue.poll(), nullValue());
+        assertThat(queue.getRetrySize(), equalTo(1));
+
+        // a new version is sent right away, instead of after the backoff of the old one
+        queue.add(Action.UPDATE, "book", "1", 2, null);
+        queue.process();
+        final DelayedImpl<Change> next = queue.poll();
+        assertThat(next.thing(), equalTo(Change.update("book", "1", 2)));
+        assertThat(next.thing().retries(), equalTo(0));
+
+        // and the retry is dropped when it is due
+        Thread.sleep(500);
+        queue.process();
+        assertThat(queue.poll(), nullValue());
+        assertThat(queue.getRetrySize(), equalTo(0));
+    }
+
+    @Test
+    public void changesFromTheJournalAreCoalesced()
+    {
+        final UpdaterQueue first = queue();
+        first.add(Action.UPDATE, "book", "1", 1, null);
+        first.add(Action.UPDATE, "book", "2", 1, null);
+        first.shutdown();
+
+        final UpdaterQueue second = queue();
+        assertThat(second.getOverflowSize(), equalTo(2));
+        second.add(Action.UPDATE, "book", "1", 2, null);
+
+        final List<Change> changes = drain(second);
+        assertThat(changes.size(), equalTo(2));
+        assertThat(changes.contains(Change.update("book", "1", 2)), equalTo(true));
+        assertThat(changes.contains(Change.update("book", "2", 1)), equalTo(true));
+        assertThat(second.isEmpty(), equalTo(true));
+    }
+}
@@ -0,0 +1,79 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+@Test
+public class UpdaterSettingsTest
+{
+    // random numbers that are always the same
+    private static Random fixed(final double value)
+    {
+        return new Random()
+        {
+            @Override
+            public double nextDouble()
+            {
+                return value;
+            }
+        };
+    }
+
+    private static UpdaterSettings settings(long retryDelay, long maxRetryDelay)
+    {
+        return new UpdaterSettings(ImmutableSettings.settingsBuilder()
+                .put("DegraphmalizerPlugin.retryDelayOnFailureInMillis", retryDelay)
+                .put("DegraphmalizerPlugin.maxRetryDelayInMillis", maxRetryDelay)
+                .build());
+    }
+
+    @Test
+    public void backoffDoublesUpToTheMaximum()
+    {
+        final UpdaterSettings settings = settings(1000, 10000);
+        final Random none = fixed(0);
+
+        assertThat(settings.backoffInMillis(1, none), equalTo(1000L));
+        assertThat(settings.backoffInMillis(2, none), equalTo(2000L));
+        assertThat(settings.backoffInMillis(3, none), equalTo(4000L));
+        assertThat(settings.backoffInMillis(5, none), equalTo(10000L));
+        assertThat(settings.backoffInMillis(100, none), equalTo(10000L));
+    }
+
+    @Test
+    public void jitterTakesOffUpToHalf()
+    {
+        final UpdaterSettings settings = settings(1000, 10000);
+
+        assertThat(settings.backoffInMillis(3, fixed(0.5)), equalTo(3000L));
+        assertThat(settings.backoffInMillis(3, fixed(0.999)), greaterThan(2000L));
+
+        final Random random = new Random();
+        for (int i = 0; i < 1000; i++)
+        {
+            final long delay = settings.backoffInMillis(2, random);
+            assertThat(delay, greaterThan(1000L));
+            assertThat(delay, lessThanOrEqualTo(2000L));
+        }
+    }
+
+    @Test
+    public void maxRetryDelayIsAtLeastTheRetryDelay()
+    {
+        assertThat(settings(5000, 1000).maxRetryDelayInMillis, equalTo(5000L));
+    }
+
+    @Test
+    public void maxSourceSizeIsCapped()
+    {
+        assertThat(UpdaterSettings.maxSourceSize(1024), equalTo(1024));
+        assertThat(UpdaterSettings.maxSourceSize(1024 * 1024), equalTo(UpdaterSettings.MAX_SOURCE_SIZE));
+    }
+}